@@ -0,0 +1,188 @@
+package to.noc.android.swipeyours.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import to.noc.android.swipeyours.ApduCommand;
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.ApduStats;
+import to.noc.android.swipeyours.ApduTraceBuffer;
+import to.noc.android.swipeyours.CardResponses;
+import to.noc.android.swipeyours.Constants;
+import to.noc.android.swipeyours.GpoTemplate;
+import to.noc.android.swipeyours.RecordStore;
+import to.noc.android.swipeyours.UnhandledApduSketch;
+import to.noc.android.swipeyours.Util;
+
+
+/*
+ *  A complete Visa MSD tap: PPSE select, AID select, GPO and READ RECORD then deactivation,
+ *  answered by the same ApduProcessor that PaymentService uses.  The logging variant records
+ *  every command and response into an ApduTraceBuffer the way the app does, draining it once
+ *  per exchange, and the stats variant measures the overhead of the always on latency
+ *  histograms.  The GPO benchmarks (each preceded by the AID select the session requires)
+ *  compare the card's static response with a template that patches the terminal's PDOL
+ *  values into the response, and the unhandled command benchmarks measure the cost of
+ *  counting unknown commands in an UnhandledApduSketch.  rejectedGpo measures a GPO the
+ *  session turns away as out of order.  The READ RECORD benchmarks compare the card's single
+ *  record with a card of LARGE_SFIS files of LARGE_RECORDS records each, read in turn, once
+ *  GPO has made them legal.
+ */
+@State(Scope.Thread)
+public class ApduExchangeBenchmark {
+
+    static final byte[] PPSE_SELECT = Util.hexToByteArray("00A404000E325041592E5359532E444446303100");
+    static final byte[] AID_SELECT = Util.hexToByteArray("00A4040007A000000003101000");
+    static final byte[] GPO = Util.hexToByteArray("80A80000048302800000");
+    static final byte[] READ_RECORD = Util.hexToByteArray("00B2010C00");
+    static final byte[] UNHANDLED = Util.hexToByteArray("80CA9F1700");
+
+    private static final int LARGE_SFIS = 4;
+    private static final int LARGE_RECORDS = 16;
+
+    private ApduProcessor processor;
+    private ApduProcessor loggingProcessor;
+    private ApduProcessor statsProcessor;
+    private ApduProcessor patchingProcessor;
+    private ApduProcessor sketchingProcessor;
+    private ApduProcessor largeProcessor;
+    private ApduProcessor idleProcessor;
+    private byte[][] largeReadRecords;
+    private int nextLargeRead;
+    private ApduTraceBuffer traceBuffer;
+
+    private final ApduTraceBuffer.Reader discardingReader = new ApduTraceBuffer.Reader() {
+        @Override
+        public void onRecord(long nanoTime, int direction, ApduCommand command,
+                             byte[] data, int offset, int length) {
+        }
+    };
+
+
+    @Setup
+    public void setUp() {
+        processor = new ApduProcessor();
+        processor.configureReadRecResponse(Constants.DEFAULT_SWIPE_DATA);
+        startProcessing(processor);
+
+        idleProcessor = new ApduProcessor();
+        idleProcessor.configureReadRecResponse(Constants.DEFAULT_SWIPE_DATA);
+
+        statsProcessor = new ApduProcessor();
+        statsProcessor.configureReadRecResponse(Constants.DEFAULT_SWIPE_DATA);
+        statsProcessor.setStats(new ApduStats());
+
+        patchingProcessor = new ApduProcessor();
+        CardResponses card = ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA);
+        GpoTemplate patching = new GpoTemplate.Builder(card.getGpoTemplate().getPdol())
+                .fixed(0x82, new byte[]{(byte) 0x00, (byte) 0x80})
+                .fixed(0x94, new byte[]{(byte) 0x08, (byte) 0x01, (byte) 0x01, (byte) 0x00})
+                .fromTerminal(0x9F66)
+                .build();
+        patchingProcessor.setCard(card.withGpoTemplate(patching));
+
+        RecordStore.Builder records = new RecordStore.Builder();
+        largeReadRecords = new byte[LARGE_SFIS * LARGE_RECORDS][];
+        for (int sfi = 1; sfi <= LARGE_SFIS; sfi++) {
+            for (int record = 1; record <= LARGE_RECORDS; record++) {
+                records.put(sfi, record, card.getReadRecordResponse());
+                largeReadRecords[(sfi - 1) * LARGE_RECORDS + record - 1] =
+                        new byte[]{0x00, (byte) 0xB2, (byte) record, (byte) (sfi << 3 | 0x04), 0x00};
+            }
+        }
+        RecordStore largeStore = records.build();
+        largeProcessor = new ApduProcessor();
+        largeProcessor.setCard(card.withRecords(largeStore).withGpoTemplate(GpoTemplate.format1(
+                card.getGpoTemplate().getPdol(), new byte[]{(byte) 0x00, (byte) 0x80}, largeStore.getAfl())));
+        startProcessing(largeProcessor);
+
+        sketchingProcessor = new ApduProcessor();
+        sketchingProcessor.configureReadRecResponse(Constants.DEFAULT_SWIPE_DATA);
+        sketchingProcessor.setUnhandledSketch(new UnhandledApduSketch());
+
+        traceBuffer = new ApduTraceBuffer(256);
+        loggingProcessor = new ApduProcessor();
+        loggingProcessor.configureReadRecResponse(Constants.DEFAULT_SWIPE_DATA);
+        loggingProcessor.setListener(new ApduProcessor.ApduListener() {
+            @Override
+            public void onApdu(ApduCommand command, byte[] commandApdu, byte[] responseApdu) {
+                long now = System.nanoTime();
+                traceBuffer.recordExchange(now, command, commandApdu, responseApdu);
+            }
+        });
+    }
+
+
+    /*
+     *  Leaves the processor's session where READ RECORD is legal
+     */
+    private static void startProcessing(ApduProcessor processor) {
+        processor.process(AID_SELECT);
+        processor.process(GPO);
+    }
+
+    private static void exchange(ApduProcessor processor, Blackhole bh) {
+        bh.consume(processor.process(PPSE_SELECT));
+        bh.consume(processor.process(AID_SELECT));
+        bh.consume(processor.process(GPO));
+        bh.consume(processor.process(READ_RECORD));
+        processor.onDeactivated(ApduStats.DEACTIVATION_DESELECTED);
+    }
+
+    @Benchmark
+    public void fullExchange(Blackhole bh) {
+        exchange(processor, bh);
+    }
+
+    @Benchmark
+    public void fullExchangeWithLogging(Blackhole bh) {
+        exchange(loggingProcessor, bh);
+        traceBuffer.drain(discardingReader);
+    }
+
+    @Benchmark
+    public void fullExchangeWithStats(Blackhole bh) {
+        exchange(statsProcessor, bh);
+    }
+
+    @Benchmark
+    public byte[] gpoStatic() {
+        processor.process(AID_SELECT);
+        return processor.process(GPO);
+    }
+
+    @Benchmark
+    public byte[] gpoPatched() {
+        patchingProcessor.process(AID_SELECT);
+        return patchingProcessor.process(GPO);
+    }
+
+    @Benchmark
+    public byte[] rejectedGpo() {
+        return idleProcessor.process(GPO);
+    }
+
+    @Benchmark
+    public byte[] readRecord() {
+        return processor.process(READ_RECORD);
+    }
+
+    @Benchmark
+    public byte[] readRecordLargeStore() {
+        byte[][] commands = largeReadRecords;
+        return largeProcessor.process(commands[nextLargeRead++ & (commands.length - 1)]);
+    }
+
+    @Benchmark
+    public byte[] unhandledCommand() {
+        return processor.process(UNHANDLED);
+    }
+
+    @Benchmark
+    public byte[] unhandledCommandWithSketch() {
+        return sketchingProcessor.process(UNHANDLED);
+    }
+}
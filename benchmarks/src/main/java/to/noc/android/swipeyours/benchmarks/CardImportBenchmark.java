@@ -0,0 +1,100 @@
+package to.noc.android.swipeyours.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import to.noc.android.swipeyours.CardImporter;
+import to.noc.android.swipeyours.CardWallet;
+import to.noc.android.swipeyours.TrackScanner;
+
+
+/*
+ *  Importing a 100,000 line dump of reader captures into an empty wallet, one import per
+ *  operation.  About 1 line in 20 is junk of the kinds real dumps contain.
+ *
+ *  Run with: ./gradlew :benchmarks:jmh -PjmhArgs='CardImport'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CardImportBenchmark {
+
+    private static final int LINES = 100000;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private File dump;
+    private CardWallet wallet;
+
+
+    @Setup(Level.Trial)
+    public void writeDump() throws IOException {
+        dump = File.createTempFile("swipes", ".txt");
+        Random random = new Random(42);
+        try (BufferedWriter out = Files.newBufferedWriter(dump.toPath(), StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < LINES; i++) {
+                if (i % 20 == 19) {
+                    out.write("  %B12^NOISE;4046460664629718=1613x?\r\n");
+                    continue;
+                }
+                String pan = withCheckDigit("4" + String.format("%014d", random.nextLong() & 0xFFFFFFFFFFFFL));
+                out.write("%B" + pan + "^CARD/TEST " + i + "^25121010000000000000?;" + pan + "=25121010000000000000?\n");
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void newWallet() {
+        wallet = new CardWallet();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDump() {
+        dump.delete();
+    }
+
+
+    @Benchmark
+    public int importDump() throws IOException, InterruptedException {
+        try (FileInputStream in = new FileInputStream(dump)) {
+            return new CardImporter(threads).importFrom(in.getChannel(), new CardImporter.Listener() {
+                @Override
+                public void onLine(int lineNumber, CardImporter.Status status,
+                                   TrackScanner.Result scanResult, CardWallet.Card card) {
+                    if (card != null) {
+                        wallet.add(card);
+                    }
+                }
+            });
+        }
+    }
+
+
+    private static String withCheckDigit(String digits) {
+        for (char check = '0'; check <= '9'; check++) {
+            String pan = digits + check;
+            if (CardImporter.passesLuhnCheck(pan, 0, pan.length())) {
+                return pan;
+            }
+        }
+        throw new AssertionError();
+    }
+}
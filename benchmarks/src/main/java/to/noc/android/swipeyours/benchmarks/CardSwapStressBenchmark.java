@@ -0,0 +1,78 @@
+package to.noc.android.swipeyours.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.ApduStats;
+import to.noc.android.swipeyours.CardApplication;
+import to.noc.android.swipeyours.CardResponses;
+
+
+/*
+ *  Stress test for card changes racing NFC commands.  One thread keeps switching between two
+ *  cards (parsing the swipe data each time, like the preference listener does) while another
+ *  runs taps (AID select, GPO, READ RECORD, deactivation) on the same ApduProcessor.  Commands
+ *  come from that one thread, as HostApduService delivers them; the race is with the card
+ *  changes.  Every response must come from the card whose application the session selected;
+ *  a response from the other card, or a stale, empty or half built one, fails the run.
+ *  CardSwapTest in core checks the same thing as part of the build.
+ *
+ *  Run with: ./gradlew :benchmarks:jmh -PjmhArgs='CardSwapStress'
+ */
+@State(Scope.Group)
+public class CardSwapStressBenchmark {
+
+    private static final String CARD_A = ";4046460664629718=16101210000018100000?";
+    private static final String CARD_B = "%B4111111111111111^TEST/CARD^2512101000000000000?;4111111111111111=251210100000000000001?";
+
+    private final ApduProcessor processor = new ApduProcessor();
+    private CardResponses cardA;
+    private CardResponses cardB;
+    private boolean useCardA;
+
+
+    @Setup
+    public void setUp() {
+        cardA = ApduProcessor.compileCard(CARD_A);
+        cardB = ApduProcessor.compileCard(CARD_B);
+        processor.setCard(cardA);
+    }
+
+
+    @Benchmark
+    @Group("cardSwap")
+    @GroupThreads(1)
+    public boolean changeCard() {
+        useCardA = !useCardA;
+        return processor.configureReadRecResponse(useCardA ? CARD_A : CARD_B);
+    }
+
+
+    @Benchmark
+    @Group("cardSwap")
+    @GroupThreads(1)
+    public byte[] tap() {
+        processor.process(ApduExchangeBenchmark.AID_SELECT);
+        // Everything after the SELECT must come from the card that answered it
+        CardApplication application = processor.getSession().getApplication();
+        byte[] gpo = processor.process(ApduExchangeBenchmark.GPO);
+        if (!Arrays.equals(gpo, application.getGpoTemplate().getTemplate())) {
+            throw new IllegalStateException("Inconsistent GPO response");
+        }
+        byte[] record = processor.process(ApduExchangeBenchmark.READ_RECORD);
+        if (!Arrays.equals(record, application.getRecords().get(1, 1))
+                || (!Arrays.equals(record, cardA.getReadRecordResponse())
+                        && !Arrays.equals(record, cardB.getReadRecordResponse()))) {
+            throw new IllegalStateException("Inconsistent READ RECORD response");
+        }
+        processor.onDeactivated(ApduStats.DEACTIVATION_DESELECTED);
+        return record;
+    }
+}
@@ -0,0 +1,163 @@
+package to.noc.android.swipeyours.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.CardResponses;
+import to.noc.android.swipeyours.CardSnapshot;
+import to.noc.android.swipeyours.CardWallet;
+import to.noc.android.swipeyours.Constants;
+import to.noc.android.swipeyours.DecryptedCardCache;
+import to.noc.android.swipeyours.EncryptedCardStore;
+import to.noc.android.swipeyours.SoftwareKeyProvider;
+
+
+/*
+ *  Time from PaymentService creation to its first response, with the card coming from the
+ *  preferences (an XML parse of the shared preferences file, then compiling every card in
+ *  the wallet) or from the active card's binary snapshot.  The preferences file is written in
+ *  the same format Android uses and parsed with a streaming pull parser, as Android does.
+ *
+ *  The snapshot is read plain (mapped from a file only the benchmark writes; the app never
+ *  stores one unsealed), decrypted from an EncryptedCardStore (the first service start
+ *  in a process, with a software key standing in for the keystore), and from the
+ *  DecryptedCardCache (every later start).  Taps after the first don't touch the store at all.
+ *
+ *  Run with: ./gradlew :benchmarks:jmh -PjmhArgs='ColdStart'
+ */
+@State(Scope.Thread)
+public class ColdStartBenchmark {
+
+    @Param({"1", "100"})
+    public int cards;
+
+    private File prefsFile;
+    private File snapshotFile;
+    private File sealedSnapshotFile;
+    private EncryptedCardStore store;
+    private DecryptedCardCache warmCache;
+    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException {
+        CardWallet wallet = new CardWallet();
+        wallet.add(Constants.DEFAULT_SWIPE_DATA);
+        for (int i = 1; i < cards; i++) {
+            wallet.add(String.format("%%B4111111111%05d^CARD/TEST %d^2512101000000000000?;4111111111%05d=251210100000000000001?", i, i, i));
+        }
+
+        prefsFile = File.createTempFile("prefs", ".xml");
+        try (Writer out = Files.newBufferedWriter(prefsFile.toPath(), StandardCharsets.UTF_8)) {
+            out.write("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n");
+            out.write("    <string name=\"" + Constants.WALLET_PREF_KEY + "\">" + wallet.serialize() + "</string>\n");
+            out.write("    <int name=\"" + Constants.ACTIVE_CARD_PREF_KEY + "\" value=\"0\" />\n");
+            out.write("</map>\n");
+        }
+
+        snapshotFile = File.createTempFile("card", ".snapshot");
+        Files.write(snapshotFile.toPath(), CardSnapshot.encode(wallet.getActive().getResponses()));
+        if (readSnapshot() == null) {
+            throw new IllegalStateException("Snapshot didn't survive a round trip");
+        }
+
+        store = new EncryptedCardStore(SoftwareKeyProvider.generate());
+        sealedSnapshotFile = File.createTempFile("card", ".sealed");
+        new DecryptedCardCache(store, sealedSnapshotFile).put(wallet.getActive().getResponses());
+        warmCache = new DecryptedCardCache(store, sealedSnapshotFile);
+        if (warmCache.get() == null) {
+            throw new IllegalStateException("Sealed snapshot didn't survive a round trip");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        prefsFile.delete();
+        snapshotFile.delete();
+        sealedSnapshotFile.delete();
+    }
+
+
+    @Benchmark
+    public byte[] fromPreferences() throws IOException, XMLStreamException {
+        Map<String, Object> prefs = readPreferences();
+        CardWallet wallet = new CardWallet();
+        wallet.replaceAll(CardWallet.parse((String) prefs.get(Constants.WALLET_PREF_KEY)),
+                (Integer) prefs.get(Constants.ACTIVE_CARD_PREF_KEY));
+
+        ApduProcessor processor = new ApduProcessor();
+        processor.setCard(wallet.getActive().getResponses());
+        return processor.process(ApduExchangeBenchmark.PPSE_SELECT);
+    }
+
+    @Benchmark
+    public byte[] fromSnapshot() throws IOException {
+        ApduProcessor processor = new ApduProcessor();
+        processor.setCard(readSnapshot());
+        return processor.process(ApduExchangeBenchmark.PPSE_SELECT);
+    }
+
+    @Benchmark
+    public byte[] fromEncryptedSnapshot() throws IOException, GeneralSecurityException {
+        ApduProcessor processor = new ApduProcessor();
+        processor.setCard(new DecryptedCardCache(store, sealedSnapshotFile).get());
+        return processor.process(ApduExchangeBenchmark.PPSE_SELECT);
+    }
+
+    @Benchmark
+    public byte[] fromDecryptedCache() throws IOException, GeneralSecurityException {
+        ApduProcessor processor = new ApduProcessor();
+        processor.setCard(warmCache.get());
+        return processor.process(ApduExchangeBenchmark.PPSE_SELECT);
+    }
+
+
+    private CardResponses readSnapshot() throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            return CardSnapshot.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private Map<String, Object> readPreferences() throws IOException, XMLStreamException {
+        Map<String, Object> prefs = new HashMap<>();
+        try (InputStream in = new FileInputStream(prefsFile)) {
+            XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(in);
+            while (xml.hasNext()) {
+                if (xml.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = xml.getAttributeValue(null, "name");
+                if ("string".equals(xml.getLocalName())) {
+                    prefs.put(name, xml.getElementText());
+                } else if ("int".equals(xml.getLocalName())) {
+                    prefs.put(name, Integer.valueOf(xml.getAttributeValue(null, "value")));
+                }
+            }
+            xml.close();
+        }
+        return prefs;
+    }
+}
@@ -0,0 +1,68 @@
+package to.noc.android.swipeyours.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import to.noc.android.swipeyours.Util;
+
+
+/*
+ *  Hex conversion across payload sizes from a short command APDU up to a maximum length
+ *  response.
+ */
+@State(Scope.Thread)
+public class HexCodecBenchmark {
+
+    @Param({"5", "20", "64", "258"})
+    public int size;
+
+    private byte[] bytes;
+    private String hex;
+    private char[] charBuffer;
+    private byte[] byteBuffer;
+    private final StringBuilder sb = new StringBuilder();
+
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        hex = Util.byteArrayToHex(bytes);
+        charBuffer = new char[size * 2];
+        byteBuffer = new byte[size];
+    }
+
+
+    @Benchmark
+    public String byteArrayToHex() {
+        return Util.byteArrayToHex(bytes);
+    }
+
+    @Benchmark
+    public byte[] hexToByteArray() {
+        return Util.hexToByteArray(hex);
+    }
+
+    @Benchmark
+    public char[] encodeIntoCharArray() {
+        Util.encodeHex(bytes, 0, bytes.length, charBuffer, 0, true);
+        return charBuffer;
+    }
+
+    @Benchmark
+    public StringBuilder appendToStringBuilder() {
+        sb.setLength(0);
+        return Util.appendHex(sb, bytes, 0, bytes.length, true);
+    }
+
+    @Benchmark
+    public byte[] decodeIntoByteArray() {
+        Util.decodeHex(hex, 0, hex.length(), byteBuffer, 0);
+        return byteBuffer;
+    }
+}
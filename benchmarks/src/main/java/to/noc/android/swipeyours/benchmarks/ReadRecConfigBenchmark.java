@@ -0,0 +1,56 @@
+package to.noc.android.swipeyours.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.Constants;
+
+
+/*
+ *  Cost of turning pasted swipe data into the READ RECORD response, for well formed input and
+ *  for the kinds of junk that get pasted from noisy readers.
+ */
+@State(Scope.Thread)
+public class ReadRecConfigBenchmark {
+
+    @Param({"default", "track2Only", "noTrack2", "longNoise"})
+    public String input;
+
+    private String swipeData;
+    private final ApduProcessor processor = new ApduProcessor();
+
+
+    @Setup
+    public void setUp() {
+        switch (input) {
+            case "default":
+                swipeData = Constants.DEFAULT_SWIPE_DATA;
+                break;
+            case "track2Only":
+                swipeData = ";4046460664629718=16101210000018100000?";
+                break;
+            case "noTrack2":
+                swipeData = "%B4046460664629718^000NETSPEND^161012100000181000000?";
+                break;
+            case "longNoise":
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 200; i++) {
+                    sb.append(";4046460664629718=1610121000001810000x");
+                }
+                swipeData = sb.toString();
+                break;
+            default:
+                throw new IllegalArgumentException(input);
+        }
+    }
+
+
+    @Benchmark
+    public boolean configureReadRecResponse() {
+        return processor.configureReadRecResponse(swipeData);
+    }
+}
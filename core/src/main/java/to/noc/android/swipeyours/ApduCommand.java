@@ -0,0 +1,24 @@
+package to.noc.android.swipeyours;
+
+/*
+ *  The command APDUs that SwipeYours knows how to answer.  UNHANDLED covers everything else
+ *  and always gets an ISO 7816 error status word in response.
+ */
+public enum ApduCommand {
+
+    PPSE_SELECT("PPSE select"),
+    AID_SELECT("AID select"),
+    GPO("GPO (get processing options)"),
+    READ_RECORD("READ REC"),
+    UNHANDLED("Unhandled APDU");
+
+    private final String description;
+
+    ApduCommand(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,443 @@
+package to.noc.android.swipeyours;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/*
+ *  The card logic behind PaymentService: answers each command APDU a point of sale terminal
+ *  sends with the matching response APDU, for whichever of the card's scheme applications
+ *  (see CardProfile) the terminal selected.  Each tap is tracked by an EmvSession, which
+ *  rejects commands sent out of order.  It has no Android dependencies so the same code can
+ *  be driven from plain JVM benchmarks and tools.
+ */
+public class ApduProcessor {
+
+    private static final byte[] ISO7816_UNKNOWN_ERROR_RESPONSE = {
+            (byte)0x6F, (byte)0x00
+    };
+
+    private static final byte[] ISO7816_WRONG_LENGTH_RESPONSE = {
+            (byte)0x67, (byte)0x00
+    };
+
+    private static final byte[] ISO7816_FILE_NOT_FOUND_RESPONSE = {
+            (byte)0x6A, (byte)0x82
+    };
+
+    private static final byte[] ISO7816_RECORD_NOT_FOUND_RESPONSE = {
+            (byte)0x6A, (byte)0x83
+    };
+
+    private static final byte[] ISO7816_INCORRECT_P1_P2_RESPONSE = {
+            (byte)0x6A, (byte)0x86
+    };
+
+    private static final byte[] ISO7816_CONDITIONS_NOT_SATISFIED_RESPONSE = {
+            (byte)0x69, (byte)0x85
+    };
+
+    /*
+     *  PPSE (Proximity Payment System Environment)
+     *
+     *  This is the first select that a point of sale device will send to the payment device.
+     */
+    private static final byte[] PPSE_APDU_SELECT = {
+            (byte)0x00, // CLA (class of command)
+            (byte)0xA4, // INS (instruction); A4 = select
+            (byte)0x04, // P1  (parameter 1)  (0x04: select by name)
+            (byte)0x00, // P2  (parameter 2)
+            (byte)0x0E, // LC  (length of data)  14 (0x0E) = length("2PAY.SYS.DDF01")
+                // 2PAY.SYS.DDF01 (ASCII values of characters used):
+                // This value requests the card or payment device to list the application
+                // identifiers (AIDs) it supports in the response:
+                '2', 'P', 'A', 'Y', '.', 'S', 'Y', 'S', '.', 'D', 'D', 'F', '0', '1',
+            (byte)0x00 // LE   (max length of expected result, 0 implies 256)
+    };
+
+    private static final int SW_SUCCESS = 0x9000;
+
+
+    /*
+     *  SELECT by name, for selecting an application by its AID
+     */
+    private static final byte[] AID_SELECT_HEADER = {
+            (byte)0x00,  // CLA
+            (byte)0xA4,  // INS
+            (byte)0x04,  // P1
+            (byte)0x00   // P2
+    };
+
+
+    /*
+     *  GPO (Get Processing Options) command
+     */
+    private static final byte[] GPO_COMMAND = {
+            (byte) 0x80,  // CLA
+            (byte) 0xA8,  // INS
+            (byte) 0x00,  // P1
+            (byte) 0x00,  // P2
+            (byte) 0x04,  // LC (length)
+                // data
+                (byte) 0x83,  // tag
+                (byte) 0x02,  // length
+                    (byte) 0x80,    //  { The terminal's values for the PDOL entries, }
+                    (byte) 0x00,    //  { here 9F66 (terminal transaction qualifiers) }
+            (byte) 0x00   // Le
+    };
+
+
+    /*
+     *  READ RECORD of record 1 (P1) in SFI 1: P2 holds the SFI in its top 5 bits, and 100 in
+     *  the bottom 3 to say P1 is a record number
+     */
+    private static final byte[] READ_REC_COMMAND = {
+            (byte) 0x00,  // CLA
+            (byte) 0xB2,  // INS
+            (byte) 0x01,  // P1
+            (byte) 0x0C,  // P2
+            (byte) 0x00   // length
+    };
+
+
+    /*
+     *  Every response depends on the configured card: the PPSE directory lists the schemes its
+     *  PAN is enabled for, and the records hold the track 2 portion of the user's magnetic
+     *  stripe data.  The responses for the current card are swapped in as a single immutable
+     *  snapshot, so the NFC thread can read them without locks while another thread changes
+     *  the card.
+     */
+    private final AtomicReference<CardResponses> card = new AtomicReference<>(CardResponses.NONE);
+
+    /*
+     *  Returns false, leaving the previous card in place, if the swipe data has no usable
+     *  track 2 portion.
+     */
+    public boolean configureReadRecResponse(String swipeData) {
+        CardResponses responses = compileCard(swipeData);
+        if (responses == null) {
+            return false;
+        }
+        card.set(responses);
+        return true;
+    }
+
+    public void setCard(CardResponses responses) {
+        card.set(responses);
+    }
+
+    public CardResponses getCard() {
+        return card.get();
+    }
+
+
+    /*
+     *  Builds every card specific response for the passed in swipe data, with an application
+     *  for each profile in CardProfile.ALL that accepts the card's PAN, or returns null if the
+     *  data has no usable track 2 portion.
+     */
+    public static CardResponses compileCard(CharSequence swipeData) {
+        return compileCard(swipeData, new TrackScanner());
+    }
+
+    /*
+     *  Like compileCard(swipeData), with the scan's result, error and track offsets left in
+     *  scanner for the caller.
+     */
+    public static CardResponses compileCard(CharSequence swipeData, TrackScanner scanner) {
+        return compileCard(swipeData, scanner, CardProfile.ALL);
+    }
+
+    /*
+     *  Compiles the card for the enabled profiles that accept its PAN, listed in the order
+     *  given.  A card no enabled profile accepts is still emulated as the first one, the way
+     *  every card used to be emulated as a Visa.
+     */
+    public static CardResponses compileCard(CharSequence swipeData, TrackScanner scanner,
+                                            List<CardProfile> enabledProfiles) {
+        // The scanner packs the track 2 digits as BCD, which every profile's record embeds
+        ByteBuffer track2 = ByteBuffer.allocate(TrackScanner.MAX_TRACK_2_BYTES);
+        if (scanner.scan(swipeData, track2) != TrackScanner.Result.OK) {
+            return null;
+        }
+        track2.flip();
+
+        List<CardProfile> profiles = new ArrayList<>();
+        for (CardProfile profile : enabledProfiles) {
+            if (profile.acceptsPan(swipeData, scanner.getPanStart(), scanner.getPanLength())) {
+                profiles.add(profile);
+            }
+        }
+        if (profiles.isEmpty()) {
+            profiles.add(enabledProfiles.get(0));
+        }
+
+        CardApplication[] applications = new CardApplication[profiles.size()];
+        for (int i = 0; i < applications.length; i++) {
+            applications[i] = profiles.get(i).compile(track2.duplicate());
+        }
+        return new CardResponses(ppseResponse(applications), applications);
+    }
+
+
+    /*
+     *  The PPSE directory, with one entry per application in priority order
+     */
+    private static byte[] ppseResponse(CardApplication[] applications) {
+        TlvWriter ppse = new TlvWriter(64 + 16 * applications.length)
+                .begin(0x6F)                                    // FCI Template
+                    .put(0x84, commandData(PPSE_APDU_SELECT))       // DF Name: "2PAY.SYS.DDF01"
+                    .begin(0xA5)                                    // FCI Proprietary Template
+                        .begin(0xBF0C);                                 // FCI Issuer Discretionary Data
+        for (int i = 0; i < applications.length; i++) {
+            ppse.begin(0x61)                                                // Directory Entry
+                    .put(0x4F, applications[i].getAid())                        // ADF Name
+                    .putByte(0x87, i + 1)                                       // Application Priority Indicator
+                .end();
+        }
+        return ppse.end().end().end().toResponse(SW_SUCCESS);
+    }
+
+    /*
+     *  Command APDUs are dispatched by header (and, for the SELECTs, by the AID or file name
+     *  being selected), so adding commands doesn't slow down the ones we already answer.
+     */
+    private final ApduRouter router = new ApduRouter()
+            .register(PPSE_APDU_SELECT[0], PPSE_APDU_SELECT[1], PPSE_APDU_SELECT[2], PPSE_APDU_SELECT[3],
+                    commandData(PPSE_APDU_SELECT), ApduCommand.PPSE_SELECT,
+                    new ApduRouter.Handler() {
+                        @Override
+                        public byte[] handle(byte[] commandApdu) {
+                            return card.get().getPpseResponse();
+                        }
+                    })
+            // Any other SELECT by name is looked up in the card's applications by AID
+            .register(AID_SELECT_HEADER[0], AID_SELECT_HEADER[1], AID_SELECT_HEADER[2], AID_SELECT_HEADER[3],
+                    null, ApduCommand.AID_SELECT,
+                    new ApduRouter.Handler() {
+                        @Override
+                        public byte[] handle(byte[] commandApdu) {
+                            return selectApplication(commandApdu);
+                        }
+                    })
+            // The GPO data carries the terminal's PDOL values, so only the header is matched here
+            .register(GPO_COMMAND[0], GPO_COMMAND[1], GPO_COMMAND[2], GPO_COMMAND[3],
+                    null, ApduCommand.GPO,
+                    new ApduRouter.Handler() {
+                        @Override
+                        public byte[] handle(byte[] commandApdu) {
+                            return processGpo(commandApdu);
+                        }
+                    })
+            // The record number and SFI are in P1 and P2, so every READ RECORD takes this route
+            .registerAnyParams(READ_REC_COMMAND[0], READ_REC_COMMAND[1], ApduCommand.READ_RECORD,
+                    new ApduRouter.Handler() {
+                        @Override
+                        public byte[] handle(byte[] commandApdu) {
+                            return readRecord(commandApdu);
+                        }
+                    });
+
+    private ApduListener listener;
+    private ApduStats stats;
+    private UnhandledApduSketch unhandledSketch;
+
+    // Reused for every tap; reset when the session is deactivated
+    private final EmvSession session = new EmvSession();
+
+    // Reused for every GPO, so validating the command data and patching the response never
+    // allocate.  Like the rest of the processor, only one command is handled at a time.
+    private final TlvReader gpoReader = new TlvReader();
+    private byte[] gpoBuffer = new byte[0];
+
+    /*
+     *  Returns the Lc data bytes of a short command APDU
+     */
+    private static byte[] commandData(byte[] apdu) {
+        return Arrays.copyOfRange(apdu, 5, 5 + (apdu[4] & 0xFF));
+    }
+
+
+    /*
+     *  Selects the current card's application with the AID in the command data, answering
+     *  6A82 (file not found) if the card has no such application.
+     */
+    private byte[] selectApplication(byte[] commandApdu) {
+        int length = commandApdu.length;
+        int lc = length > 4 ? commandApdu[4] & 0xFF : -1;
+        if (lc < 0 || (length != 5 + lc && length != 6 + lc)) {
+            return ISO7816_WRONG_LENGTH_RESPONSE;
+        }
+        CardApplication application = card.get().findApplication(commandApdu, 5, lc);
+        if (application == null) {
+            // an AID we don't emulate is as interesting as a command we don't know
+            recordUnhandled(commandApdu);
+            return ISO7816_FILE_NOT_FOUND_RESPONSE;
+        }
+        session.setApplication(application);
+        return application.getSelectResponse();
+    }
+
+
+    /*
+     *  Answers a GPO from the selected application's template (the session only lets a GPO
+     *  through once an application is selected).  The command data must be a single tag 83
+     *  element holding exactly the number of bytes the PDOL asks for; anything else,
+     *  including an Lc that doesn't match the APDU's length, is answered with 6700 (wrong
+     *  length).  A patched response is built in gpoBuffer, so it's only valid until the next
+     *  GPO is processed.
+     */
+    private byte[] processGpo(byte[] commandApdu) {
+        GpoTemplate template = session.getApplication().getGpoTemplate();
+        int length = commandApdu.length;
+        int lc = length > 4 ? commandApdu[4] & 0xFF : -1;
+        if (lc < 0 || (length != 5 + lc && length != 6 + lc)) {
+            return ISO7816_WRONG_LENGTH_RESPONSE;
+        }
+        TlvReader reader = gpoReader.reset(commandApdu, 5, lc);
+        if (!reader.next() || reader.getTag() != 0x83
+                || reader.getValueLength() != template.getPdol().getDataLength() || !reader.isAtEnd()) {
+            return ISO7816_WRONG_LENGTH_RESPONSE;
+        }
+        if (!template.hasSlots()) {
+            return template.getTemplate();
+        }
+        byte[] buffer = gpoBuffer;
+        if (buffer.length != template.getResponseLength()) {
+            // only happens on the first GPO after switching to a card with a different layout
+            buffer = gpoBuffer = new byte[template.getResponseLength()];
+        }
+        return template.respond(commandApdu, reader.getValueOffset(), buffer);
+    }
+
+
+    /*
+     *  Answers a READ RECORD from the selected application's records: 6A83 (record not found)
+     *  for a record missing from an SFI the application has, 6A82 (file not found) for an SFI
+     *  it doesn't have, and 6A86 (incorrect P1 P2) for anything but reading a record by
+     *  number.  A command with data is answered with 6700 (wrong length).
+     */
+    private byte[] readRecord(byte[] commandApdu) {
+        if (commandApdu.length > 5) {
+            return ISO7816_WRONG_LENGTH_RESPONSE;
+        }
+        int record = commandApdu[2] & 0xFF;
+        int p2 = commandApdu[3] & 0xFF;
+        if ((p2 & 0x07) != 0x04) {
+            return ISO7816_INCORRECT_P1_P2_RESPONSE;
+        }
+        int sfi = p2 >>> 3;
+        RecordStore records = session.getApplication().getRecords();
+        byte[] response = records.get(sfi, record);
+        if (response != null) {
+            return response;
+        }
+        // a record we don't have is as interesting as a command we don't know
+        recordUnhandled(commandApdu);
+        return records.hasSfi(sfi) ? ISO7816_RECORD_NOT_FOUND_RESPONSE : ISO7816_FILE_NOT_FOUND_RESPONSE;
+    }
+
+
+    /*
+     *  Notified of every command/response pair after the response is computed.
+     */
+    public interface ApduListener {
+        void onApdu(ApduCommand command, byte[] commandApdu, byte[] responseApdu);
+    }
+
+    public void setListener(ApduListener listener) {
+        this.listener = listener;
+    }
+
+    /*
+     *  Every command's handling time is recorded in stats, if set.
+     */
+    public void setStats(ApduStats stats) {
+        this.stats = stats;
+    }
+
+
+    /*
+     *  Commands no route accepts, SELECTs of AIDs the card doesn't have and READ RECORDs of
+     *  records it doesn't have are counted in sketch, if set.
+     */
+    public void setUnhandledSketch(UnhandledApduSketch sketch) {
+        this.unhandledSketch = sketch;
+    }
+
+    private void recordUnhandled(byte[] commandApdu) {
+        UnhandledApduSketch sketch = this.unhandledSketch;
+        if (sketch != null) {
+            sketch.record(commandApdu);
+        }
+    }
+
+
+    /*
+     *  The state and profile of the current tap.  Only valid on the thread handling commands.
+     */
+    public EmvSession getSession() {
+        return session;
+    }
+
+
+    public byte[] process(byte[] commandApdu) {
+        ApduStats stats = this.stats;
+        long startNanos = stats != null ? System.nanoTime() : 0;
+        ApduCommand command;
+        byte[] responseApdu;
+
+        EmvSession session = this.session;
+        session.onCommand();
+        ApduRouter.Route route = router.find(commandApdu);
+        if (route != null) {
+            command = route.command;
+            if (session.accepts(command)) {
+                responseApdu = route.handler.handle(commandApdu);
+                int length = responseApdu.length;
+                if (length >= 2 && responseApdu[length - 2] == (byte) 0x90 && responseApdu[length - 1] == 0x00) {
+                    session.onSuccess(command);
+                } else {
+                    session.onFailure(command);
+                }
+            } else {
+                // Out of order: rejected before any of the command is looked at
+                responseApdu = ISO7816_CONDITIONS_NOT_SATISFIED_RESPONSE;
+                session.onRejected();
+            }
+        } else {
+            command = ApduCommand.UNHANDLED;
+            responseApdu = ISO7816_UNKNOWN_ERROR_RESPONSE;
+            recordUnhandled(commandApdu);
+        }
+
+        if (stats != null) {
+            stats.recordCommand(command, startNanos, System.nanoTime(), responseApdu);
+        }
+
+        ApduListener listener = this.listener;
+        if (listener != null) {
+            listener.onApdu(command, commandApdu, responseApdu);
+        }
+
+        return responseApdu;
+    }
+
+
+    /*
+     *  Called when the terminal deselects us or the field is lost, ending the session.
+     */
+    public void onDeactivated(int reason) {
+        long now = System.nanoTime();
+        session.end(now);
+        ApduStats stats = this.stats;
+        if (stats != null) {
+            stats.recordSession(session);
+            stats.recordDeactivation(reason, now);
+        }
+        session.reset();
+    }
+}
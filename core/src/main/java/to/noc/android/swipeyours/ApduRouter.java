@@ -0,0 +1,210 @@
+package to.noc.android.swipeyours;
+
+import java.util.Arrays;
+
+
+/*
+ *  Routes command APDUs to their handlers using the 4 byte APDU header (CLA, INS, P1, P2) as
+ *  the key into an open addressing hash table.  A route can optionally require that the command
+ *  data field exactly match a given value (the way a SELECT is only ours if it names our AID),
+ *  or it can accept any P1/P2 for a given CLA/INS pair.
+ *
+ *  Registering grows the table until every header has its hash slot to itself, so a lookup
+ *  is one probe for the exact header and at most one more for the any P1/P2 key, no matter
+ *  how many commands are registered.  Lookups don't allocate, so the router is safe to use
+ *  on the time sensitive NFC path.  Routes are registered once at start up; the router is not
+ *  thread safe while routes are being added.
+ *
+ *  The class has no Android dependencies so it can be exercised from plain JVM code.
+ */
+public class ApduRouter {
+
+    /*
+     *  Produces the response APDU (including the trailing status word) for a routed command.
+     */
+    public interface Handler {
+        byte[] handle(byte[] commandApdu);
+    }
+
+
+    public static final class Route {
+        public final ApduCommand command;
+        public final Handler handler;
+        private final byte[] data;   // null matches any command data
+        private Route next;          // other routes sharing the same table key
+
+        private Route(ApduCommand command, byte[] data, Handler handler) {
+            this.command = command;
+            this.data = data;
+            this.handler = handler;
+        }
+
+        private boolean matches(byte[] apdu) {
+            if (data == null) {
+                return true;
+            }
+            // Short APDU layout: CLA INS P1 P2 Lc Data [Le], with nothing after Le
+            if ((apdu.length != 5 + data.length && apdu.length != 6 + data.length)
+                    || (apdu[4] & 0xFF) != data.length) {
+                return false;
+            }
+            for (int i = 0; i < data.length; i++) {
+                if (apdu[5 + i] != data[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    private static final long ANY_PARAMS_FLAG = 1L << 32;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 16;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Route[] routes = new Route[INITIAL_CAPACITY];
+    private int size;
+
+
+    private static long key(int cla, int ins, int p1, int p2) {
+        return ((cla & 0xFF) << 24 | (ins & 0xFF) << 16 | (p1 & 0xFF) << 8 | (p2 & 0xFF)) & 0xFFFFFFFFL;
+    }
+
+    private static long anyParamsKey(int cla, int ins) {
+        return key(cla, ins, 0, 0) | ANY_PARAMS_FLAG;
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+
+    /*
+     *  Registers a handler for an exact CLA/INS/P1/P2 header.  If data is non-null, the command
+     *  data field (the Lc bytes following the header) must equal it, followed by at most an Le
+     *  byte.  Routes with data are
+     *  tried before a route without data that shares the same header.
+     */
+    public ApduRouter register(int cla, int ins, int p1, int p2, byte[] data,
+                               ApduCommand command, Handler handler) {
+        add(key(cla, ins, p1, p2), new Route(command, copyOf(data), handler));
+        return this;
+    }
+
+    /*
+     *  Registers a handler for every P1/P2 combination of a CLA/INS pair.  Exact header routes
+     *  take priority over these.
+     */
+    public ApduRouter registerAnyParams(int cla, int ins, ApduCommand command, Handler handler) {
+        add(anyParamsKey(cla, ins), new Route(command, null, handler));
+        return this;
+    }
+
+    /*
+     *  Convenience for the common case of a command that always gets the same response.
+     */
+    public static Handler fixedResponse(final byte[] response) {
+        return new Handler() {
+            @Override
+            public byte[] handle(byte[] commandApdu) {
+                return response;
+            }
+        };
+    }
+
+
+    /*
+     *  Returns the route for the passed in command APDU, or null if no registered route
+     *  accepts it.
+     */
+    public Route find(byte[] apdu) {
+        if (apdu == null || apdu.length < 4) {
+            return null;
+        }
+        Route route = lookup(key(apdu[0], apdu[1], apdu[2], apdu[3]), apdu);
+        if (route == null) {
+            route = lookup(anyParamsKey(apdu[0], apdu[1]), apdu);
+        }
+        return route;
+    }
+
+
+    private Route lookup(long key, byte[] apdu) {
+        // Every key is in its own hash slot, so a different key there means ours isn't registered
+        int i = slot(key, keys.length - 1);
+        if (routes[i] == null || keys[i] != key) {
+            return null;
+        }
+        for (Route route = routes[i]; route != null; route = route.next) {
+            if (route.matches(apdu)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+
+    private void add(long key, Route route) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int i = slot(key, keys.length - 1);
+        while (routes[i] != null && keys[i] != key) {
+            // Another header has this slot: doubling the table takes one more hash bit for the
+            // slot, which keeps apart the keys already placed and eventually splits these two
+            resize(keys.length * 2);
+            i = slot(key, keys.length - 1);
+        }
+        if (routes[i] == null) {
+            keys[i] = key;
+            routes[i] = route;
+            size++;
+        } else if (route.data != null) {
+            // data specific routes go ahead of any catch-all route for the same header
+            Route prev = null;
+            Route cur = routes[i];
+            while (cur != null && cur.data != null) {
+                prev = cur;
+                cur = cur.next;
+            }
+            route.next = cur;
+            if (prev == null) {
+                routes[i] = route;
+            } else {
+                prev.next = route;
+            }
+        } else {
+            Route last = routes[i];
+            while (last.next != null) {
+                last = last.next;
+            }
+            last.next = route;
+        }
+    }
+
+
+    private void resize(int capacity) {
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalStateException("Too many colliding APDU headers registered");
+        }
+        long[] oldKeys = keys;
+        Route[] oldRoutes = routes;
+        keys = new long[capacity];
+        routes = new Route[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldRoutes[j] != null) {
+                int i = slot(oldKeys[j], mask);
+                keys[i] = oldKeys[j];
+                routes[i] = oldRoutes[j];
+            }
+        }
+    }
+
+
+    private static byte[] copyOf(byte[] data) {
+        return data == null ? null : Arrays.copyOf(data, data.length);
+    }
+}
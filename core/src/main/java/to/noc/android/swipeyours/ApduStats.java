@@ -0,0 +1,180 @@
+package to.noc.android.swipeyours;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/*
+ *  Always on instrumentation for the card emulation path: a latency histogram per command
+ *  type, a histogram of whole session durations (first command through deactivation), a
+ *  histogram per EmvSession state of the time taps spent in it, and counters for sessions,
+ *  deactivation reasons, error responses and commands rejected as out of order.
+ *
+ *  Recording is lock free and allocation free, so it can stay enabled on real devices where
+ *  the tail latencies that make terminals give up actually happen.  Session tracking assumes
+ *  commands and deactivations for a session arrive on one thread, as they do in a
+ *  HostApduService.
+ */
+public class ApduStats {
+
+    // HostApduService.DEACTIVATION_LINK_LOSS and DEACTIVATION_DESELECTED
+    public static final int DEACTIVATION_LINK_LOSS = 0;
+    public static final int DEACTIVATION_DESELECTED = 1;
+    private static final String[] DEACTIVATION_REASONS = {"link loss", "deselected", "other"};
+
+    private static final ApduCommand[] COMMANDS = ApduCommand.values();
+    private static final SessionState[] STATES = SessionState.values();
+
+    private final LatencyHistogram[] commandLatency = new LatencyHistogram[COMMANDS.length];
+    private final LatencyHistogram sessionDuration = new LatencyHistogram();
+    private final LatencyHistogram[] stateTime = new LatencyHistogram[STATES.length];
+    private final AtomicLong sessions = new AtomicLong();
+    private final AtomicLong errorResponses = new AtomicLong();
+    private final AtomicLong rejectedCommands = new AtomicLong();
+    private final AtomicLongArray deactivations = new AtomicLongArray(DEACTIVATION_REASONS.length);
+
+    // System.nanoTime() of the first command of the current session, 0 when there isn't one
+    private volatile long sessionStartNanos;
+
+
+    public ApduStats() {
+        for (int i = 0; i < commandLatency.length; i++) {
+            commandLatency[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < stateTime.length; i++) {
+            stateTime[i] = new LatencyHistogram();
+        }
+    }
+
+
+    /*
+     *  Records one answered command.  startNanos is the System.nanoTime() when the command
+     *  arrived.  Any response not ending in the 9000 status word counts as an error response.
+     */
+    public void recordCommand(ApduCommand command, long startNanos, long endNanos, byte[] response) {
+        if (sessionStartNanos == 0) {
+            sessionStartNanos = startNanos;
+            sessions.incrementAndGet();
+        }
+        commandLatency[command.ordinal()].record(endNanos - startNanos);
+        int length = response.length;
+        if (length < 2 || response[length - 2] != (byte) 0x90 || response[length - 1] != 0x00) {
+            errorResponses.incrementAndGet();
+        }
+    }
+
+
+    /*
+     *  Records the time an ended session spent in each state it was in, and the commands it
+     *  rejected.  Called just before the deactivation is recorded.
+     */
+    public void recordSession(EmvSession session) {
+        if (!session.isStarted()) {
+            return;
+        }
+        for (SessionState state : STATES) {
+            if (session.wasInState(state)) {
+                stateTime[state.ordinal()].record(session.getNanosInState(state));
+            }
+        }
+        if (session.getRejectedCount() > 0) {
+            rejectedCommands.addAndGet(session.getRejectedCount());
+        }
+    }
+
+
+    /*
+     *  Ends the current session, if any, with one of the HostApduService deactivation reasons.
+     */
+    public void recordDeactivation(int reason, long nanoTime) {
+        int index = reason == DEACTIVATION_LINK_LOSS || reason == DEACTIVATION_DESELECTED
+                ? reason : DEACTIVATION_REASONS.length - 1;
+        deactivations.incrementAndGet(index);
+        long start = sessionStartNanos;
+        if (start != 0) {
+            sessionDuration.record(nanoTime - start);
+            sessionStartNanos = 0;
+        }
+    }
+
+
+    public LatencyHistogram getCommandLatency(ApduCommand command) {
+        return commandLatency[command.ordinal()];
+    }
+
+    public LatencyHistogram getSessionDuration() {
+        return sessionDuration;
+    }
+
+    public LatencyHistogram getStateTime(SessionState state) {
+        return stateTime[state.ordinal()];
+    }
+
+    public long getSessionCount() {
+        return sessions.get();
+    }
+
+    public long getErrorResponseCount() {
+        return errorResponses.get();
+    }
+
+    public long getRejectedCommandCount() {
+        return rejectedCommands.get();
+    }
+
+
+    public void reset() {
+        for (LatencyHistogram histogram : commandLatency) {
+            histogram.reset();
+        }
+        sessionDuration.reset();
+        for (LatencyHistogram histogram : stateTime) {
+            histogram.reset();
+        }
+        sessions.set(0);
+        errorResponses.set(0);
+        rejectedCommands.set(0);
+        for (int i = 0; i < DEACTIVATION_REASONS.length; i++) {
+            deactivations.set(i, 0);
+        }
+    }
+
+
+    /*
+     *  Plain text snapshot of every histogram and counter, suitable for display or export.
+     *  Latencies are in microseconds.
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-20s %7s %9s %9s %9s %9s%n",
+                "(us)", "count", "p50", "p99", "p99.9", "max"));
+        for (ApduCommand command : COMMANDS) {
+            appendRow(sb, command.name(), commandLatency[command.ordinal()]);
+        }
+        appendRow(sb, "SESSION", sessionDuration);
+
+        sb.append(String.format(Locale.US, "%n%-20s%n", "time in state (us)"));
+        for (SessionState state : STATES) {
+            appendRow(sb, state.name(), stateTime[state.ordinal()]);
+        }
+
+        sb.append(String.format(Locale.US, "%nsessions: %d%nerror responses: %d%nout of order commands: %d%n",
+                sessions.get(), errorResponses.get(), rejectedCommands.get()));
+        for (int i = 0; i < DEACTIVATION_REASONS.length; i++) {
+            sb.append(String.format(Locale.US, "deactivated (%s): %d%n",
+                    DEACTIVATION_REASONS[i], deactivations.get(i)));
+        }
+        return sb.toString();
+    }
+
+
+    private static void appendRow(StringBuilder sb, String name, LatencyHistogram histogram) {
+        sb.append(String.format(Locale.US, "%-20s %7d %9.1f %9.1f %9.1f %9.1f%n",
+                name, histogram.getCount(),
+                histogram.getPercentileNanos(50) / 1e3,
+                histogram.getPercentileNanos(99) / 1e3,
+                histogram.getPercentileNanos(99.9) / 1e3,
+                histogram.getMaxNanos() / 1e3));
+    }
+}
@@ -0,0 +1,172 @@
+package to.noc.android.swipeyours;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ *  Fixed capacity, single producer / single consumer ring buffer of raw APDU records.
+ *
+ *  The producer (the thread answering NFC commands) copies each APDU into a preallocated slot
+ *  along with a System.nanoTime() timestamp, a direction and the command it was routed to.
+ *  Recording costs one array copy and never allocates or blocks.  If the consumer falls behind
+ *  and the buffer is full, new records are dropped and counted rather than waiting.  A command
+ *  and its response are recorded together with recordExchange(), which keeps or drops them as
+ *  a pair, so the consumer never sees one half of an exchange without the other.
+ *
+ *  Any hex or timestamp formatting is left to the consumer, which drains the records on its
+ *  own schedule.
+ */
+public class ApduTraceBuffer {
+
+    public static final int DIRECTION_COMMAND = 0;
+    public static final int DIRECTION_RESPONSE = 1;
+
+    /*
+     *  Largest short APDU: 4 header bytes + Lc + 255 data bytes + Le.  Responses top out at
+     *  256 data bytes + 2 status word bytes, so they fit as well.  Anything longer is truncated.
+     */
+    public static final int MAX_RECORD_LENGTH = 261;
+
+    private static final ApduCommand[] COMMANDS = ApduCommand.values();
+
+
+    /*
+     *  Receives drained records.  The data array is owned by the buffer and is only valid for
+     *  the duration of the call.
+     */
+    public interface Reader {
+        void onRecord(long nanoTime, int direction, ApduCommand command,
+                      byte[] data, int offset, int length);
+    }
+
+
+    private final int mask;
+    private final long[] timestamps;
+    private final byte[] directions;
+    private final byte[] commands;
+    private final int[] lengths;
+    private final byte[] data;
+
+    private final AtomicLong head = new AtomicLong();    // next slot to write, owned by producer
+    private final AtomicLong tail = new AtomicLong();    // next slot to read, owned by consumer
+    private final AtomicLong dropped = new AtomicLong();
+
+
+    /*
+     *  The capacity is rounded up to the next power of 2, and to at least 2 so an exchange fits.
+     */
+    public ApduTraceBuffer(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 20) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Math.max(Integer.highestOneBit(capacity - 1) << 1, 2);
+        mask = size - 1;
+        timestamps = new long[size];
+        directions = new byte[size];
+        commands = new byte[size];
+        lengths = new int[size];
+        data = new byte[size * MAX_RECORD_LENGTH];
+    }
+
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /*
+     *  Number of records waiting to be drained.  Either side may call it; the answer may
+     *  already be stale when it returns.
+     */
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+
+    /*
+     *  Producer side.  Returns false if the record was dropped because the buffer is full.
+     */
+    public boolean record(long nanoTime, int direction, ApduCommand command, byte[] apdu) {
+        long h = head.get();
+        if (h - tail.get() > mask) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        write(h, nanoTime, direction, command, apdu);
+        // publishes the slot contents to the consumer
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /*
+     *  Producer side.  Records a command and its response in two adjacent slots, both
+     *  timestamped nanoTime, or drops both and returns false if there isn't room for the pair.
+     *  They're published together, so a drain never ends between them.
+     */
+    public boolean recordExchange(long nanoTime, ApduCommand command, byte[] commandApdu, byte[] responseApdu) {
+        long h = head.get();
+        if (h - tail.get() > mask - 1) {
+            dropped.addAndGet(2);
+            return false;
+        }
+        write(h, nanoTime, DIRECTION_COMMAND, command, commandApdu);
+        write(h + 1, nanoTime, DIRECTION_RESPONSE, command, responseApdu);
+        head.lazySet(h + 2);
+        return true;
+    }
+
+    private void write(long position, long nanoTime, int direction, ApduCommand command, byte[] apdu) {
+        int slot = (int) position & mask;
+        int length = Math.min(apdu.length, MAX_RECORD_LENGTH);
+        timestamps[slot] = nanoTime;
+        directions[slot] = (byte) direction;
+        commands[slot] = (byte) command.ordinal();
+        lengths[slot] = length;
+        System.arraycopy(apdu, 0, data, slot * MAX_RECORD_LENGTH, length);
+    }
+
+
+    /*
+     *  Consumer side.  Passes every record written so far to the reader and returns how many
+     *  were drained.
+     */
+    public int drain(Reader reader) {
+        long t = tail.get();
+        long h = head.get();
+        for (long i = t; i < h; i++) {
+            int slot = (int) i & mask;
+            reader.onRecord(timestamps[slot], directions[slot], COMMANDS[commands[slot]],
+                    data, slot * MAX_RECORD_LENGTH, lengths[slot]);
+        }
+        // hands the drained slots back to the producer
+        tail.lazySet(h);
+        return (int) (h - t);
+    }
+
+    /*
+     *  Consumer side.  Like drain(), but stops at the first record timestamped at or after
+     *  nanoTime, leaving it and everything after it in the buffer.
+     */
+    public int drainBefore(Reader reader, long nanoTime) {
+        long t = tail.get();
+        long h = head.get();
+        long i = t;
+        for (; i < h; i++) {
+            int slot = (int) i & mask;
+            if (timestamps[slot] - nanoTime >= 0) {
+                break;
+            }
+            reader.onRecord(timestamps[slot], directions[slot], COMMANDS[commands[slot]],
+                    data, slot * MAX_RECORD_LENGTH, lengths[slot]);
+        }
+        tail.lazySet(i);
+        return (int) (i - t);
+    }
+
+
+    /*
+     *  Returns the number of records dropped since the last call and resets the count.
+     */
+    public long takeDroppedCount() {
+        return dropped.getAndSet(0);
+    }
+}
@@ -0,0 +1,138 @@
+package to.noc.android.swipeyours;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/*
+ *  Flyweight cursor over the frames of a trace written by ApduTraceWriter.
+ *
+ *  After next() succeeds the current frame's fields are read from the cursor; the payload
+ *  stays in the underlying buffer until copied.  A final frame cut short (the app was killed
+ *  mid write) ends the trace and sets isTruncated().
+ */
+public final class ApduTraceReader {
+
+    private static final ApduCommand[] COMMANDS = ApduCommand.values();
+
+    private final ByteBuffer buffer;
+    private int kind;
+    private int command;
+    private int sessionId;
+    private long nanoTime;
+    private int payloadOffset;
+    private int payloadLength;
+    private boolean truncated;
+
+
+    /*
+     *  Throws IOException if buffer doesn't start with a trace header of this version.
+     */
+    public ApduTraceReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.remaining() < ApduTraceWriter.HEADER_LENGTH || buffer.getInt() != ApduTraceWriter.MAGIC) {
+            throw new IOException("Not an APDU trace");
+        }
+        int version = buffer.getShort() & 0xFFFF;
+        if (version != ApduTraceWriter.VERSION) {
+            throw new IOException("Unsupported APDU trace version " + version);
+        }
+        buffer.getShort();
+    }
+
+    /*
+     *  Maps the whole file into memory.
+     */
+    public static ApduTraceReader open(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file);
+             FileChannel channel = in.getChannel()) {
+            return new ApduTraceReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+
+    public boolean next() {
+        if (buffer.remaining() < 2) {
+            truncated = buffer.hasRemaining();
+            return false;
+        }
+        int start = buffer.position();
+        int length = buffer.getShort() & 0xFFFF;
+        if (length < ApduTraceWriter.FRAME_HEADER_LENGTH - 2 || length > buffer.remaining()) {
+            buffer.position(start);
+            truncated = true;
+            return false;
+        }
+        kind = buffer.get() & 0xFF;
+        command = buffer.get() & 0xFF;
+        sessionId = buffer.getInt();
+        nanoTime = buffer.getLong();
+        payloadOffset = buffer.position();
+        payloadLength = length - (ApduTraceWriter.FRAME_HEADER_LENGTH - 2);
+        buffer.position(payloadOffset + payloadLength);
+        return true;
+    }
+
+
+    public int getKind() {
+        return kind;
+    }
+
+    /*
+     *  The command the APDU was routed to, or null for frames that aren't APDUs
+     */
+    public ApduCommand getCommand() {
+        return command < COMMANDS.length ? COMMANDS[command] : null;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public byte[] copyPayload() {
+        byte[] payload = new byte[payloadLength];
+        ByteBuffer view = buffer.duplicate();
+        view.position(payloadOffset);
+        view.get(payload);
+        return payload;
+    }
+
+    /*
+     *  Deactivation reason of a KIND_DEACTIVATION frame
+     */
+    public int getDeactivationReason() {
+        return buffer.get(payloadOffset) & 0xFF;
+    }
+
+    /*
+     *  The card of a KIND_CARD frame, or null if its snapshot is corrupt
+     */
+    public CardResponses getCard() {
+        ByteBuffer view = buffer.duplicate();
+        view.position(payloadOffset);
+        view.limit(payloadOffset + payloadLength);
+        return CardSnapshot.decode(view.slice());
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /*
+     *  Offset just past the last complete frame returned by next()
+     */
+    int position() {
+        return buffer.position();
+    }
+}
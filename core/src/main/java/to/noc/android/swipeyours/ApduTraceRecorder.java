@@ -0,0 +1,200 @@
+package to.noc.android.swipeyours;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/*
+ *  Always on capture of card emulation traffic into an ApduTraceWriter trace file.
+ *
+ *  The NFC thread only copies each command and response into an ApduTraceBuffer.  Everything
+ *  else (framing, file I/O) happens on one background thread, which drains the buffer when a
+ *  session ends, when the card changes, or when the buffer is half full during a long
+ *  session.  Once the file grows past its size limit it's moved to "<name>.old", replacing
+ *  the previous one, and a new file is started, so at most two files' worth of history is
+ *  kept.
+ *
+ *  If the file can't be written, recording stops and getError() says why.
+ */
+public class ApduTraceRecorder {
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+    private final File file;
+    private final long maxFileSize;
+    private final ApduTraceBuffer buffer = new ApduTraceBuffer(1024);
+    private final AtomicBoolean drainPending = new AtomicBoolean();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ApduTraceRecorder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // Only touched on the executor's thread
+    private ApduTraceWriter writer;
+    private CardResponses card;
+    private int nextSessionId;
+    private volatile IOException error;
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drainPending.set(false);
+            ApduTraceWriter writer = openWriter();
+            if (writer != null) {
+                buffer.drain(writer);
+            }
+        }
+    };
+
+
+    public ApduTraceRecorder(File file, long maxFileSize) {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+    }
+
+
+    /*
+     *  Called on the NFC thread for every command and response.  Does not allocate unless a
+     *  drain has to be scheduled mid session.
+     */
+    public void record(ApduCommand command, byte[] commandApdu, byte[] responseApdu) {
+        long now = System.nanoTime();
+        buffer.recordExchange(now, command, commandApdu, responseApdu);
+        if (buffer.size() > buffer.capacity() / 2 && !drainPending.getAndSet(true)) {
+            executor.execute(drain);
+        }
+    }
+
+
+    /*
+     *  Records the card that answers the following sessions.
+     */
+    public void onCardChanged(final CardResponses newCard) {
+        final long now = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Commands the NFC thread recorded after the change was made belong after the
+                // card frame, even though they may already be in the buffer
+                ApduTraceWriter writer = openWriter();
+                card = newCard;
+                if (writer != null) {
+                    buffer.drainBefore(writer, now);
+                    writer.writeCard(now, newCard);
+                }
+            }
+        });
+    }
+
+
+    /*
+     *  Ends the session: its frames are drained and flushed to the file.
+     */
+    public void onDeactivated(final int reason) {
+        final long now = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ApduTraceWriter writer = openWriter();
+                if (writer == null) {
+                    return;
+                }
+                buffer.drain(writer);
+                writer.writeDeactivation(now, reason);
+                try {
+                    writer.flush();
+                    if (writer.size() > maxFileSize) {
+                        rotate();
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+
+    /*
+     *  Flushes and closes the file after everything recorded so far has been written, waiting
+     *  for the background thread to finish.
+     */
+    public void close() throws InterruptedException {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (writer != null) {
+                    buffer.drain(writer);
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                    writer = null;
+                }
+            }
+        });
+        executor.shutdown();
+        executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+
+    public IOException getError() {
+        return error;
+    }
+
+
+    /*
+     *  Returns the open writer, opening the file if needed, or null once recording has failed.
+     */
+    private ApduTraceWriter openWriter() {
+        if (writer == null && error == null) {
+            try {
+                // Ids continue across rotations; starting from the time in seconds keeps
+                // sessions from different runs distinct in one file
+                if (nextSessionId == 0) {
+                    nextSessionId = (int) (System.currentTimeMillis() / 1000);
+                }
+                writer = new ApduTraceWriter(new RandomAccessFile(file, "rw").getChannel(), nextSessionId);
+                if (card != null) {
+                    writer.writeCard(System.nanoTime(), card);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return writer;
+    }
+
+    private void rotate() throws IOException {
+        nextSessionId = writer.getSessionId() + 1;
+        writer.close();
+        writer = null;
+        File old = new File(file.getPath() + ".old");
+        old.delete();
+        if (!file.renameTo(old)) {
+            throw new IOException("Unable to rename " + file + " to " + old);
+        }
+    }
+
+    private void fail(IOException e) {
+        error = e;
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package to.noc.android.swipeyours;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/*
+ *  Appends APDU traffic to a compact binary trace file.
+ *
+ *  File layout, big endian:
+ *
+ *      header       magic "SYTR" (4 bytes), u16 VERSION, u16 reserved
+ *      frames       u16 length of the rest of the frame
+ *                   u8  kind (KIND_*)
+ *                   u8  ApduCommand ordinal, or 0xFF for frames that aren't APDUs
+ *                   u32 session id
+ *                   i64 System.nanoTime() when the frame was recorded
+ *                   payload: the APDU, the deactivation reason (1 byte) or a CardSnapshot
+ *
+ *  A session runs from its first command to the next deactivation.  Session ids count up
+ *  from the id the writer is created with.  Card frames record the card that answers the
+ *  sessions after them, so a trace can be replayed without knowing what was configured.
+ *
+ *  Traces are meant to be pulled off the phone, so no card data is written: the values of
+ *  the track, PAN, name and expiry elements (CARD_DATA_TAGS) are zeroed in the card's
+ *  records and in READ RECORD responses alike.  A replayed card then answers with exactly
+ *  the zeroed responses that were recorded.
+ *
+ *  Frames are assembled in a memory buffer and written to the channel in batches.  The
+ *  writer is not thread safe; ApduTraceRecorder owns it on a single background thread.
+ */
+public class ApduTraceWriter implements ApduTraceBuffer.Reader, Closeable {
+
+    public static final int MAGIC = 0x53595452;        // "SYTR"
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 8;
+    public static final int FRAME_HEADER_LENGTH = 16;
+
+    public static final int KIND_COMMAND = ApduTraceBuffer.DIRECTION_COMMAND;
+    public static final int KIND_RESPONSE = ApduTraceBuffer.DIRECTION_RESPONSE;
+    public static final int KIND_DEACTIVATION = 2;
+    public static final int KIND_CARD = 3;
+
+    static final int NO_COMMAND = 0xFF;
+
+    /*
+     *  Elements whose values are zeroed before they're written: track 2 equivalent data, PAN,
+     *  cardholder name, expiry date, track 1 data, track 1 discretionary data, track 2 data
+     */
+    static final int[] CARD_DATA_TAGS = {0x57, 0x5A, 0x5F20, 0x5F24, 0x56, 0x9F1F, 0x9F6B};
+
+    private static final int BATCH_SIZE = 32 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer batch = ByteBuffer.allocate(BATCH_SIZE);
+    private int sessionId;
+    private boolean inSession;
+    private IOException error;
+
+
+    /*
+     *  Appends to the trace already in channel, or starts a new one if it's empty or isn't a
+     *  trace file of this version.  Session ids count up from firstSessionId, or from after
+     *  the last session already in the trace if that is higher.  A frame left partly written
+     *  by an earlier writer is cut off so the frames appended after it can be read.
+     */
+    public ApduTraceWriter(FileChannel channel, int firstSessionId) throws IOException {
+        this.channel = channel;
+        this.sessionId = firstSessionId - 1;
+
+        long end = 0;
+        if (channel.size() >= HEADER_LENGTH) {
+            try {
+                ApduTraceReader reader = new ApduTraceReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                while (reader.next()) {
+                    sessionId = Math.max(sessionId, reader.getSessionId());
+                }
+                end = reader.position();
+            } catch (IOException e) {
+                // not a trace of this version, start over
+            }
+        }
+        if (end == 0) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).flip();
+            channel.write(header, 0);
+            end = HEADER_LENGTH;
+        } else if (end < channel.size()) {
+            channel.truncate(end);
+        }
+        channel.position(end);
+    }
+
+
+    @Override
+    public void onRecord(long nanoTime, int direction, ApduCommand command,
+                         byte[] data, int offset, int length) {
+        if (direction == ApduTraceBuffer.DIRECTION_COMMAND && !inSession) {
+            sessionId++;
+            inSession = true;
+        }
+        if (direction == ApduTraceBuffer.DIRECTION_RESPONSE && command == ApduCommand.READ_RECORD) {
+            data = redact(Arrays.copyOfRange(data, offset, offset + length));
+            offset = 0;
+        }
+        frame(direction, command.ordinal(), nanoTime, data, offset, length);
+    }
+
+    public void writeDeactivation(long nanoTime, int reason) {
+        frame(KIND_DEACTIVATION, NO_COMMAND, nanoTime, new byte[]{(byte) reason}, 0, 1);
+        inSession = false;
+    }
+
+    public void writeCard(long nanoTime, CardResponses card) {
+        byte[] snapshot = CardSnapshot.encode(redact(card));
+        frame(KIND_CARD, NO_COMMAND, nanoTime, snapshot, 0, snapshot.length);
+    }
+
+
+    /*
+     *  A copy of card whose records have had their card data zeroed
+     */
+    static CardResponses redact(CardResponses card) {
+        CardApplication[] applications = new CardApplication[card.getApplicationCount()];
+        for (int a = 0; a < applications.length; a++) {
+            CardApplication application = card.getApplication(a);
+            RecordStore records = application.getRecords();
+            RecordStore.Builder redacted = new RecordStore.Builder();
+            for (int sfi = 1; sfi <= records.getHighestSfi(); sfi++) {
+                for (int record = 1; record <= records.getHighestRecord(); record++) {
+                    byte[] response = records.get(sfi, record);
+                    if (response != null) {
+                        redacted.put(sfi, record, redact(response.clone()));
+                    }
+                }
+            }
+            applications[a] = application.withRecords(redacted.build());
+        }
+        return new CardResponses(card.getPpseResponse(), applications);
+    }
+
+    /*
+     *  Zeroes the card data in a READ RECORD response in place and returns it.  The status word
+     *  is left alone, as is anything that doesn't parse.
+     */
+    static byte[] redact(byte[] response) {
+        if (response.length > 2) {
+            zeroCardData(new TlvReader().reset(response, 0, response.length - 2));
+        }
+        return response;
+    }
+
+    private static void zeroCardData(TlvReader reader) {
+        while (reader.next()) {
+            if (reader.isConstructed()) {
+                zeroCardData(new TlvReader().resetToValue(reader));
+            } else {
+                for (int tag : CARD_DATA_TAGS) {
+                    if (reader.getTag() == tag) {
+                        Arrays.fill(reader.getData(), reader.getValueOffset(), reader.getValueEnd(), (byte) 0);
+                    }
+                }
+            }
+        }
+    }
+
+
+    private void frame(int kind, int command, long nanoTime, byte[] data, int offset, int length) {
+        if (error != null) {
+            return;
+        }
+        if (batch.remaining() < FRAME_HEADER_LENGTH + length) {
+            try {
+                writeBatch();
+            } catch (IOException e) {
+                error = e;
+                return;
+            }
+        }
+        batch.putShort((short) (FRAME_HEADER_LENGTH - 2 + length));
+        batch.put((byte) kind);
+        batch.put((byte) command);
+        batch.putInt(sessionId);
+        batch.putLong(nanoTime);
+        batch.put(data, offset, length);
+    }
+
+    private void writeBatch() throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+        batch.clear();
+    }
+
+
+    /*
+     *  Writes every buffered frame to the channel.  Throws the first error hit while writing,
+     *  after which nothing more is recorded.
+     */
+    public void flush() throws IOException {
+        if (error == null) {
+            try {
+                writeBatch();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /*
+     *  Id of the current session, or of the last one if none is in progress
+     */
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    /*
+     *  Size of the trace including frames that haven't been flushed yet
+     */
+    public long size() throws IOException {
+        return channel.position() + batch.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package to.noc.android.swipeyours;
+
+/*
+ *  One payment application of a card, as a terminal sees it after selecting the
+ *  application's AID: the SELECT response, the GPO template and the records.  A CardProfile
+ *  compiles one of these for each card it's enabled for.
+ *
+ *  Like CardResponses, instances are immutable: the arrays are never modified after being
+ *  handed to the constructor.
+ */
+public final class CardApplication {
+
+    /*
+     *  Placeholder answering for a card with no applications: SELECT gets 6A82 (file not
+     *  found) and GPO 6985 (conditions of use not satisfied), so even it never answers
+     *  without a status word
+     */
+    static final CardApplication NONE = new CardApplication(
+            new byte[0], new byte[]{(byte) 0x6A, (byte) 0x82},
+            GpoTemplate.fixed(Pdol.EMPTY, new byte[]{(byte) 0x69, (byte) 0x85}), RecordStore.EMPTY);
+
+    private final byte[] aid;
+    private final byte[] selectResponse;
+    private final GpoTemplate gpoTemplate;
+    private final RecordStore records;
+
+
+    CardApplication(byte[] aid, byte[] selectResponse, GpoTemplate gpoTemplate, RecordStore records) {
+        this.aid = aid;
+        this.selectResponse = selectResponse;
+        this.gpoTemplate = gpoTemplate;
+        this.records = records;
+    }
+
+
+    public byte[] getAid() {
+        return aid;
+    }
+
+    /*
+     *  Application SELECT response, which carries the application label and PDOL
+     */
+    public byte[] getSelectResponse() {
+        return selectResponse;
+    }
+
+    /*
+     *  The GPO response compiled against the PDOL in the SELECT response
+     */
+    public GpoTemplate getGpoTemplate() {
+        return gpoTemplate;
+    }
+
+    /*
+     *  The records the AFL in the GPO response lists
+     */
+    public RecordStore getRecords() {
+        return records;
+    }
+
+    /*
+     *  Returns a copy of this application answering GPO from a different template
+     */
+    CardApplication withGpoTemplate(GpoTemplate template) {
+        return new CardApplication(aid, selectResponse, template, records);
+    }
+
+    /*
+     *  Returns a copy of this application serving different records
+     */
+    CardApplication withRecords(RecordStore records) {
+        return new CardApplication(aid, selectResponse, gpoTemplate, records);
+    }
+}
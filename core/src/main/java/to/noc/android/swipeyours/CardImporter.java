@@ -0,0 +1,257 @@
+package to.noc.android.swipeyours;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/*
+ *  Streams a file of card reader captures, one swipe per line, into compiled cards.
+ *
+ *  The importing thread reads the channel through one fixed size buffer and splits it into
+ *  lines, dropping whitespace the way SetCardActivity does for pasted data.  Lines are handed
+ *  to a pool of worker threads in batches; each worker scans, validates (track layout, PAN
+ *  length and Luhn check digit, expiry and service code) and compiles its lines into
+ *  CardWallet.Cards.  Finished batches are passed back in file order, so the listener sees
+ *  every line's result incrementally and in sequence while later batches are still being
+ *  worked on.  Only a bounded number of batches is ever in flight, so memory use doesn't
+ *  depend on the size of the file.
+ *
+ *  Workers come from a plain fixed size ExecutorService since ForkJoinPool isn't available
+ *  below API 21.
+ */
+public class CardImporter {
+
+    /*
+     *  Longer lines (after whitespace is removed) are rejected without being scanned.
+     */
+    public static final int MAX_LINE_LENGTH = 1024;
+
+    private static final int BATCH_SIZE = 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+
+    public enum Status {
+        VALID("Valid card"),
+        INVALID_TRACK_DATA("Unusable track data"),
+        INVALID_CHECK_DIGIT("Card number fails the Luhn check"),
+        INVALID_SERVICE_CODE("Missing or invalid service code"),
+        LINE_TOO_LONG("Line is longer than " + MAX_LINE_LENGTH + " characters");
+
+        private final String description;
+
+        Status(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+
+    public interface Listener {
+        /*
+         *  Called once for every non-blank line, in file order, on the thread running
+         *  importFrom().  card is null unless status is VALID.  scanResult explains
+         *  INVALID_TRACK_DATA.
+         */
+        void onLine(int lineNumber, Status status, TrackScanner.Result scanResult, CardWallet.Card card);
+    }
+
+
+    private final int threads;
+
+    public CardImporter(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public CardImporter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /*
+     *  Imports every line of channel (which is read to the end but not closed), returning the
+     *  number of valid cards.  Interrupting the calling thread stops the import.
+     */
+    public int importFrom(ReadableByteChannel channel, Listener listener)
+            throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<>();
+        int validCards = 0;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            char[] line = new char[MAX_LINE_LENGTH];
+            int lineLength = 0;
+            boolean lineTooLong = false;
+            int lineNumber = 1;
+            Batch batch = new Batch();
+
+            while (channel.read(buffer) >= 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        if (lineLength > 0 || lineTooLong) {
+                            batch.add(lineNumber, lineTooLong ? null : new String(line, 0, lineLength));
+                            if (batch.size == BATCH_SIZE) {
+                                validCards += submit(pool, inFlight, batch, listener);
+                                batch = new Batch();
+                            }
+                        }
+                        lineNumber++;
+                        lineLength = 0;
+                        lineTooLong = false;
+                    } else if (b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B) {
+                        // whitespace never belongs to the swipe data
+                    } else if (lineLength < MAX_LINE_LENGTH) {
+                        line[lineLength++] = (char) (b & 0xFF);
+                    } else {
+                        lineTooLong = true;
+                    }
+                }
+                buffer.clear();
+            }
+            if (lineLength > 0 || lineTooLong) {
+                batch.add(lineNumber, lineTooLong ? null : new String(line, 0, lineLength));
+            }
+            if (batch.size > 0) {
+                validCards += submit(pool, inFlight, batch, listener);
+            }
+            while (!inFlight.isEmpty()) {
+                validCards += deliver(inFlight.poll(), listener);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return validCards;
+    }
+
+
+    /*
+     *  Queues a batch, first delivering the oldest results if too many batches are in flight.
+     */
+    private int submit(ExecutorService pool, ArrayDeque<Future<Batch>> inFlight, Batch batch,
+                       Listener listener) throws InterruptedException {
+        int validCards = 0;
+        while (inFlight.size() >= threads * 2) {
+            validCards += deliver(inFlight.poll(), listener);
+        }
+        inFlight.add(pool.submit(batch));
+        return validCards;
+    }
+
+
+    private static int deliver(Future<Batch> future, Listener listener) throws InterruptedException {
+        Batch batch;
+        try {
+            batch = future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Card import failed", e.getCause());
+        }
+        int validCards = 0;
+        for (int i = 0; i < batch.size; i++) {
+            if (batch.statuses[i] == Status.VALID) {
+                validCards++;
+            }
+            listener.onLine(batch.lineNumbers[i], batch.statuses[i], batch.scanResults[i], batch.cards[i]);
+        }
+        return validCards;
+    }
+
+
+    /*
+     *  A run of lines, validated and compiled together by one worker.
+     */
+    private static final class Batch implements Callable<Batch> {
+        final int[] lineNumbers = new int[BATCH_SIZE];
+        final String[] lines = new String[BATCH_SIZE];
+        final Status[] statuses = new Status[BATCH_SIZE];
+        final TrackScanner.Result[] scanResults = new TrackScanner.Result[BATCH_SIZE];
+        final CardWallet.Card[] cards = new CardWallet.Card[BATCH_SIZE];
+        int size;
+
+        void add(int lineNumber, String line) {
+            lineNumbers[size] = lineNumber;
+            lines[size++] = line;
+        }
+
+        @Override
+        public Batch call() {
+            TrackScanner scanner = new TrackScanner();
+            for (int i = 0; i < size; i++) {
+                String line = lines[i];
+                if (line == null) {
+                    statuses[i] = Status.LINE_TOO_LONG;
+                    continue;
+                }
+                CardWallet.Card card = CardWallet.compile(line, scanner);
+                scanResults[i] = scanner.getResult();
+                if (card == null) {
+                    statuses[i] = Status.INVALID_TRACK_DATA;
+                } else if (!passesLuhnCheck(line, scanner.getPanStart(), scanner.getPanLength())) {
+                    statuses[i] = Status.INVALID_CHECK_DIGIT;
+                } else if (!isValidServiceCode(scanner.getServiceCode())) {
+                    statuses[i] = Status.INVALID_SERVICE_CODE;
+                } else {
+                    statuses[i] = Status.VALID;
+                    cards[i] = card;
+                }
+                lines[i] = null;
+            }
+            return this;
+        }
+    }
+
+
+    /*
+     *  Luhn (mod 10) check of the digits in s[start, start + length)
+     */
+    public static boolean passesLuhnCheck(CharSequence s, int start, int length) {
+        int sum = 0;
+        boolean doubled = false;
+        for (int i = start + length - 1; i >= start; i--) {
+            int digit = s.charAt(i) - '0';
+            if (doubled) {
+                digit *= 2;
+                if (digit > 9) {
+                    digit -= 9;
+                }
+            }
+            sum += digit;
+            doubled = !doubled;
+        }
+        return sum % 10 == 0;
+    }
+
+
+    /*
+     *  True if each digit of the 3 digit service code has a value ISO/IEC 7813 defines:
+     *  interchange 1, 2, 5, 6, 7 or 9, authorization processing 0, 2 or 4, and allowed
+     *  services 0 to 7.
+     */
+    public static boolean isValidServiceCode(int serviceCode) {
+        if (serviceCode < 0 || serviceCode > 999) {
+            return false;
+        }
+        int interchange = serviceCode / 100;
+        int authorization = serviceCode / 10 % 10;
+        int services = serviceCode % 10;
+        return (interchange == 1 || interchange == 2 || (interchange >= 5 && interchange <= 7) || interchange == 9)
+                && (authorization == 0 || authorization == 2 || authorization == 4)
+                && services <= 7;
+    }
+}
@@ -0,0 +1,204 @@
+package to.noc.android.swipeyours;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/*
+ *  A payment scheme the card can be emulated as: its AID, application label, PDOL, GPO
+ *  response and the layout of its records.  Everything that doesn't depend on the card (the
+ *  SELECT response, the GPO template and any records without card data) is built once when
+ *  the profile is created; compiling a card only lays the packed track 2 into the profile's
+ *  track 2 record, SFI 1 record 1.
+ *
+ *  The AFL in the GPO response is generated from the profile's records, track 2 record
+ *  included, so adding a record to a profile is all it takes for terminals to read it.
+ *
+ *  A profile is enabled for the cards whose PAN falls in one of its IIN (issuer
+ *  identification number) ranges, so a Visa card is never offered to a terminal as a
+ *  Mastercard.
+ */
+public final class CardProfile {
+
+    /*
+     *  Processing Options Data Object List (PDOL): asks for 2 bytes of 9F66 (terminal
+     *  transaction qualifiers)
+     */
+    private static final Pdol VISA_MSD_PDOL = Pdol.parse(new byte[]{(byte) 0x9F, (byte) 0x66, (byte) 0x02});
+
+    private static final int TRACK_2_SFI = 1;
+    private static final int TRACK_2_RECORD = 1;
+
+    private static final int FORMAT_1 = 0x80;
+    private static final int FORMAT_2 = 0x77;
+
+    /*
+     *  Visa MSD (Magnetic Stripe Data): Format 1 GPO response, and track 2 equivalent data
+     *  (tag 57) in SFI 1 record 1.
+     *
+     *  Its GPO response doesn't echo any terminal data, so the template has no patch slots
+     *  and the same precompiled array is returned for every GPO whose data matches the PDOL.
+     */
+    public static final CardProfile VISA_MSD = new CardProfile(
+            "Visa MSD",
+            // Visa's RID (Registered application provider IDentifier) is 5 bytes, followed by
+            // the PIX (Proprietary application Identifier eXtension) 10 10: credit or debit
+            new byte[]{(byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x03, (byte) 0x10, (byte) 0x10},
+            "VISA CREDIT",
+            VISA_MSD_PDOL,
+            FORMAT_1,
+            new byte[]{(byte) 0x00, (byte) 0x80},           // AIP (Application Interchange Profile)
+            RecordStore.EMPTY,
+            new byte[0],
+            0x57,                                           // Track 2 Equivalent Data
+            new int[]{4000, 4999});
+
+    /*
+     *  Mastercard PayPass mag stripe: no PDOL, a Format 2 GPO response whose AIP only offers
+     *  mag stripe mode, and the track 2 data (tag 9F6B) in SFI 1 record 1.
+     *
+     *  This covers selection through READ RECORD.  The dynamic CVC3 that PayPass terminals
+     *  then ask for with COMPUTE CRYPTOGRAPHIC CHECKSUM needs the issuer's keys, so it isn't
+     *  answered, and the profile is left out of ALL: a terminal that picked it would decline
+     *  every tap, where the same card presented as Visa MSD can still go through.
+     */
+    public static final CardProfile MASTERCARD_MAGSTRIPE = new CardProfile(
+            "Mastercard PayPass mag stripe",
+            // Mastercard's RID followed by the PIX 10 10: credit or debit
+            new byte[]{(byte) 0xA0, (byte) 0x00, (byte) 0x00, (byte) 0x00, (byte) 0x04, (byte) 0x10, (byte) 0x10},
+            "MASTERCARD",
+            Pdol.EMPTY,
+            FORMAT_2,
+            new byte[]{(byte) 0x00, (byte) 0x00},           // AIP: mag stripe only
+            RecordStore.EMPTY,
+            new TlvWriter(8)
+                    .put(0x9F6C, new byte[]{(byte) 0x00, (byte) 0x01})                         // Mag Stripe Application Version
+                    .toByteArray(),
+            0x9F6B,                                         // Track 2 Data
+            new int[]{5100, 5599, 2221, 2720});
+
+    /*
+     *  Every profile that completes a transaction, in the order their applications are listed
+     *  in the PPSE directory.  Cards no profile here accepts, Mastercard included, are
+     *  presented as Visa MSD.
+     */
+    public static final List<CardProfile> ALL = Collections.unmodifiableList(
+            Arrays.asList(VISA_MSD));
+
+
+    private final String name;
+    private final byte[] aid;
+    private final String label;
+    private final Pdol pdol;
+    private final GpoTemplate gpoTemplate;
+    private final byte[] selectResponse;
+    private final RecordStore fixedRecords;
+    private final byte[] recordPrefix;
+    private final int track2Tag;
+    private final int[] iinRanges;
+
+
+    /*
+     *  gpoFormat is the GPO response template tag, FORMAT_1 or FORMAT_2.  fixedRecords holds
+     *  the records that are the same for every card; it mustn't have a track 2 record.
+     *  recordPrefix is encoded TLV data written into the track 2 record ahead of the track 2
+     *  element.  iinRanges holds inclusive low/high pairs of the PAN's first 4 digits.
+     */
+    private CardProfile(String name, byte[] aid, String label, Pdol pdol, int gpoFormat, byte[] aip,
+                        RecordStore fixedRecords, byte[] recordPrefix, int track2Tag, int[] iinRanges) {
+        this.name = name;
+        this.aid = aid;
+        this.label = label;
+        this.pdol = pdol;
+        this.fixedRecords = fixedRecords;
+        this.recordPrefix = recordPrefix;
+        this.track2Tag = track2Tag;
+        this.iinRanges = iinRanges;
+
+        // Every card's records are laid out alike, so the AFL can come from any of them
+        byte[] afl = compileRecords(new byte[0]).getAfl();
+        gpoTemplate = gpoFormat == FORMAT_1 ? GpoTemplate.format1(pdol, aip, afl)
+                : GpoTemplate.format2(pdol, aip, afl);
+
+        TlvWriter select = new TlvWriter(64)
+                .begin(0x6F)                                    // File Control Information (FCI) Template
+                    .put(0x84, aid)                                 // Dedicated File (DF) Name
+                    .begin(0xA5)                                    // FCI Proprietary Template
+                        .put(0x50, label.getBytes(StandardCharsets.US_ASCII));  // Application Label
+        if (pdol.size() > 0) {
+            select.put(0x9F38, pdol.getEncoded());                      // PDOL
+        }
+        selectResponse = select.end().end().toResponse(0x9000);
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+    public byte[] getAid() {
+        return Arrays.copyOf(aid, aid.length);
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public Pdol getPdol() {
+        return pdol;
+    }
+
+
+    /*
+     *  True if the PAN at start in swipeData is in one of this scheme's IIN ranges
+     */
+    public boolean acceptsPan(CharSequence swipeData, int start, int length) {
+        if (length < 4) {
+            return false;
+        }
+        int iin = 0;
+        for (int i = start; i < start + 4; i++) {
+            iin = iin * 10 + (swipeData.charAt(i) - '0');
+        }
+        for (int i = 0; i < iinRanges.length; i += 2) {
+            if (iin >= iinRanges[i] && iin <= iinRanges[i + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /*
+     *  Builds this scheme's application for a card from its packed track 2 (the bytes from
+     *  track2's position to its limit).
+     */
+    CardApplication compile(ByteBuffer track2) {
+        return new CardApplication(aid, selectResponse, gpoTemplate, compileRecords(
+                track2.array(), track2.arrayOffset() + track2.position(), track2.remaining()));
+    }
+
+    private RecordStore compileRecords(byte[] track2) {
+        return compileRecords(track2, 0, track2.length);
+    }
+
+    private RecordStore compileRecords(byte[] track2, int offset, int length) {
+        TlvWriter record = new TlvWriter(recordPrefix.length + 8 + length)
+                .begin(0x70)                                // EMV Record Template
+                    .putRaw(recordPrefix)
+                    .put(track2Tag, track2, offset, length)
+                .end();
+        return new RecordStore.Builder(fixedRecords)
+                .put(TRACK_2_SFI, TRACK_2_RECORD, record.toResponse(0x9000))
+                .build();
+    }
+
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
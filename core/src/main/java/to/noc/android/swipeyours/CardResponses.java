@@ -0,0 +1,174 @@
+package to.noc.android.swipeyours;
+
+/*
+ *  Every response APDU that depends on the configured card, computed up front: the PPSE
+ *  directory listing the card's applications, and each application's own responses.
+ *
+ *  Instances are immutable once constructed: the arrays are never modified after being handed
+ *  to the constructor, until wipe() zeroes a card nothing answers from any more.
+ *  ApduProcessor publishes a complete instance with a single atomic reference swap when the
+ *  card changes, so the NFC thread always sees one card's responses, never a mix of the old
+ *  and new card or a half built record.
+ *
+ *  Applications are found by AID through a small open addressing table over the AID bytes,
+ *  so a SELECT costs one hash and one comparison however many applications the card has.
+ */
+public final class CardResponses {
+
+    /*
+     *  Placeholder used until a card has been configured.  With no applications to list, the
+     *  PPSE is answered with 6A82 (file not found), the way a card without one answers.
+     */
+    public static final CardResponses NONE = new CardResponses(
+            new byte[]{(byte) 0x6A, (byte) 0x82}, new CardApplication[0]);
+
+    private final byte[] ppseResponse;
+    private final CardApplication[] applications;
+    // Each slot holds an index into applications, plus one; zero marks an empty slot
+    private final int[] aidTable;
+
+
+    /*
+     *  The arrays are owned by the new instance and must not be modified afterwards.
+     *  Applications are in directory order; the first is the primary application.
+     */
+    CardResponses(byte[] ppseResponse, CardApplication[] applications) {
+        this.ppseResponse = ppseResponse;
+        this.applications = applications;
+
+        aidTable = new int[Integer.highestOneBit(Math.max(applications.length, 1) * 4)];
+        int mask = aidTable.length - 1;
+        for (int a = 0; a < applications.length; a++) {
+            byte[] aid = applications[a].getAid();
+            int i = hash(aid, 0, aid.length) & mask;
+            while (aidTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            aidTable[i] = a + 1;
+        }
+    }
+
+
+    /*
+     *  PPSE SELECT response: the directory of the card's applications
+     */
+    public byte[] getPpseResponse() {
+        return ppseResponse;
+    }
+
+    public int getApplicationCount() {
+        return applications.length;
+    }
+
+    public CardApplication getApplication(int index) {
+        return applications[index];
+    }
+
+    /*
+     *  The first application in the directory, or a placeholder with empty responses if the
+     *  card has none
+     */
+    public CardApplication getPrimaryApplication() {
+        return applications.length > 0 ? applications[0] : CardApplication.NONE;
+    }
+
+
+    /*
+     *  Returns the application whose AID is the length bytes at offset in buffer, or null.
+     *  Doesn't allocate.
+     */
+    public CardApplication findApplication(byte[] buffer, int offset, int length) {
+        int mask = aidTable.length - 1;
+        for (int i = hash(buffer, offset, length) & mask; aidTable[i] != 0; i = (i + 1) & mask) {
+            CardApplication application = applications[aidTable[i] - 1];
+            if (equals(application.getAid(), buffer, offset, length)) {
+                return application;
+            }
+        }
+        return null;
+    }
+
+
+    /*
+     *  The primary application's SELECT response
+     */
+    public byte[] getSelectResponse() {
+        return getPrimaryApplication().getSelectResponse();
+    }
+
+    /*
+     *  The primary application's GPO template
+     */
+    public GpoTemplate getGpoTemplate() {
+        return getPrimaryApplication().getGpoTemplate();
+    }
+
+    /*
+     *  The primary application's GPO response with any terminal data slots zero filled
+     */
+    public byte[] getGpoResponse() {
+        return getGpoTemplate().getTemplate();
+    }
+
+    /*
+     *  Returns a copy of these responses whose primary application answers GPO from a
+     *  different template.  The template's PDOL must be the one the application's SELECT
+     *  response advertises.
+     */
+    public CardResponses withGpoTemplate(GpoTemplate template) {
+        CardApplication[] copy = applications.clone();
+        copy[0] = copy[0].withGpoTemplate(template);
+        return new CardResponses(ppseResponse, copy);
+    }
+
+    /*
+     *  Returns a copy of these responses whose primary application serves different records.
+     *  The GPO template keeps its AFL, so pair this with withGpoTemplate() for a GPO response
+     *  that lists the new records.
+     */
+    public CardResponses withRecords(RecordStore records) {
+        CardApplication[] copy = applications.clone();
+        copy[0] = copy[0].withRecords(records);
+        return new CardResponses(ppseResponse, copy);
+    }
+
+    /*
+     *  The primary application's record 1 in SFI 1, where every profile keeps its track 2
+     *  data, or null if there is none
+     */
+    public byte[] getReadRecordResponse() {
+        return getPrimaryApplication().getRecords().get(1, 1);
+    }
+
+
+    /*
+     *  Zeroes the records, the only responses holding card data.  Only for instances that
+     *  share no arrays with a CardProfile or another card, such as a decoded CardSnapshot.
+     */
+    void wipe() {
+        for (CardApplication application : applications) {
+            application.getRecords().wipe();
+        }
+    }
+
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] aid, byte[] buffer, int offset, int length) {
+        if (aid.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (aid[i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,212 @@
+package to.noc.android.swipeyours;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/*
+ *  Compact binary copy of one card's finished responses, so a freshly created PaymentService
+ *  can answer its first APDU without parsing preferences or compiling swipe data.
+ *
+ *  Layout, big endian:
+ *
+ *      magic        4 bytes  "SYCS"
+ *      version      u16      VERSION
+ *      body length  u32
+ *      body CRC32   u32
+ *      body:
+ *          PPSE response           u16 length, bytes
+ *          application count       u16, then per application:
+ *              AID                     u16 length, bytes
+ *              SELECT response         u16 length, bytes
+ *              PDOL                    u16 length, bytes
+ *              GPO response template   u16 length, bytes
+ *              patch slot count        u16, then per slot u16 response offset, u16 PDOL data
+ *                                      offset, u8 length
+ *              record count            u16, then per record u8 SFI, u8 record number, u16
+ *                                      length, READ RECORD response bytes
+ *
+ *  The counts are u16 because a RecordStore can hold far more than 255 records (SFIs 1-30
+ *  of up to 254 records each).
+ *
+ *  Anything that doesn't check out (wrong magic or version, bad length or checksum, slots
+ *  outside the response, records outside SFI 1-30 or record 1-254) makes decode() return
+ *  null, so callers fall back to their slow path.
+ *
+ *  A snapshot holds the card data in the clear, so it's only ever stored sealed by an
+ *  EncryptedCardStore (see DecryptedCardCache).
+ */
+public final class CardSnapshot {
+
+    public static final int VERSION = 4;
+
+    private static final int MAGIC = 0x53594353;    // "SYCS"
+    private static final int HEADER_LENGTH = 14;
+
+    /*
+     *  Far larger than any real snapshot; a header claiming more is corrupt
+     */
+    private static final int MAX_BODY_LENGTH = 64 * 1024;
+
+
+    private CardSnapshot() {
+    }
+
+
+    public static byte[] encode(CardResponses card) {
+        int applications = card.getApplicationCount();
+        int bodyLength = 2 + card.getPpseResponse().length + 2;
+        for (int a = 0; a < applications; a++) {
+            CardApplication application = card.getApplication(a);
+            GpoTemplate gpo = application.getGpoTemplate();
+            bodyLength += 2 + application.getAid().length
+                    + 2 + application.getSelectResponse().length
+                    + 2 + gpo.getPdol().getEncoded().length
+                    + 2 + gpo.getResponseLength()
+                    + 2 + gpo.getSlotCount() * 5
+                    + 2;
+            RecordStore records = application.getRecords();
+            for (int sfi = 1; sfi <= records.getHighestSfi(); sfi++) {
+                for (int record = 1; record <= records.getHighestRecord(); record++) {
+                    byte[] response = records.get(sfi, record);
+                    if (response != null) {
+                        bodyLength += 2 + 2 + response.length;
+                    }
+                }
+            }
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+        bb.putInt(MAGIC);
+        bb.putShort((short) VERSION);
+        bb.putInt(bodyLength);
+        bb.putInt(0);                                   // CRC, filled in below
+        putBytes(bb, card.getPpseResponse());
+        bb.putShort((short) applications);
+        for (int a = 0; a < applications; a++) {
+            CardApplication application = card.getApplication(a);
+            GpoTemplate gpo = application.getGpoTemplate();
+            putBytes(bb, application.getAid());
+            putBytes(bb, application.getSelectResponse());
+            putBytes(bb, gpo.getPdol().getEncoded());
+            putBytes(bb, gpo.getTemplate());
+            int slots = gpo.getSlotCount();
+            bb.putShort((short) slots);
+            for (int i = 0; i < slots; i++) {
+                bb.putShort((short) gpo.getSlotResponseOffset(i));
+                bb.putShort((short) gpo.getSlotDataOffset(i));
+                bb.put((byte) gpo.getSlotLength(i));
+            }
+            RecordStore records = application.getRecords();
+            bb.putShort((short) records.size());
+            for (int sfi = 1; sfi <= records.getHighestSfi(); sfi++) {
+                for (int record = 1; record <= records.getHighestRecord(); record++) {
+                    byte[] response = records.get(sfi, record);
+                    if (response != null) {
+                        bb.put((byte) sfi);
+                        bb.put((byte) record);
+                        putBytes(bb, response);
+                    }
+                }
+            }
+        }
+
+        byte[] snapshot = bb.array();
+        bb.putInt(HEADER_LENGTH - 4, crc(snapshot, HEADER_LENGTH, bodyLength));
+        return snapshot;
+    }
+
+
+    /*
+     *  Returns the card in snapshot, or null if it's corrupt or from an unsupported version.
+     */
+    public static CardResponses decode(ByteBuffer snapshot) {
+        try {
+            if (snapshot.getInt() != MAGIC || (snapshot.getShort() & 0xFFFF) != VERSION) {
+                return null;
+            }
+            int bodyLength = snapshot.getInt();
+            int expectedCrc = snapshot.getInt();
+            if (bodyLength < 0 || bodyLength > MAX_BODY_LENGTH || bodyLength != snapshot.remaining()) {
+                return null;
+            }
+            byte[] body = new byte[bodyLength];
+            snapshot.get(body);
+            try {
+                return crc(body, 0, bodyLength) == expectedCrc ? decodeBody(ByteBuffer.wrap(body)) : null;
+            } finally {
+                // The body may be a decrypted snapshot: don't leave a copy of the card around
+                Arrays.fill(body, (byte) 0);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+
+    private static CardResponses decodeBody(ByteBuffer bb) {
+        byte[] ppseResponse = getBytes(bb);
+        CardApplication[] applications = new CardApplication[bb.getShort() & 0xFFFF];
+        for (int a = 0; a < applications.length; a++) {
+            applications[a] = getApplication(bb);
+            if (applications[a] == null) {
+                return null;
+            }
+        }
+        if (bb.hasRemaining()) {
+            return null;
+        }
+        return new CardResponses(ppseResponse, applications);
+    }
+
+
+    private static CardApplication getApplication(ByteBuffer bb) {
+        byte[] aid = getBytes(bb);
+        byte[] selectResponse = getBytes(bb);
+        Pdol pdol = Pdol.parse(getBytes(bb));
+        byte[] gpoResponse = getBytes(bb);
+        int slots = bb.getShort() & 0xFFFF;
+        int[] responseOffsets = new int[slots];
+        int[] dataOffsets = new int[slots];
+        int[] lengths = new int[slots];
+        for (int i = 0; i < slots; i++) {
+            responseOffsets[i] = bb.getShort() & 0xFFFF;
+            dataOffsets[i] = bb.getShort() & 0xFFFF;
+            lengths[i] = bb.get() & 0xFF;
+            // a slot must never be able to overwrite the status word or read past the
+            // PDOL values
+            if (responseOffsets[i] + lengths[i] > gpoResponse.length - 2
+                    || dataOffsets[i] + lengths[i] > pdol.getDataLength()) {
+                return null;
+            }
+        }
+        GpoTemplate gpo = new GpoTemplate(pdol, gpoResponse, responseOffsets, dataOffsets, lengths);
+        RecordStore.Builder records = new RecordStore.Builder();
+        for (int i = bb.getShort() & 0xFFFF; i > 0; i--) {
+            int sfi = bb.get() & 0xFF;
+            int record = bb.get() & 0xFF;
+            records.put(sfi, record, getBytes(bb));     // throws IllegalArgumentException if out of range
+        }
+        return new CardApplication(aid, selectResponse, gpo, records.build());
+    }
+
+
+    private static void putBytes(ByteBuffer bb, byte[] bytes) {
+        bb.putShort((short) bytes.length);
+        bb.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer bb) {
+        byte[] bytes = new byte[bb.getShort() & 0xFFFF];
+        bb.get(bytes);
+        return bytes;
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,244 @@
+package to.noc.android.swipeyours;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+
+/*
+ *  An ordered collection of cards, one of which is active.
+ *
+ *  Each card is compiled into its finished CardResponses once, when it's added, so switching
+ *  the active card is just an index change: no parsing, regex or hex conversion happens when a
+ *  card is selected or tapped.  Reloading the wallet from storage reuses the compiled responses
+ *  of cards it already holds.
+ *
+ *  All methods are thread safe, and replaceAll() compiles new cards without holding the lock,
+ *  so a reload of thousands of cards on one thread doesn't hold up selecting a card on
+ *  another.  The tap path never calls into the wallet, it only reads the CardResponses that
+ *  were handed to the ApduProcessor on selection.
+ */
+public class CardWallet {
+
+    public static final class Card {
+        private final String swipeData;
+        private final String label;
+        private final CardResponses responses;
+
+        private Card(String swipeData, String label, CardResponses responses) {
+            this.swipeData = swipeData;
+            this.label = label;
+            this.responses = responses;
+        }
+
+        public String getSwipeData() {
+            return swipeData;
+        }
+
+        /*
+         *  Short description for lists: the name from track 1 (if any) and the last 4 digits
+         *  of the card number.
+         */
+        public String getLabel() {
+            return label;
+        }
+
+        public CardResponses getResponses() {
+            return responses;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+
+    private final ArrayList<Card> cards = new ArrayList<>();
+    // Swipe data of every card, so adding thousands of imported cards doesn't need a linear
+    // duplicate search per card
+    private final HashSet<String> swipeDataSet = new HashSet<>();
+    private int activeIndex = -1;
+
+
+    /*
+     *  Compiles and appends a card, returning its index.  Returns the existing index if the card
+     *  is already in the wallet, or -1 if the swipe data has no usable track 2 portion.
+     */
+    public synchronized int add(String swipeData) {
+        if (swipeDataSet.contains(swipeData)) {
+            return indexOf(swipeData);
+        }
+        Card card = compile(swipeData);
+        if (card == null) {
+            return -1;
+        }
+        return add(card);
+    }
+
+
+    /*
+     *  Appends an already compiled card (see CardImporter), returning its index, or the
+     *  existing index if the card is already in the wallet.
+     */
+    public synchronized int add(Card card) {
+        if (!swipeDataSet.add(card.swipeData)) {
+            return indexOf(card.swipeData);
+        }
+        cards.add(card);
+        if (activeIndex < 0) {
+            activeIndex = 0;
+        }
+        return cards.size() - 1;
+    }
+
+
+    /*
+     *  Removes a card.  If it was the active card, the card before it (or the new first card)
+     *  becomes active.
+     */
+    public synchronized void remove(int index) {
+        swipeDataSet.remove(cards.remove(index).swipeData);
+        if (index <= activeIndex) {
+            activeIndex--;
+        }
+        if (activeIndex < 0 && !cards.isEmpty()) {
+            activeIndex = 0;
+        }
+    }
+
+
+    /*
+     *  Makes the card at index active and returns its precompiled responses.
+     */
+    public synchronized CardResponses select(int index) {
+        Card card = cards.get(index);
+        activeIndex = index;
+        return card.responses;
+    }
+
+
+    public synchronized int size() {
+        return cards.size();
+    }
+
+    public synchronized Card get(int index) {
+        return cards.get(index);
+    }
+
+    public synchronized List<Card> list() {
+        return Collections.unmodifiableList(new ArrayList<>(cards));
+    }
+
+    public synchronized int getActiveIndex() {
+        return activeIndex;
+    }
+
+    /*
+     *  Returns null if the wallet is empty.
+     */
+    public synchronized Card getActive() {
+        return activeIndex < 0 ? null : cards.get(activeIndex);
+    }
+
+    public synchronized int indexOf(String swipeData) {
+        for (int i = 0; i < cards.size(); i++) {
+            if (cards.get(i).swipeData.equals(swipeData)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /*
+     *  Replaces the wallet's contents, compiling only cards it didn't already hold.  Unusable
+     *  swipe data is skipped.
+     */
+    public void replaceAll(List<String> swipeDataList, int newActiveIndex) {
+        Map<String, Card> compiled = new HashMap<>();
+        synchronized (this) {
+            for (Card card : cards) {
+                compiled.put(card.swipeData, card);
+            }
+        }
+        List<Card> replacement = new ArrayList<>(swipeDataList.size());
+        HashSet<String> replacementSet = new HashSet<>();
+        for (String swipeData : swipeDataList) {
+            Card card = compiled.get(swipeData);
+            if (card == null) {
+                card = compile(swipeData);
+            }
+            if (card != null && replacementSet.add(swipeData)) {
+                replacement.add(card);
+            }
+        }
+        synchronized (this) {
+            cards.clear();
+            cards.addAll(replacement);
+            swipeDataSet.clear();
+            swipeDataSet.addAll(replacementSet);
+            activeIndex = cards.isEmpty() ? -1 : Math.max(0, Math.min(newActiveIndex, cards.size() - 1));
+        }
+    }
+
+
+    /*
+     *  The wallet's swipe data, one card per line, for storage.  Swipe data never contains
+     *  whitespace (SetCardActivity strips it), so lines can't be ambiguous.
+     */
+    public synchronized String serialize() {
+        StringBuilder sb = new StringBuilder();
+        for (Card card : cards) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(card.swipeData);
+        }
+        return sb.toString();
+    }
+
+    public static List<String> parse(String serialized) {
+        List<String> swipeDataList = new ArrayList<>();
+        if (serialized != null) {
+            for (String line : serialized.split("\n")) {
+                if (!line.isEmpty()) {
+                    swipeDataList.add(line);
+                }
+            }
+        }
+        return swipeDataList;
+    }
+
+
+    private static Card compile(String swipeData) {
+        return compile(swipeData, new TrackScanner());
+    }
+
+    /*
+     *  Compiles a card, or returns null with the reason left in scanner.getResult().  On
+     *  success scanner holds the offsets of the card's tracks.
+     */
+    static Card compile(String swipeData, TrackScanner scanner) {
+        CardResponses responses = ApduProcessor.compileCard(swipeData, scanner);
+        if (responses == null) {
+            return null;
+        }
+        return new Card(swipeData, label(swipeData, scanner), responses);
+    }
+
+
+    /*
+     *  Builds the label from the offsets the scan that compiled the card left behind
+     */
+    private static String label(String swipeData, TrackScanner scanner) {
+        int panEnd = scanner.getPanStart() + scanner.getPanLength();
+        String lastFour = swipeData.substring(panEnd - 4, panEnd);
+        String holder = scanner.getNameStart() < 0 ? ""
+                : swipeData.substring(scanner.getNameStart(), scanner.getNameEnd()).trim();
+        return holder.isEmpty() ? "**** " + lastFour : holder + "  **** " + lastFour;
+    }
+}
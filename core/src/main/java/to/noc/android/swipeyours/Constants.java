@@ -0,0 +1,33 @@
+package to.noc.android.swipeyours;
+
+public class Constants {
+
+    //
+    //  We include a prepaid Visa debit card with no balance so the app has a card
+    //  configured until the user switches to their own card:
+    //
+    public static final String DEFAULT_SWIPE_DATA = "%B4046460664629718^000NETSPEND^161012100000181000000?;4046460664629718=16101210000018100000?";
+
+    //
+    //  Key used to store the user's Swipe data in the app's shared preferences
+    //
+    public static final String SWIPE_DATA_PREF_KEY = "SWIPE_DATA";
+
+    //
+    //  Keys for the card wallet, whose swipe data is kept sealed in a file of its own (see
+    //  WalletStore): the index of the active card, and a count bumped on every save so the
+    //  PaymentService hears about new cards.  The wallet used to be kept in the preferences,
+    //  sealed (SEALED_WALLET_PREF_KEY) or in plaintext (WALLET_PREF_KEY, SWIPE_DATA_PREF_KEY);
+    //  those keys are only read to migrate older installs, and removed once they have been.
+    //
+    public static final String SEALED_WALLET_PREF_KEY = "SEALED_WALLET";
+    public static final String WALLET_PREF_KEY = "WALLET";
+    public static final String ACTIVE_CARD_PREF_KEY = "ACTIVE_CARD";
+    public static final String WALLET_VERSION_PREF_KEY = "WALLET_VERSION";
+
+    //
+    //  Key for the ForegroundScheduler.Policy (stored by name) deciding when MainActivity is
+    //  brought to the front after a tap
+    //
+    public static final String FOREGROUND_POLICY_PREF_KEY = "FOREGROUND_POLICY";
+}
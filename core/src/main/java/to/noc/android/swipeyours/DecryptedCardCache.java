@@ -0,0 +1,103 @@
+package to.noc.android.swipeyours;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/*
+ *  The active card's responses, kept encrypted in a file (a CardSnapshot sealed by an
+ *  EncryptedCardStore) and decrypted at most once per process.
+ *
+ *  get() decrypts and decodes the snapshot the first time it's called, then returns the same
+ *  instance until the card changes; put() seals a new card into the file and caches it as is,
+ *  so the service never decrypts what it was just handed.  Decrypted plaintext only exists
+ *  while the snapshot is being decoded and is zeroed straight after.
+ *
+ *  Cards this cache decrypted can be wiped: once put() or clear() has replaced one, it's zeroed
+ *  when its user calls release() to say nothing answers from it any more.  Cards handed to
+ *  put() belong to their CardWallet and are never wiped.
+ */
+public class DecryptedCardCache {
+
+    private static final String PURPOSE = "snapshot";
+
+    private final EncryptedCardStore store;
+    private final File file;
+
+    private CardResponses cached;
+    // Cards this cache decrypted that haven't been wiped yet
+    private final ArrayList<CardResponses> decrypted = new ArrayList<>(2);
+
+
+    public DecryptedCardCache(EncryptedCardStore store, File file) {
+        this.store = store;
+        this.file = file;
+    }
+
+
+    /*
+     *  Returns the active card, or null if there's no snapshot or it can't be decrypted.
+     */
+    public synchronized CardResponses get() throws IOException, GeneralSecurityException {
+        if (cached == null) {
+            byte[] plaintext = store.read(file, PURPOSE);
+            if (plaintext == null) {
+                return null;
+            }
+            try {
+                cached = CardSnapshot.decode(ByteBuffer.wrap(plaintext));
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+            if (cached != null) {
+                decrypted.add(cached);
+            }
+        }
+        return cached;
+    }
+
+
+    /*
+     *  Seals card into the file and makes it the cached card.
+     */
+    public synchronized void put(CardResponses card) throws IOException, GeneralSecurityException {
+        byte[] plaintext = CardSnapshot.encode(card);
+        try {
+            store.write(file, plaintext, PURPOSE);
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+        cached = card;
+    }
+
+
+    /*
+     *  Forgets the cached card and deletes the file, for when there's no card to snapshot or it
+     *  couldn't be sealed.
+     */
+    public synchronized void clear() {
+        cached = null;
+        file.delete();
+    }
+
+
+    /*
+     *  Called with a card that is no longer being used to answer commands.  If it's a card this
+     *  cache decrypted and has since replaced, its responses are zeroed.
+     */
+    public synchronized void release(CardResponses card) {
+        if (card == null || card == cached) {
+            return;
+        }
+        for (int i = 0; i < decrypted.size(); i++) {
+            if (decrypted.get(i) == card) {
+                decrypted.remove(i).wipe();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package to.noc.android.swipeyours;
+
+import java.util.Locale;
+
+
+/*
+ *  The state of one tap, from the first command until the terminal deselects us or the field
+ *  is lost:
+ *
+ *      IDLE -> PPSE_SELECTED -> APPLICATION_SELECTED -> PROCESSING -> RECORDS_READ
+ *
+ *  A SELECT (of the PPSE or an application) is accepted in any state and starts over from
+ *  there, the way terminals retry.  GPO is only accepted once an application is selected,
+ *  and READ RECORD only after GPO; ApduProcessor answers anything else with 6985 (conditions
+ *  of use not satisfied) without building a response.  Only a command answered with 9000
+ *  moves the session on.  A failed SELECT drops the selected application, so a terminal
+ *  that retries with an AID we don't have can't go on to GPO or READ RECORD against the
+ *  one it selected before: a failed PPSE select goes back to IDLE, a failed application
+ *  select to PPSE_SELECTED if the PPSE was selected, otherwise IDLE.
+ *
+ *  The session also keeps how long it spent in each state, a cheap profile of every tap that
+ *  ApduStats aggregates.  Clock reads only happen when the state changes.
+ *
+ *  HostApduService delivers one session at a time, so each ApduProcessor owns a single
+ *  instance and resets it for the next tap rather than allocating one per tap.  Not thread
+ *  safe: like the rest of the processor it's only used from the thread handling commands.
+ */
+public final class EmvSession {
+
+    private static final SessionState[] STATES = SessionState.values();
+
+    private SessionState state = SessionState.IDLE;
+    private CardApplication application;
+
+    // System.nanoTime() of the first command, 0 before it
+    private long startNanos;
+    private long stateEnteredNanos;
+    private final long[] nanosInState = new long[STATES.length];
+    // Bit i is set if the session was ever in STATES[i]
+    private int visitedStates;
+    private boolean ended;
+    private int transitions;
+    private int rejectedCommands;
+
+
+    /*
+     *  True if command is legal in the current state
+     */
+    boolean accepts(ApduCommand command) {
+        switch (command) {
+            case GPO:
+                return state == SessionState.APPLICATION_SELECTED;
+            case READ_RECORD:
+                return state == SessionState.PROCESSING || state == SessionState.RECORDS_READ;
+            default:
+                return true;
+        }
+    }
+
+    /*
+     *  Called before every command, so time spent idle is measured from the first one
+     */
+    void onCommand() {
+        if (startNanos == 0) {
+            startNanos = stateEnteredNanos = System.nanoTime();
+            visitedStates |= 1 << SessionState.IDLE.ordinal();
+        }
+    }
+
+    /*
+     *  Called when command was answered with 9000
+     */
+    void onSuccess(ApduCommand command) {
+        switch (command) {
+            case PPSE_SELECT:
+                application = null;
+                enter(SessionState.PPSE_SELECTED);
+                break;
+            case AID_SELECT:
+                enter(SessionState.APPLICATION_SELECTED);
+                break;
+            case GPO:
+                enter(SessionState.PROCESSING);
+                break;
+            case READ_RECORD:
+                enter(SessionState.RECORDS_READ);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /*
+     *  Called when command was answered with anything other than 9000
+     */
+    void onFailure(ApduCommand command) {
+        switch (command) {
+            case PPSE_SELECT:
+                application = null;
+                enter(SessionState.IDLE);
+                break;
+            case AID_SELECT:
+                application = null;
+                enter(wasInState(SessionState.PPSE_SELECTED) ? SessionState.PPSE_SELECTED : SessionState.IDLE);
+                break;
+            default:
+                break;
+        }
+    }
+
+    void onRejected() {
+        rejectedCommands++;
+    }
+
+    void setApplication(CardApplication application) {
+        this.application = application;
+    }
+
+    private void enter(SessionState next) {
+        if (next == state) {
+            return;
+        }
+        long now = System.nanoTime();
+        nanosInState[state.ordinal()] += now - stateEnteredNanos;
+        state = next;
+        stateEnteredNanos = now;
+        visitedStates |= 1 << next.ordinal();
+        transitions++;
+    }
+
+
+    /*
+     *  Closes the time spent in the current state.  The session keeps its state and profile
+     *  until reset().
+     */
+    void end(long nanoTime) {
+        if (startNanos != 0 && !ended) {
+            nanosInState[state.ordinal()] += nanoTime - stateEnteredNanos;
+            ended = true;
+        }
+    }
+
+    /*
+     *  Readies the session for the next tap
+     */
+    void reset() {
+        state = SessionState.IDLE;
+        application = null;
+        startNanos = 0;
+        stateEnteredNanos = 0;
+        for (int i = 0; i < nanosInState.length; i++) {
+            nanosInState[i] = 0;
+        }
+        visitedStates = 0;
+        ended = false;
+        transitions = 0;
+        rejectedCommands = 0;
+    }
+
+
+    public SessionState getState() {
+        return state;
+    }
+
+    /*
+     *  The application the terminal selected, or null before a successful SELECT
+     */
+    public CardApplication getApplication() {
+        return application;
+    }
+
+    /*
+     *  True once the session has had its first command
+     */
+    public boolean isStarted() {
+        return startNanos != 0;
+    }
+
+    public boolean wasInState(SessionState state) {
+        return (visitedStates & (1 << state.ordinal())) != 0;
+    }
+
+    /*
+     *  Time spent in state.  Until the session ends, time in the current state counts up to
+     *  now.
+     */
+    public long getNanosInState(SessionState state) {
+        long nanos = nanosInState[state.ordinal()];
+        if (state == this.state && startNanos != 0 && !ended) {
+            nanos += System.nanoTime() - stateEnteredNanos;
+        }
+        return nanos;
+    }
+
+    public int getTransitionCount() {
+        return transitions;
+    }
+
+    /*
+     *  Commands answered with 6985 because they weren't legal in the session's state
+     */
+    public int getRejectedCount() {
+        return rejectedCommands;
+    }
+
+
+    /*
+     *  One line profile of the session: time in each state visited, in microseconds
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(state.getDescription());
+        sb.append(String.format(Locale.US, " after %d transitions, %d rejected:", transitions, rejectedCommands));
+        for (SessionState s : STATES) {
+            if (wasInState(s)) {
+                sb.append(String.format(Locale.US, " %s %.1f us,", s.getDescription(), getNanosInState(s) / 1e3));
+            }
+        }
+        sb.setLength(sb.length() - (sb.charAt(sb.length() - 1) == ',' ? 1 : 0));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,146 @@
+package to.noc.android.swipeyours;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+
+/*
+ *  Authenticated encryption (AES-GCM) of the card data the app keeps on the device: the wallet's
+ *  swipe data and the active card's snapshot.  Keys come from a KeyProvider.
+ *
+ *  Layout of a sealed blob:
+ *
+ *      magic        4 bytes  "SYCE"
+ *      version      u8       VERSION
+ *      IV length    u8
+ *      IV           the cipher's own random IV
+ *      ciphertext   followed by the 16 byte GCM tag
+ *
+ *  The header and a purpose string ("wallet", "snapshot") are authenticated along with the
+ *  data, so one blob can't be passed off as another.  Any change to a blob makes open() throw
+ *  rather than return garbage.
+ *
+ *  Decrypting costs a keystore operation on the phone, so callers decrypt once and keep the
+ *  result (see DecryptedCardCache); nothing here runs on the tap path.
+ */
+public class EncryptedCardStore {
+
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x53594345;    // "SYCE"
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_BITS = 128;
+
+    /*
+     *  Far larger than any real wallet; a file claiming more is corrupt
+     */
+    private static final int MAX_SEALED_LENGTH = 1024 * 1024;
+
+    private final KeyProvider keys;
+
+
+    public EncryptedCardStore(KeyProvider keys) {
+        this.keys = keys;
+    }
+
+
+    public byte[] seal(byte[] plaintext, String purpose) throws GeneralSecurityException {
+        // The provider picks the IV: keystore keys refuse one chosen by the caller
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, keys.getKey());
+        byte[] iv = cipher.getIV();
+
+        ByteBuffer bb = ByteBuffer.allocate(6 + iv.length + cipher.getOutputSize(plaintext.length));
+        bb.putInt(MAGIC);
+        bb.put((byte) VERSION);
+        bb.put((byte) iv.length);
+        bb.put(iv);
+        cipher.updateAAD(bb.array(), 0, 6);
+        cipher.updateAAD(purpose.getBytes(StandardCharsets.US_ASCII));
+        int length = bb.position() + cipher.doFinal(plaintext, 0, plaintext.length, bb.array(), bb.position());
+        return length == bb.capacity() ? bb.array() : Arrays.copyOf(bb.array(), length);
+    }
+
+
+    /*
+     *  Returns the plaintext, which the caller should wipe once it's done with it.  Throws if
+     *  the blob is corrupt, was sealed for another purpose or with another key.
+     */
+    public byte[] open(byte[] sealed, String purpose) throws GeneralSecurityException {
+        if (sealed.length < 6 || ByteBuffer.wrap(sealed).getInt() != MAGIC) {
+            throw new GeneralSecurityException("Not a sealed card store blob");
+        }
+        if ((sealed[4] & 0xFF) != VERSION) {
+            throw new GeneralSecurityException("Unsupported card store version " + (sealed[4] & 0xFF));
+        }
+        int ivLength = sealed[5] & 0xFF;
+        int dataOffset = 6 + ivLength;
+        if (ivLength == 0 || sealed.length < dataOffset + TAG_BITS / 8) {
+            throw new GeneralSecurityException("Truncated card store blob");
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, keys.getKey(), new GCMParameterSpec(TAG_BITS, sealed, 6, ivLength));
+        cipher.updateAAD(sealed, 0, 6);
+        cipher.updateAAD(purpose.getBytes(StandardCharsets.US_ASCII));
+        return cipher.doFinal(sealed, dataOffset, sealed.length - dataOffset);
+    }
+
+
+    /*
+     *  Seals plaintext into file.  The blob is written to a temporary file and renamed over the
+     *  old one, so a reader never sees a partly written blob.
+     */
+    public void write(File file, byte[] plaintext, String purpose) throws IOException, GeneralSecurityException {
+        byte[] sealed = seal(plaintext, purpose);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(sealed);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+    }
+
+
+    /*
+     *  Opens the blob in file.  Returns null if there's no file; throws if it can't be read or
+     *  doesn't open.
+     */
+    public byte[] read(File file, String purpose) throws IOException, GeneralSecurityException {
+        if (!file.exists()) {
+            return null;
+        }
+        byte[] sealed;
+        try (FileInputStream in = new FileInputStream(file)) {
+            long size = in.getChannel().size();
+            if (size > MAX_SEALED_LENGTH) {
+                throw new GeneralSecurityException("Card store file " + file + " is too large");
+            }
+            sealed = new byte[(int) size];
+            int read = 0;
+            while (read < sealed.length) {
+                int n = in.read(sealed, read, sealed.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != sealed.length) {
+                throw new IOException("Card store file " + file + " changed while being read");
+            }
+        }
+        return open(sealed, purpose);
+    }
+}
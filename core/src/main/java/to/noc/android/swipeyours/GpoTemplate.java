@@ -0,0 +1,185 @@
+package to.noc.android.swipeyours;
+
+import java.util.Arrays;
+
+
+/*
+ *  The GET PROCESSING OPTIONS response for a card, compiled when the card is loaded.
+ *
+ *  The response is laid out once, with zero filled patch slots wherever it echoes terminal
+ *  data that the PDOL asked for (for example the unpredictable number, 9F37).  Because the
+ *  terminal's PDOL values arrive at fixed offsets, answering a GPO is just copying each
+ *  slot's bytes from the (already validated) command into a reused copy of the template.
+ *  Templates without slots hand back the same precompiled array every time, so a static
+ *  response costs no more than it did before PDOL handling existed.
+ */
+public final class GpoTemplate {
+
+    private final Pdol pdol;
+    private final byte[] response;
+    private final int[] slotResponseOffsets;
+    private final int[] slotDataOffsets;
+    private final int[] slotLengths;
+
+
+    GpoTemplate(Pdol pdol, byte[] response, int[] slotResponseOffsets,
+                int[] slotDataOffsets, int[] slotLengths) {
+        this.pdol = pdol;
+        this.response = response;
+        this.slotResponseOffsets = slotResponseOffsets;
+        this.slotDataOffsets = slotDataOffsets;
+        this.slotLengths = slotLengths;
+    }
+
+
+    /*
+     *  A precompiled response used as is, for placeholders that have no real GPO response.
+     */
+    static GpoTemplate fixed(Pdol pdol, byte[] response) {
+        return new GpoTemplate(pdol, response, new int[0], new int[0], new int[0]);
+    }
+
+
+    /*
+     *  A response that never depends on the terminal's data: a Format 1 (tag 80) response
+     *  holding the AIP followed by the AFL.
+     */
+    public static GpoTemplate format1(Pdol pdol, byte[] aip, byte[] afl) {
+        byte[] value = Arrays.copyOf(aip, aip.length + afl.length);
+        System.arraycopy(afl, 0, value, aip.length, afl.length);
+        return fixed(pdol, new TlvWriter(TlvWriter.encodedLength(0x80, value.length))
+                .put(0x80, value)
+                .toResponse(0x9000));
+    }
+
+
+    /*
+     *  A Format 2 (tag 77) response that never depends on the terminal's data: the AIP (tag
+     *  82) and the AFL (tag 94).
+     */
+    public static GpoTemplate format2(Pdol pdol, byte[] aip, byte[] afl) {
+        return new Builder(pdol)
+                .fixed(0x82, aip)
+                .fixed(0x94, afl)
+                .build();
+    }
+
+
+    /*
+     *  Builds a Format 2 (tag 77) response whose elements are either fixed values or copies of
+     *  terminal data requested in the PDOL.
+     */
+    public static final class Builder {
+        private final Pdol pdol;
+        private final TlvWriter writer = new TlvWriter(256);
+        private final int[] responseOffsets = new int[16];
+        private final int[] dataOffsets = new int[16];
+        private final int[] lengths = new int[16];
+        private int slots;
+
+        public Builder(Pdol pdol) {
+            this.pdol = pdol;
+            writer.begin(0x77);
+        }
+
+        public Builder fixed(int tag, byte[] value) {
+            writer.put(tag, value);
+            return this;
+        }
+
+        /*
+         *  Adds an element whose value is whatever the terminal sends for the same tag in its
+         *  PDOL data.  Throws IllegalArgumentException if the PDOL doesn't request the tag.
+         */
+        public Builder fromTerminal(int tag) {
+            int index = pdol.indexOf(tag);
+            if (index < 0) {
+                throw new IllegalArgumentException("PDOL does not request tag " + Integer.toHexString(tag));
+            }
+            if (slots == lengths.length) {
+                throw new IllegalStateException("too many patch slots");
+            }
+            int length = pdol.getLength(index);
+            TlvWriter.writeTag(writer.buffer(), tag);
+            TlvWriter.writeLength(writer.buffer(), length);
+            dataOffsets[slots] = pdol.getOffset(index);
+            lengths[slots] = length;
+            responseOffsets[slots++] = writer.position();
+            writer.buffer().put(new byte[length]);
+            return this;
+        }
+
+        public GpoTemplate build() {
+            // Offsets were recorded before end() knew the final template length; if the 77
+            // length grows past one byte, everything inside moves along with it
+            int before = writer.position();
+            writer.end();
+            int shift = writer.position() - before;
+            byte[] response = writer.toResponse(0x9000);
+            int[] responseOffsetsCopy = Arrays.copyOf(responseOffsets, slots);
+            for (int i = 0; i < slots; i++) {
+                responseOffsetsCopy[i] += shift;
+            }
+            return new GpoTemplate(pdol, response, responseOffsetsCopy,
+                    Arrays.copyOf(dataOffsets, slots), Arrays.copyOf(lengths, slots));
+        }
+    }
+
+
+    public Pdol getPdol() {
+        return pdol;
+    }
+
+    /*
+     *  True if the response echoes terminal data and must be patched per command
+     */
+    public boolean hasSlots() {
+        return slotLengths.length > 0;
+    }
+
+    int getSlotCount() {
+        return slotLengths.length;
+    }
+
+    int getSlotResponseOffset(int slot) {
+        return slotResponseOffsets[slot];
+    }
+
+    int getSlotDataOffset(int slot) {
+        return slotDataOffsets[slot];
+    }
+
+    int getSlotLength(int slot) {
+        return slotLengths[slot];
+    }
+
+    public int getResponseLength() {
+        return response.length;
+    }
+
+    /*
+     *  The response with every slot zero filled (the complete response if there are no slots).
+     *  Must not be modified.
+     */
+    public byte[] getTemplate() {
+        return response;
+    }
+
+
+    /*
+     *  Produces the response for a GPO whose PDOL values start at apdu[valuesOffset].  If the
+     *  template has slots, the response is assembled in buffer (which must be
+     *  getResponseLength() long) and buffer is returned; otherwise the precompiled response is
+     *  returned and buffer is untouched.
+     */
+    public byte[] respond(byte[] apdu, int valuesOffset, byte[] buffer) {
+        if (slotLengths.length == 0) {
+            return response;
+        }
+        System.arraycopy(response, 0, buffer, 0, response.length);
+        for (int i = 0; i < slotLengths.length; i++) {
+            System.arraycopy(apdu, valuesOffset + slotDataOffsets[i], buffer, slotResponseOffsets[i], slotLengths[i]);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,19 @@
+package to.noc.android.swipeyours;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.SecretKey;
+
+
+/*
+ *  Supplies the AES key EncryptedCardStore seals card data with.  On the phone the key lives
+ *  in the Android keystore where it can; SoftwareKeyProvider stands in for it everywhere else.
+ */
+public interface KeyProvider {
+
+    /*
+     *  Returns the key, creating it the first time if there isn't one yet.  May be slow the
+     *  first time it's called, so it's kept off the tap path.
+     */
+    SecretKey getKey() throws GeneralSecurityException;
+}
@@ -0,0 +1,115 @@
+package to.noc.android.swipeyours;
+
+import java.util.Arrays;
+
+
+/*
+ *  A parsed PDOL (Processing Options Data Object List): the tags and lengths of the terminal
+ *  data the card asks for in its SELECT response.  The terminal sends the values back in the
+ *  GPO command, concatenated in PDOL order with no tags or lengths, so every value sits at a
+ *  fixed offset that is computed once here.
+ */
+public final class Pdol {
+
+    public static final Pdol EMPTY = new Pdol(new byte[0], new int[0], new int[0], new int[0]);
+
+    private final byte[] encoded;
+    private final int[] tags;
+    private final int[] lengths;
+    private final int[] offsets;
+    private final int dataLength;
+
+
+    private Pdol(byte[] encoded, int[] tags, int[] lengths, int[] offsets) {
+        this.encoded = encoded;
+        this.tags = tags;
+        this.lengths = lengths;
+        this.offsets = offsets;
+        int total = 0;
+        for (int length : lengths) {
+            total += length;
+        }
+        this.dataLength = total;
+    }
+
+
+    /*
+     *  Parses an encoded data object list (tag, length pairs).  Throws IllegalArgumentException
+     *  if it is truncated.
+     */
+    public static Pdol parse(byte[] dol) {
+        int[] tags = new int[dol.length];
+        int[] lengths = new int[dol.length];
+        int[] offsets = new int[dol.length];
+        int count = 0;
+        int offset = 0;
+        int i = 0;
+        while (i < dol.length) {
+            int tag = dol[i++] & 0xFF;
+            if ((tag & 0x1F) == 0x1F) {
+                do {
+                    if (i >= dol.length) {
+                        throw new IllegalArgumentException("PDOL ends inside a tag");
+                    }
+                    tag = (tag << 8) | (dol[i] & 0xFF);
+                } while ((dol[i++] & 0x80) != 0);
+            }
+            if (i >= dol.length) {
+                throw new IllegalArgumentException("PDOL ends before the length of tag " + Integer.toHexString(tag));
+            }
+            tags[count] = tag;
+            lengths[count] = dol[i++] & 0xFF;
+            offsets[count] = offset;
+            offset += lengths[count];
+            count++;
+        }
+        return new Pdol(dol.clone(), Arrays.copyOf(tags, count),
+                Arrays.copyOf(lengths, count), Arrays.copyOf(offsets, count));
+    }
+
+
+    /*
+     *  The encoded list, as it appears in tag 9F38 of the SELECT response
+     */
+    public byte[] getEncoded() {
+        return encoded.clone();
+    }
+
+    public int size() {
+        return tags.length;
+    }
+
+    /*
+     *  Returns the entry index for tag, or -1 if the PDOL doesn't request it.
+     */
+    public int indexOf(int tag) {
+        for (int i = 0; i < tags.length; i++) {
+            if (tags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getTag(int index) {
+        return tags[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    /*
+     *  Offset of the entry's value within the GPO command's PDOL data
+     */
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    /*
+     *  Total length of the values the terminal must send
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+}
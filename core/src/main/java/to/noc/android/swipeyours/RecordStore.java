@@ -0,0 +1,200 @@
+package to.noc.android.swipeyours;
+
+import java.util.Arrays;
+
+
+/*
+ *  An application's records, addressed the way READ RECORD addresses them: by SFI (short
+ *  file identifier, 1 to 30) and record number (1 to 254).  Each record is kept as its
+ *  complete READ RECORD response (70 template and 9000 status word).
+ *
+ *  Records live in one flat array with a row per SFI, each row as long as the highest record
+ *  number in the store, so finding a record is a couple of bounds checks and one array load.
+ *  Cards have a handful of records in a few files, so the unused slots cost next to nothing.
+ *
+ *  The AFL (Application File Locator) the GPO response hands the terminal is generated from
+ *  the records actually present, so the two can't disagree.
+ *
+ *  Instances are immutable, like the CardResponses they belong to.
+ */
+public final class RecordStore {
+
+    public static final int MAX_SFI = 30;
+    public static final int MAX_RECORD = 254;
+
+    public static final RecordStore EMPTY = new Builder().build();
+
+    // The record for SFI s and record number r is at (s - 1) * recordsPerSfi + (r - 1)
+    private final byte[][] records;
+    private final int recordsPerSfi;
+    // Bit s is set if SFI s holds any records
+    private final int sfiMask;
+    private final int size;
+
+
+    private RecordStore(byte[][] records, int recordsPerSfi, int sfiMask, int size) {
+        this.records = records;
+        this.recordsPerSfi = recordsPerSfi;
+        this.sfiMask = sfiMask;
+        this.size = size;
+    }
+
+
+    /*
+     *  Builds a store.  Putting a record that's already there replaces it.
+     */
+    public static final class Builder {
+        private final byte[][][] files = new byte[MAX_SFI + 1][][];
+
+        public Builder() {
+        }
+
+        /*
+         *  Starts from a copy of every record in store
+         */
+        public Builder(RecordStore store) {
+            for (int sfi = 1; sfi <= store.getHighestSfi(); sfi++) {
+                for (int record = 1; record <= store.recordsPerSfi; record++) {
+                    byte[] response = store.get(sfi, record);
+                    if (response != null) {
+                        put(sfi, record, response);
+                    }
+                }
+            }
+        }
+
+        /*
+         *  response is the complete READ RECORD response, status word included, and must not
+         *  be modified afterwards.
+         */
+        public Builder put(int sfi, int record, byte[] response) {
+            if (sfi < 1 || sfi > MAX_SFI || record < 1 || record > MAX_RECORD) {
+                throw new IllegalArgumentException("No record " + record + " in SFI " + sfi);
+            }
+            byte[][] file = files[sfi];
+            if (file == null || file.length < record) {
+                file = files[sfi] = file == null ? new byte[record][] : Arrays.copyOf(file, record);
+            }
+            file[record - 1] = response;
+            return this;
+        }
+
+        public RecordStore build() {
+            int highestSfi = 0;
+            int recordsPerSfi = 0;
+            for (int sfi = 1; sfi <= MAX_SFI; sfi++) {
+                if (files[sfi] != null) {
+                    highestSfi = sfi;
+                    recordsPerSfi = Math.max(recordsPerSfi, files[sfi].length);
+                }
+            }
+            byte[][] records = new byte[highestSfi * recordsPerSfi][];
+            int sfiMask = 0;
+            int size = 0;
+            for (int sfi = 1; sfi <= highestSfi; sfi++) {
+                byte[][] file = files[sfi];
+                if (file == null) {
+                    continue;
+                }
+                for (int i = 0; i < file.length; i++) {
+                    if (file[i] != null) {
+                        records[(sfi - 1) * recordsPerSfi + i] = file[i];
+                        sfiMask |= 1 << sfi;
+                        size++;
+                    }
+                }
+            }
+            return new RecordStore(records, recordsPerSfi, sfiMask, size);
+        }
+    }
+
+
+    /*
+     *  The READ RECORD response for a record, or null if the store doesn't have it.  Doesn't
+     *  allocate.
+     */
+    public byte[] get(int sfi, int record) {
+        int column = record - 1;
+        if (sfi < 1 || column < 0 || column >= recordsPerSfi) {
+            return null;
+        }
+        int index = (sfi - 1) * recordsPerSfi + column;
+        return index < records.length ? records[index] : null;
+    }
+
+    /*
+     *  True if the store has any record in the SFI, so a missing record can be told apart from
+     *  a missing file
+     */
+    public boolean hasSfi(int sfi) {
+        return sfi >= 1 && sfi <= MAX_SFI && (sfiMask & (1 << sfi)) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /*
+     *  The highest SFI holding a record, or 0 if the store is empty
+     */
+    public int getHighestSfi() {
+        return recordsPerSfi == 0 ? 0 : records.length / recordsPerSfi;
+    }
+
+    /*
+     *  The highest record number in any SFI, or 0 if the store is empty
+     */
+    public int getHighestRecord() {
+        return recordsPerSfi;
+    }
+
+
+    /*
+     *  The AFL listing every record: a 4 byte entry (SFI in the top 5 bits, first record, last
+     *  record, and the number of those records used for offline data authentication, always
+     *  zero here) for each run of consecutive records, in SFI order.
+     */
+    public byte[] getAfl() {
+        byte[] afl = new byte[4 * runs()];
+        int i = 0;
+        for (int sfi = 1; sfi <= getHighestSfi(); sfi++) {
+            for (int record = 1; record <= recordsPerSfi; record++) {
+                if (get(sfi, record) == null) {
+                    continue;
+                }
+                int last = record;
+                while (get(sfi, last + 1) != null) {
+                    last++;
+                }
+                afl[i++] = (byte) (sfi << 3);
+                afl[i++] = (byte) record;
+                afl[i++] = (byte) last;
+                afl[i++] = 0;
+                record = last;
+            }
+        }
+        return afl;
+    }
+
+    private int runs() {
+        int runs = 0;
+        for (int i = 0; i < records.length; i++) {
+            if (records[i] != null && (i % recordsPerSfi == 0 || records[i - 1] == null)) {
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+
+    /*
+     *  Zeroes every record.  See CardResponses.wipe().
+     */
+    void wipe() {
+        for (byte[] record : records) {
+            if (record != null) {
+                Arrays.fill(record, (byte) 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package to.noc.android.swipeyours;
+
+/*
+ *  Where a terminal is in an EMV contactless transaction with the card.  A session starts
+ *  IDLE when the field comes up and moves forward as the terminal's commands succeed; see
+ *  EmvSession for which commands each state accepts.
+ */
+public enum SessionState {
+
+    IDLE("idle"),
+    PPSE_SELECTED("PPSE selected"),
+    APPLICATION_SELECTED("application selected"),
+    PROCESSING("processing initiated"),
+    RECORDS_READ("records read");
+
+    private final String description;
+
+    SessionState(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,97 @@
+package to.noc.android.swipeyours;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/*
+ *  A KeyProvider whose AES key is held in ordinary memory: either a key handed to it (tests,
+ *  the benchmarks) or a random key kept in a file.
+ *
+ *  The file only protects card data as well as the app's private storage does, which is all
+ *  phones too old for keystore AES keys (before API 23) can offer.
+ */
+public class SoftwareKeyProvider implements KeyProvider {
+
+    public static final int KEY_LENGTH = 32;
+
+    private final File keyFile;
+    private SecretKey key;
+
+
+    public SoftwareKeyProvider(byte[] key) {
+        this.keyFile = null;
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /*
+     *  Uses the key in keyFile, writing a new random key to it the first time getKey() is
+     *  called if it doesn't exist.
+     */
+    public SoftwareKeyProvider(File keyFile) {
+        this.keyFile = keyFile;
+    }
+
+    public static SoftwareKeyProvider generate() {
+        return new SoftwareKeyProvider(randomKey());
+    }
+
+
+    @Override
+    public synchronized SecretKey getKey() throws GeneralSecurityException {
+        if (key == null) {
+            try {
+                key = new SecretKeySpec(keyFile.exists() ? readKey(keyFile) : writeKey(keyFile), "AES");
+            } catch (IOException e) {
+                throw new GeneralSecurityException("Unable to load key from " + keyFile, e);
+            }
+        }
+        return key;
+    }
+
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    private static byte[] readKey(File file) throws IOException {
+        byte[] key = new byte[KEY_LENGTH];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < KEY_LENGTH) {
+                int n = in.read(key, read, KEY_LENGTH - read);
+                if (n < 0) {
+                    throw new IOException("Key file " + file + " is truncated");
+                }
+                read += n;
+            }
+        }
+        return key;
+    }
+
+    /*
+     *  Written to a temporary file and renamed, so a crash can't leave a truncated key behind
+     */
+    private static byte[] writeKey(File file) throws IOException {
+        byte[] key = randomKey();
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(key);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp + " to " + file);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,217 @@
+package to.noc.android.swipeyours;
+
+/*
+ *  BER-TLV decoder that works as a flyweight cursor over the original byte array.
+ *
+ *  The reader never copies data or creates objects per element: after next() or find()
+ *  succeeds, the current element's tag, value offset and value length are read from the
+ *  cursor and the value bytes are used in place.  One reader can be reset and reused for any
+ *  number of buffers, so parsing command data on the tap path doesn't allocate.
+ *
+ *  Multi-byte tags (up to 4 bytes) and definite lengths up to 3 length bytes are supported.
+ *  '00' padding bytes between elements are skipped, as EMV allows.  Structural problems
+ *  (truncated tags or lengths, values running past the end, indefinite lengths) stop the
+ *  reader and set isMalformed().
+ */
+public final class TlvReader {
+
+    private static final int MAX_DEPTH = 8;
+
+    private byte[] data;
+    private int position;
+    private int end;
+
+    private int tag;
+    private int tagOffset;
+    private int valueOffset;
+    private int valueLength;
+    private boolean malformed;
+
+    // Ends of the enclosing templates while findDeep() is searching inside them
+    private final int[] enclosingEnds = new int[MAX_DEPTH];
+    private int depth;
+
+
+    /*
+     *  Positions the reader before the first element in data[offset, offset + length).
+     */
+    public TlvReader reset(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > data.length - length) {
+            throw new IndexOutOfBoundsException(
+                    "offset=" + offset + " length=" + length + " size=" + data.length);
+        }
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+        this.tag = 0;
+        this.tagOffset = offset;
+        this.valueOffset = offset;
+        this.valueLength = 0;
+        this.malformed = false;
+        this.depth = 0;
+        return this;
+    }
+
+    public TlvReader reset(byte[] data) {
+        return reset(data, 0, data.length);
+    }
+
+    /*
+     *  Positions this reader before the first element inside other's current (constructed)
+     *  element.
+     */
+    public TlvReader resetToValue(TlvReader other) {
+        return reset(other.data, other.valueOffset, other.valueLength);
+    }
+
+
+    /*
+     *  Advances to the next element at the current level.  Returns false at the end of the
+     *  data or if it is malformed.
+     */
+    public boolean next() {
+        if (malformed) {
+            return false;
+        }
+        while (position < end && data[position] == 0x00) {
+            position++;
+        }
+        if (position >= end) {
+            return false;
+        }
+
+        int i = position;
+        int t = data[i++] & 0xFF;
+        if ((t & 0x1F) == 0x1F) {
+            // subsequent tag bytes follow while bit 8 is set
+            int tagBytes = 1;
+            do {
+                if (i >= end || ++tagBytes > 4) {
+                    return fail();
+                }
+                t = (t << 8) | (data[i] & 0xFF);
+            } while ((data[i++] & 0x80) != 0);
+        }
+
+        if (i >= end) {
+            return fail();
+        }
+        int length = data[i++] & 0xFF;
+        if (length > 0x80) {
+            int lengthBytes = length & 0x7F;
+            if (lengthBytes > 3 || lengthBytes > end - i) {
+                return fail();
+            }
+            length = 0;
+            for (int j = 0; j < lengthBytes; j++) {
+                length = (length << 8) | (data[i++] & 0xFF);
+            }
+        } else if (length == 0x80) {
+            // indefinite length isn't used by EMV
+            return fail();
+        }
+        if (length > end - i) {
+            return fail();
+        }
+
+        tagOffset = position;
+        tag = t;
+        valueOffset = i;
+        valueLength = length;
+        position = i + length;
+        return true;
+    }
+
+
+    /*
+     *  Advances through the current level until an element with the passed in tag is found.
+     */
+    public boolean find(int wantedTag) {
+        while (next()) {
+            if (tag == wantedTag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /*
+     *  Like find(), but also searches inside constructed elements, depth first.  On success
+     *  the reader is left positioned inside the template that holds the element.
+     */
+    public boolean findDeep(int wantedTag) {
+        while (true) {
+            if (next()) {
+                if (tag == wantedTag) {
+                    return true;
+                }
+                if (isConstructed() && depth < MAX_DEPTH) {
+                    enclosingEnds[depth++] = end;
+                    position = valueOffset;
+                    end = valueOffset + valueLength;
+                }
+            } else if (!malformed && depth > 0) {
+                position = end;
+                end = enclosingEnds[--depth];
+            } else {
+                return false;
+            }
+        }
+    }
+
+
+    private boolean fail() {
+        malformed = true;
+        return false;
+    }
+
+
+    public int getTag() {
+        return tag;
+    }
+
+    /*
+     *  True if the current element's value is itself a sequence of TLV elements.
+     */
+    public boolean isConstructed() {
+        return (data[tagOffset] & 0x20) != 0;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getValueOffset() {
+        return valueOffset;
+    }
+
+    public int getValueLength() {
+        return valueLength;
+    }
+
+    /*
+     *  Offset just past the current element's value
+     */
+    public int getValueEnd() {
+        return valueOffset + valueLength;
+    }
+
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    /*
+     *  True once every byte of the data has been consumed without error.
+     */
+    public boolean isAtEnd() {
+        return !malformed && depth == 0 && position >= end;
+    }
+
+    /*
+     *  Returns byte i of the current element's value.
+     */
+    public int valueByte(int i) {
+        return data[valueOffset + i] & 0xFF;
+    }
+}
@@ -0,0 +1,217 @@
+package to.noc.android.swipeyours;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/*
+ *  BER-TLV encoder that writes straight into a ByteBuffer.
+ *
+ *  Constructed templates are opened with begin() and closed with end(); their lengths are
+ *  filled in when they're closed, so lengths never have to be counted by hand.  Multi-byte
+ *  tags and lengths are handled automatically.  The writer can be reset onto a new (or the
+ *  same, cleared) buffer and reused.
+ *
+ *      byte[] fci = new TlvWriter(256)
+ *              .begin(0x6F)
+ *                  .put(0x84, aid)
+ *                  .begin(0xA5)
+ *                      .put(0x50, label)
+ *                  .end()
+ *              .end()
+ *              .toResponse(0x9000);
+ */
+public final class TlvWriter {
+
+    private static final int MAX_DEPTH = 8;
+
+    private ByteBuffer buffer;
+    private final int[] openLengthPositions = new int[MAX_DEPTH];
+    private int depth;
+
+
+    public TlvWriter(ByteBuffer buffer) {
+        reset(buffer);
+    }
+
+    public TlvWriter(int capacity) {
+        this(ByteBuffer.allocate(capacity));
+    }
+
+    /*
+     *  Continues writing at buffer's current position.
+     */
+    public TlvWriter reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.depth = 0;
+        return this;
+    }
+
+
+    public static int tagLength(int tag) {
+        if ((tag & 0xFF000000) != 0) {
+            return 4;
+        } else if ((tag & 0xFF0000) != 0) {
+            return 3;
+        } else if ((tag & 0xFF00) != 0) {
+            return 2;
+        }
+        return 1;
+    }
+
+    public static int lengthLength(int length) {
+        if (length < 0x80) {
+            return 1;
+        } else if (length <= 0xFF) {
+            return 2;
+        } else if (length <= 0xFFFF) {
+            return 3;
+        }
+        return 4;
+    }
+
+    /*
+     *  Total encoded size of a primitive element with the passed in value length
+     */
+    public static int encodedLength(int tag, int valueLength) {
+        return tagLength(tag) + lengthLength(valueLength) + valueLength;
+    }
+
+
+    public static void writeTag(ByteBuffer bb, int tag) {
+        for (int shift = (tagLength(tag) - 1) * 8; shift >= 0; shift -= 8) {
+            bb.put((byte) (tag >>> shift));
+        }
+    }
+
+    public static void writeLength(ByteBuffer bb, int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("negative length: " + length);
+        }
+        int lengthBytes = lengthLength(length) - 1;
+        if (lengthBytes > 0) {
+            bb.put((byte) (0x80 | lengthBytes));
+        }
+        for (int shift = (Math.max(lengthBytes, 1) - 1) * 8; shift >= 0; shift -= 8) {
+            bb.put((byte) (length >>> shift));
+        }
+    }
+
+
+    public TlvWriter put(int tag, byte[] value) {
+        return put(tag, value, 0, value.length);
+    }
+
+    public TlvWriter put(int tag, byte[] value, int offset, int length) {
+        writeTag(buffer, tag);
+        writeLength(buffer, length);
+        buffer.put(value, offset, length);
+        return this;
+    }
+
+    /*
+     *  Writes a single byte value
+     */
+    public TlvWriter putByte(int tag, int value) {
+        writeTag(buffer, tag);
+        buffer.put((byte) 1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    /*
+     *  Copies already encoded TLV data (or other raw bytes) into the current template.
+     */
+    public TlvWriter putRaw(byte[] encoded) {
+        buffer.put(encoded);
+        return this;
+    }
+
+
+    /*
+     *  Opens a constructed template.  Everything written until the matching end() becomes
+     *  its value.
+     */
+    public TlvWriter begin(int tag) {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("templates nested too deeply");
+        }
+        writeTag(buffer, tag);
+        openLengthPositions[depth++] = buffer.position();
+        buffer.put((byte) 0);   // length placeholder, widened in end() if needed
+        return this;
+    }
+
+    public TlvWriter end() {
+        if (depth == 0) {
+            throw new IllegalStateException("end() without begin()");
+        }
+        int lengthPosition = openLengthPositions[--depth];
+        int valueStart = lengthPosition + 1;
+        int valueLength = buffer.position() - valueStart;
+
+        int extra = lengthLength(valueLength) - 1;
+        if (extra > 0) {
+            // slide the value along to make room for a multi-byte length
+            if (buffer.remaining() < extra) {
+                throw new BufferOverflowException();
+            }
+            for (int i = buffer.position() - 1; i >= valueStart; i--) {
+                buffer.put(i + extra, buffer.get(i));
+            }
+            buffer.position(buffer.position() + extra);
+        }
+        int end = buffer.position();
+        buffer.position(lengthPosition);
+        writeLength(buffer, valueLength);
+        buffer.position(end);
+        return this;
+    }
+
+
+    /*
+     *  The underlying buffer, for writing a value in place between begin() and end()
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /*
+     *  Number of bytes written since the buffer's start
+     */
+    public int position() {
+        return buffer.position();
+    }
+
+    /*
+     *  Copies everything in the buffer up to the current position.
+     */
+    public byte[] toByteArray() {
+        checkClosed();
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return bytes;
+    }
+
+    /*
+     *  Copies the encoded data followed by the 2 byte ISO 7816 status word, ready to be
+     *  returned as a response APDU.
+     */
+    public byte[] toResponse(int statusWord) {
+        byte[] body = toByteArray();
+        byte[] response = Arrays.copyOf(body, body.length + 2);
+        response[body.length] = (byte) (statusWord >> 8);
+        response[body.length + 1] = (byte) statusWord;
+        return response;
+    }
+
+
+    private void checkClosed() {
+        if (depth != 0) {
+            throw new IllegalStateException(depth + " template(s) still open");
+        }
+    }
+}
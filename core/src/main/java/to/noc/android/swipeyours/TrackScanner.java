@@ -0,0 +1,315 @@
+package to.noc.android.swipeyours;
+
+import java.nio.ByteBuffer;
+
+
+/*
+ *  Single pass scanner for pasted magnetic stripe data.
+ *
+ *  Every character is examined exactly once, left to right, by a small state machine that
+ *  looks for a track 1 (format B) name and a track 2:
+ *
+ *      %B<PAN>^<NAME>^...                  track 1, only the name is used
+ *      ;<PAN>=<YYMM><service code...>?     track 2
+ *
+ *  The first complete, valid track 2 wins.  While a track 2 candidate is being scanned its
+ *  digits are packed as BCD straight into the caller's buffer, with the '=' field separator
+ *  written as a D nibble and an odd final digit padded with F, which is exactly the value of
+ *  EMV tag 57 (Track 2 Equivalent Data).  If the candidate turns out to be invalid, the buffer
+ *  is rewound and scanning carries on from the same character, so stray characters from noisy
+ *  readers are skipped without any backtracking.
+ *
+ *  Nothing is allocated and nothing is copied out of the input; the results are offsets into
+ *  it.  An instance can be reused for any number of scans, but not concurrently.
+ */
+public final class TrackScanner {
+
+    public static final int MIN_PAN_LENGTH = 12;
+    public static final int MAX_PAN_LENGTH = 19;
+
+    /*
+     *  Digits allowed after the field separator: expiry, service code and discretionary data
+     */
+    public static final int MAX_TRACK_2_DATA_LENGTH = 128;
+
+    /*
+     *  Largest packed track 2 ever written: PAN, separator and data digits, 2 per byte
+     */
+    public static final int MAX_TRACK_2_BYTES = (MAX_PAN_LENGTH + 1 + MAX_TRACK_2_DATA_LENGTH + 1) / 2;
+
+
+    /*
+     *  Outcome of a scan.  When no valid track 2 is found, the result describes the candidate
+     *  that got furthest, since that's almost always the one the user meant.
+     */
+    public enum Result {
+        OK("Valid track 2 found"),
+        NO_TRACK_2("No track 2 data (;<card number>=<data>?) found"),
+        MALFORMED_TRACK_2("Track 2 has characters other than digits, or no '?' end sentinel"),
+        INVALID_PAN_LENGTH("Card number must be " + MIN_PAN_LENGTH + " to " + MAX_PAN_LENGTH + " digits"),
+        INVALID_EXPIRY("Expiration date must be 4 digits (YYMM) with a month of 01 to 12"),
+        TRACK_2_TOO_LONG("Track 2 has more than " + MAX_TRACK_2_DATA_LENGTH + " digits after the card number");
+
+        private final String description;
+
+        Result(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+
+    private static final int IDLE = 0;
+    private static final int TRACK_1_FORMAT = 1;
+    private static final int TRACK_1_PAN = 2;
+    private static final int TRACK_1_NAME = 3;
+    private static final int TRACK_2_PAN = 4;
+    private static final int TRACK_2_DATA = 5;
+
+    private ByteBuffer out;
+    private int outStart;
+    private int pendingNibble;
+
+    private int panStart;
+    private int panLength;
+    private int dataLength;
+    private int expiry;
+    private int serviceCode;
+    private int nameStart;
+    private int nameEnd;
+    private int track2Start;
+    private int track2End;
+    private Result result = Result.NO_TRACK_2;
+
+
+    /*
+     *  Scans swipeData for a track 2, writing its packed BCD form to out (which must have at
+     *  least MAX_TRACK_2_BYTES remaining) if out isn't null.  On anything but OK, out's
+     *  position is left where it was.
+     */
+    public Result scan(CharSequence swipeData, ByteBuffer out) {
+        result = scanTracks(swipeData, out);
+        return result;
+    }
+
+    private Result scanTracks(CharSequence swipeData, ByteBuffer out) {
+        this.out = out;
+        this.outStart = out != null ? out.position() : 0;
+        pendingNibble = -1;
+        nameStart = nameEnd = -1;
+        track2Start = track2End = -1;
+        Result furthest = Result.NO_TRACK_2;
+
+        int state = IDLE;
+        int track1PanLength = 0;
+        int candidateNameStart = 0;
+        int length = swipeData.length();
+        int i = 0;
+        while (i < length) {
+            char c = swipeData.charAt(i);
+            boolean digit = c >= '0' && c <= '9';
+            switch (state) {
+                case TRACK_1_FORMAT:
+                    if (c == 'B') {
+                        track1PanLength = 0;
+                        state = TRACK_1_PAN;
+                        i++;
+                        continue;
+                    }
+                    break;
+                case TRACK_1_PAN:
+                    if (digit && track1PanLength < MAX_PAN_LENGTH) {
+                        track1PanLength++;
+                        i++;
+                        continue;
+                    }
+                    if (c == '^' && track1PanLength > 0) {
+                        candidateNameStart = i + 1;
+                        state = TRACK_1_NAME;
+                        i++;
+                        continue;
+                    }
+                    break;
+                case TRACK_1_NAME:
+                    if (c == '^') {
+                        nameStart = candidateNameStart;
+                        nameEnd = i;
+                        state = IDLE;
+                        i++;
+                        continue;
+                    }
+                    if (c != ';' && c != '%') {
+                        i++;
+                        continue;
+                    }
+                    break;
+                case TRACK_2_PAN:
+                    if (digit && panLength < MAX_PAN_LENGTH) {
+                        panLength++;
+                        putNibble(c - '0');
+                        i++;
+                        continue;
+                    }
+                    if (c == '=') {
+                        if (panLength < MIN_PAN_LENGTH) {
+                            furthest = further(furthest, Result.INVALID_PAN_LENGTH);
+                            break;
+                        }
+                        putNibble(0x0D);
+                        dataLength = 0;
+                        expiry = 0;
+                        serviceCode = 0;
+                        state = TRACK_2_DATA;
+                        i++;
+                        continue;
+                    }
+                    furthest = further(furthest, digit ? Result.INVALID_PAN_LENGTH : Result.MALFORMED_TRACK_2);
+                    break;
+                case TRACK_2_DATA:
+                    if (digit) {
+                        if (dataLength == MAX_TRACK_2_DATA_LENGTH) {
+                            furthest = further(furthest, Result.TRACK_2_TOO_LONG);
+                            break;
+                        }
+                        int value = c - '0';
+                        if (dataLength < 4) {
+                            expiry = expiry * 10 + value;
+                        } else if (dataLength < 7) {
+                            serviceCode = serviceCode * 10 + value;
+                        }
+                        dataLength++;
+                        putNibble(value);
+                        i++;
+                        continue;
+                    }
+                    if (c == '?') {
+                        int month = expiry % 100;
+                        if (dataLength < 4 || month < 1 || month > 12) {
+                            furthest = further(furthest, Result.INVALID_EXPIRY);
+                            break;
+                        }
+                        if (pendingNibble >= 0) {
+                            putNibble(0x0F);
+                        }
+                        track2End = i + 1;
+                        return Result.OK;
+                    }
+                    furthest = further(furthest, Result.MALFORMED_TRACK_2);
+                    break;
+                default:
+                    break;
+            }
+
+            // Either idle or the current candidate just failed: abandon it and look at this
+            // character again as the possible start of something new
+            if (state >= TRACK_2_PAN) {
+                rewind();
+            }
+            state = start(c, i);
+            i++;
+        }
+
+        if (state >= TRACK_2_PAN) {
+            furthest = further(furthest, Result.MALFORMED_TRACK_2);
+            rewind();
+        }
+        track2Start = -1;
+        return furthest;
+    }
+
+
+    private int start(char c, int i) {
+        if (c == '%') {
+            return TRACK_1_FORMAT;
+        }
+        if (c == ';') {
+            panStart = i + 1;
+            panLength = 0;
+            track2Start = i;
+            return TRACK_2_PAN;
+        }
+        return IDLE;
+    }
+
+
+    private void putNibble(int nibble) {
+        if (out == null) {
+            return;
+        }
+        if (pendingNibble < 0) {
+            pendingNibble = nibble;
+        } else {
+            out.put((byte) (pendingNibble << 4 | nibble));
+            pendingNibble = -1;
+        }
+    }
+
+    private void rewind() {
+        pendingNibble = -1;
+        if (out != null) {
+            out.position(outStart);
+        }
+    }
+
+    private static Result further(Result a, Result b) {
+        return b.ordinal() > a.ordinal() ? b : a;
+    }
+
+
+    /*
+     *  The result of the last scan
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /*
+     *  Offset of the card number within the scanned data (after an OK scan)
+     */
+    public int getPanStart() {
+        return panStart;
+    }
+
+    public int getPanLength() {
+        return panLength;
+    }
+
+    /*
+     *  Expiration date from track 2 as the number YYMM
+     */
+    public int getExpiry() {
+        return expiry;
+    }
+
+    /*
+     *  The 3 digit service code, or -1 if track 2 ends before it
+     */
+    public int getServiceCode() {
+        return dataLength >= 7 ? serviceCode : -1;
+    }
+
+    /*
+     *  Offsets of the whole track 2, start sentinel through end sentinel (after an OK scan)
+     */
+    public int getTrack2Start() {
+        return track2Start;
+    }
+
+    public int getTrack2End() {
+        return track2End;
+    }
+
+    /*
+     *  Offsets of the track 1 name field, or -1 if no track 1 name was found before track 2
+     */
+    public int getNameStart() {
+        return nameStart;
+    }
+
+    public int getNameEnd() {
+        return nameEnd;
+    }
+}
@@ -0,0 +1,282 @@
+package to.noc.android.swipeyours;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/*
+ *  Fixed memory frequency counts of the command APDUs we can't answer, so the commands
+ *  terminals send most often can be found however many distinct junk APDUs arrive.
+ *
+ *  Each command is normalized (logical channel bits cleared from CLA, Lc and Le dropped) and
+ *  hashed to 64 bits.  A count-min sketch of DEPTH rows by WIDTH counters estimates how often
+ *  each hash was seen; the estimate never undercounts and overcounts by at most about
+ *  e / WIDTH of the total.  Alongside it, the TOP_K commands with the highest estimates are
+ *  kept with their (truncated) bytes for display.
+ *
+ *  Recording is lock free: counters are atomic increments, and the heavy hitter slots are
+ *  swapped with compare and set.  It only allocates when a command enters the heavy hitter
+ *  list.  Memory is fixed at construction: WIDTH * DEPTH ints plus TOP_K entries of at most
+ *  MAX_KEY_LENGTH bytes each.
+ */
+public class UnhandledApduSketch {
+
+    public static final int WIDTH = 2048;
+    public static final int DEPTH = 4;
+    public static final int TOP_K = 16;
+
+    /*
+     *  Normalized bytes kept per heavy hitter: the header and the first 32 data bytes
+     */
+    public static final int MAX_KEY_LENGTH = 4 + 32;
+
+
+    /*
+     *  One heavy hitter.  The key and hash never change; the count only goes up.
+     */
+    public static final class Entry {
+        private final long hash;
+        private final byte[] key;
+        private final int keyLength;
+        private final AtomicLong count;
+
+        private Entry(long hash, byte[] key, int keyLength, long count) {
+            this.hash = hash;
+            this.key = key;
+            this.keyLength = keyLength;
+            this.count = new AtomicLong(count);
+        }
+
+        /*
+         *  The normalized command, truncated to MAX_KEY_LENGTH bytes
+         */
+        public byte[] getKey() {
+            return key.clone();
+        }
+
+        /*
+         *  Length of the normalized command before truncation
+         */
+        public int getKeyLength() {
+            return keyLength;
+        }
+
+        /*
+         *  Estimated number of times the command was seen
+         */
+        public long getCount() {
+            return count.get();
+        }
+    }
+
+
+    private final AtomicIntegerArray counters = new AtomicIntegerArray(WIDTH * DEPTH);
+    private final AtomicReferenceArray<Entry> heavyHitters = new AtomicReferenceArray<>(TOP_K);
+    private final AtomicLong total = new AtomicLong();
+
+
+    /*
+     *  Counts one unhandled command APDU.  Safe to call from any number of threads.
+     */
+    public void record(byte[] apdu) {
+        if (apdu == null || apdu.length < 4) {
+            return;
+        }
+        total.incrementAndGet();
+        int dataOffset = dataOffset(apdu);
+        long hash = hash(apdu, dataOffset);
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.incrementAndGet(counterIndex(hash, row)));
+        }
+        offerHeavyHitter(apdu, dataOffset, hash, estimate);
+    }
+
+
+    private void offerHeavyHitter(byte[] apdu, int dataOffset, long hash, long estimate) {
+        int smallest = -1;
+        long smallestCount = Long.MAX_VALUE;
+        for (int i = 0; i < TOP_K; i++) {
+            Entry entry = heavyHitters.get(i);
+            if (entry == null) {
+                if (smallestCount > 0) {
+                    smallest = i;
+                    smallestCount = 0;
+                }
+                continue;
+            }
+            if (entry.hash == hash) {
+                raise(entry.count, estimate);
+                return;
+            }
+            long count = entry.count.get();
+            if (count < smallestCount) {
+                smallest = i;
+                smallestCount = count;
+            }
+        }
+        if (estimate > smallestCount) {
+            Entry old = heavyHitters.get(smallest);
+            if (old == null || old.count.get() == smallestCount) {
+                // Losing the race to another thread only drops this command from the list;
+                // the sketch has already counted it
+                heavyHitters.compareAndSet(smallest, old, newEntry(apdu, dataOffset, hash, estimate));
+            }
+        }
+    }
+
+    private static void raise(AtomicLong count, long estimate) {
+        long current;
+        while ((current = count.get()) < estimate) {
+            if (count.compareAndSet(current, estimate)) {
+                return;
+            }
+        }
+    }
+
+
+    /*
+     *  Estimated number of times the passed in command (or any command that normalizes the
+     *  same way) has been recorded
+     */
+    public long estimate(byte[] apdu) {
+        if (apdu == null || apdu.length < 4) {
+            return 0;
+        }
+        long hash = hash(apdu, dataOffset(apdu));
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, counters.get(counterIndex(hash, row)));
+        }
+        return estimate;
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    /*
+     *  The heavy hitters, most frequent first
+     */
+    public List<Entry> getHeavyHitters() {
+        List<Entry> entries = new ArrayList<>(TOP_K);
+        for (int i = 0; i < TOP_K; i++) {
+            Entry entry = heavyHitters.get(i);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                long countA = a.getCount();
+                long countB = b.getCount();
+                return countA < countB ? 1 : countA == countB ? 0 : -1;
+            }
+        });
+        return entries;
+    }
+
+
+    public void reset() {
+        for (int i = 0; i < TOP_K; i++) {
+            heavyHitters.set(i, null);
+        }
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        total.set(0);
+    }
+
+
+    /*
+     *  Plain text report of the heavy hitters, suitable for display or export.  Commands are
+     *  shown normalized, with "..." where they were truncated.
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "unhandled commands: %d%n%n", total.get()));
+        sb.append(String.format(Locale.US, "%9s  %s%n", "count", "command (CLA INS P1 P2 data)"));
+        for (Entry entry : getHeavyHitters()) {
+            sb.append(String.format(Locale.US, "%9d  %s%s%n", entry.getCount(),
+                    Util.byteArrayToHex(entry.key),
+                    entry.keyLength > entry.key.length ? "..." : ""));
+        }
+        return sb.toString();
+    }
+
+
+    /*
+     *  Offset where the command data starts, or apdu.length if the command has none.  Data is
+     *  only recognized in a short APDU whose Lc matches its length; anything else after the
+     *  header (an extended length APDU, or junk) is kept whole so it isn't merged with
+     *  well formed commands.
+     */
+    private static int dataOffset(byte[] apdu) {
+        int length = apdu.length;
+        if (length <= 5) {
+            return length;      // header only, or header and Le
+        }
+        int lc = apdu[4] & 0xFF;
+        return lc > 0 && (length == 5 + lc || length == 6 + lc) ? 5 : 4;
+    }
+
+    /*
+     *  CLA with the logical channel number cleared: bits 1-2 for the first interindustry
+     *  values and their proprietary equivalents, bits 1-4 for further interindustry values
+     */
+    private static int normalizedCla(byte[] apdu) {
+        int cla = apdu[0] & 0xFF;
+        return (cla & 0x40) != 0 ? cla & 0xF0 : cla & 0xFC;
+    }
+
+    private static int dataEnd(byte[] apdu, int dataOffset) {
+        return dataOffset == 5 && apdu.length > 5 ? 5 + (apdu[4] & 0xFF) : apdu.length;
+    }
+
+    /*
+     *  Each row takes its column from its own 16 bits of the hash, so two commands only share
+     *  a counter in every row if 44 bits of their hashes match
+     */
+    private static int counterIndex(long hash, int row) {
+        return row * WIDTH + ((int) (hash >>> (row * 16)) & (WIDTH - 1));
+    }
+
+    /*
+     *  64 bit FNV-1a of the normalized command, with a final mix so every bit of the result
+     *  depends on every input byte
+     */
+    private static long hash(byte[] apdu, int dataOffset) {
+        long h = 0xCBF29CE484222325L;
+        h = (h ^ normalizedCla(apdu)) * 0x100000001B3L;
+        for (int i = 1; i < 4; i++) {
+            h = (h ^ (apdu[i] & 0xFF)) * 0x100000001B3L;
+        }
+        for (int i = dataOffset, end = dataEnd(apdu, dataOffset); i < end; i++) {
+            h = (h ^ (apdu[i] & 0xFF)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static Entry newEntry(byte[] apdu, int dataOffset, long hash, long count) {
+        int dataEnd = dataEnd(apdu, dataOffset);
+        int keyLength = 4 + dataEnd - dataOffset;
+        byte[] key = new byte[Math.min(keyLength, MAX_KEY_LENGTH)];
+        key[0] = (byte) normalizedCla(apdu);
+        key[1] = apdu[1];
+        key[2] = apdu[2];
+        key[3] = apdu[3];
+        System.arraycopy(apdu, dataOffset, key, 4, key.length - 4);
+        return new Entry(hash, key, keyLength, count);
+    }
+}
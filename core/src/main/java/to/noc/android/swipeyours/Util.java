@@ -0,0 +1,172 @@
+package to.noc.android.swipeyours;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+
+/*
+ *  Table driven hex encoding and decoding.  Besides the convenience methods that return new
+ *  Strings and arrays, each direction has variants that write into a caller supplied buffer so
+ *  hot paths can convert without creating garbage.
+ */
+public class Util {
+
+    private static final char[] UPPER_HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] LOWER_HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Maps an ASCII character to its nibble value, or -1 if it isn't a hex digit
+    private static final byte[] NIBBLES = new byte[128];
+
+    static {
+        for (int i = 0; i < NIBBLES.length; i++) {
+            NIBBLES[i] = -1;
+        }
+        for (int i = 0; i < 16; i++) {
+            NIBBLES[UPPER_HEX_DIGITS[i]] = (byte) i;
+            NIBBLES[LOWER_HEX_DIGITS[i]] = (byte) i;
+        }
+    }
+
+
+    public static String byteArrayToHex(byte[] bytes) {
+        return byteArrayToHex(bytes, 0, bytes.length);
+    }
+
+    public static String byteArrayToHex(byte[] bytes, int offset, int length) {
+        char[] hex = new char[length * 2];
+        encodeHex(bytes, offset, length, hex, 0, true);
+        return new String(hex);
+    }
+
+    /*
+     *  Strict: throws IllegalArgumentException if the string has an odd length or contains
+     *  anything other than hex digits.
+     */
+    public static byte[] hexToByteArray(String hexString) {
+        byte[] data = new byte[checkedHexLength(hexString.length()) / 2];
+        decodeHex(hexString, 0, hexString.length(), data, 0);
+        return data;
+    }
+
+
+    /*
+     *  Writes 2 hex characters per input byte into dst starting at dstOffset.  Returns the
+     *  offset in dst just past the last character written.
+     */
+    public static int encodeHex(byte[] src, int offset, int length,
+                                char[] dst, int dstOffset, boolean upperCase) {
+        checkRange(src.length, offset, length);
+        checkRange(dst.length, dstOffset, length * 2);
+        char[] digits = upperCase ? UPPER_HEX_DIGITS : LOWER_HEX_DIGITS;
+        int j = dstOffset;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = src[i];
+            dst[j++] = digits[(b >> 4) & 0x0F];
+            dst[j++] = digits[b & 0x0F];
+        }
+        return j;
+    }
+
+    public static StringBuilder appendHex(StringBuilder sb, byte[] src, int offset, int length,
+                                          boolean upperCase) {
+        checkRange(src.length, offset, length);
+        char[] digits = upperCase ? UPPER_HEX_DIGITS : LOWER_HEX_DIGITS;
+        sb.ensureCapacity(sb.length() + length * 2);
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = src[i];
+            sb.append(digits[(b >> 4) & 0x0F]).append(digits[b & 0x0F]);
+        }
+        return sb;
+    }
+
+    /*
+     *  Writes at dst's current position.  Throws java.nio.BufferOverflowException, leaving dst
+     *  unchanged, if it doesn't have room for every character.
+     */
+    public static CharBuffer encodeHex(byte[] src, int offset, int length, CharBuffer dst,
+                                       boolean upperCase) {
+        checkRange(src.length, offset, length);
+        if (dst.remaining() < length * 2) {
+            throw new BufferOverflowException();
+        }
+        char[] digits = upperCase ? UPPER_HEX_DIGITS : LOWER_HEX_DIGITS;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = src[i];
+            dst.put(digits[(b >> 4) & 0x0F]).put(digits[b & 0x0F]);
+        }
+        return dst;
+    }
+
+
+    /*
+     *  Decodes the hex characters in hex[start, end) into dst starting at dstOffset and returns
+     *  the number of bytes written.  Either case of hex digit is accepted.  Throws
+     *  IllegalArgumentException, leaving dst unchanged, on an odd number of characters or a
+     *  non-hex character.
+     */
+    public static int decodeHex(CharSequence hex, int start, int end, byte[] dst, int dstOffset) {
+        checkRange(hex.length(), start, end - start);
+        int byteLength = checkedHexLength(end - start) / 2;
+        checkRange(dst.length, dstOffset, byteLength);
+        checkHexDigits(hex, start, end);
+        int j = dstOffset;
+        for (int i = start; i < end; i += 2) {
+            dst[j++] = (byte) (NIBBLES[hex.charAt(i)] << 4 | NIBBLES[hex.charAt(i + 1)]);
+        }
+        return byteLength;
+    }
+
+    /*
+     *  Decodes into dst at its current position.  Throws java.nio.BufferOverflowException if
+     *  it doesn't have room for the decoded bytes, or IllegalArgumentException as above, in
+     *  either case leaving dst's contents and position unchanged.
+     */
+    public static int decodeHex(CharSequence hex, int start, int end, ByteBuffer dst) {
+        checkRange(hex.length(), start, end - start);
+        int byteLength = checkedHexLength(end - start) / 2;
+        if (dst.remaining() < byteLength) {
+            throw new BufferOverflowException();
+        }
+        checkHexDigits(hex, start, end);
+        for (int i = start; i < end; i += 2) {
+            dst.put((byte) (NIBBLES[hex.charAt(i)] << 4 | NIBBLES[hex.charAt(i + 1)]));
+        }
+        return byteLength;
+    }
+
+    /*
+     *  Returns the value (0-15) of a single hex digit, or -1 if it isn't one.
+     */
+    public static int hexDigitValue(char c) {
+        return c < NIBBLES.length ? NIBBLES[c] : -1;
+    }
+
+
+    /*
+     *  Checks every character is a hex digit before anything is written, so a bad one doesn't
+     *  leave the destination half decoded
+     */
+    private static void checkHexDigits(CharSequence hex, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = hex.charAt(i);
+            if (hexDigitValue(c) < 0) {
+                throw new IllegalArgumentException("Invalid hex character '" + c + "' at index " + i);
+            }
+        }
+    }
+
+    private static int checkedHexLength(int length) {
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Hex data has an odd number of characters: " + length);
+        }
+        return length;
+    }
+
+    private static void checkRange(int arrayLength, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > arrayLength - length) {
+            throw new IndexOutOfBoundsException(
+                    "offset=" + offset + " length=" + length + " size=" + arrayLength);
+        }
+    }
+}
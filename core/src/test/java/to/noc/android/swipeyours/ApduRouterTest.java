@@ -0,0 +1,86 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class ApduRouterTest {
+
+    private static final byte[] AID = Util.hexToByteArray("A0000000031010");
+
+    private static final byte[] EXACT = {1};
+    private static final byte[] ANY_DATA = {2};
+    private static final byte[] ANY_PARAMS = {3};
+
+    private final ApduRouter router = new ApduRouter()
+            .register(0x00, 0xA4, 0x04, 0x00, AID, ApduCommand.AID_SELECT, ApduRouter.fixedResponse(EXACT))
+            .register(0x00, 0xA4, 0x04, 0x00, null, ApduCommand.UNHANDLED, ApduRouter.fixedResponse(ANY_DATA))
+            .registerAnyParams(0x00, 0xB2, ApduCommand.READ_RECORD, ApduRouter.fixedResponse(ANY_PARAMS));
+
+
+    private byte[] route(String apduHex) {
+        byte[] apdu = Util.hexToByteArray(apduHex);
+        ApduRouter.Route route = router.find(apdu);
+        return route == null ? null : route.handler.handle(apdu);
+    }
+
+
+    @Test
+    public void exactDataRouteComesFirst() {
+        assertSame(EXACT, route("00A4040007A0000000031010"));
+        assertSame(EXACT, route("00A4040007A000000003101000"));
+    }
+
+    @Test
+    public void otherDataFallsToTheRouteWithoutData() {
+        assertSame(ANY_DATA, route("00A4040007A000000004101000"));
+        // the right AID with bytes after Le, or an Lc that doesn't cover it, isn't an exact match
+        assertSame(ANY_DATA, route("00A4040007A00000000310100000"));
+        assertSame(ANY_DATA, route("00A4040006A0000000031010"));
+        assertSame(ANY_DATA, route("00A40400"));
+    }
+
+    @Test
+    public void anyParamsRouteTakesEveryP1P2() {
+        assertSame(ANY_PARAMS, route("00B2010C00"));
+        assertSame(ANY_PARAMS, route("00B2FEF4"));
+    }
+
+    @Test
+    public void unregisteredHeadersGetNull() {
+        assertNull(route("80A8000000"));
+        assertNull(route("00A4000C00"));
+        assertNull(route("01B2010C00"));
+    }
+
+    @Test
+    public void headersShorterThanFourBytesGetNull() {
+        assertNull(router.find(null));
+        assertNull(router.find(new byte[0]));
+        assertNull(router.find(Util.hexToByteArray("00B201")));
+    }
+
+    @Test
+    public void growsUntilCollidingHeadersSeparate() {
+        // Far more headers than the initial table, so some of them share a hash slot at
+        // every size until the table has grown enough to split them
+        ApduRouter router = new ApduRouter();
+        byte[][] responses = new byte[256][];
+        for (int ins = 0; ins < 256; ins++) {
+            responses[ins] = new byte[]{(byte) ins};
+            router.register(0x80, ins, 0x00, 0x00, null, ApduCommand.UNHANDLED, ApduRouter.fixedResponse(responses[ins]));
+        }
+        for (int ins = 0; ins < 256; ins++) {
+            byte[] apdu = {(byte) 0x80, (byte) ins, 0x00, 0x00};
+            ApduRouter.Route route = router.find(apdu);
+            assertNotNull("INS " + ins, route);
+            assertSame("INS " + ins, responses[ins], route.handler.handle(apdu));
+        }
+        assertNull(router.find(new byte[]{(byte) 0x80, 0x00, 0x00, 0x01}));
+        assertEquals(ApduCommand.UNHANDLED, router.find(new byte[]{(byte) 0x80, 0x7F, 0x00, 0x00}).command);
+    }
+}
@@ -0,0 +1,128 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+public class CardSnapshotTest {
+
+    // magic (4), version (2), body length (4), CRC (4)
+    private static final int VERSION_OFFSET = 4;
+    private static final int HEADER_LENGTH = 14;
+
+    private final CardResponses card = ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA);
+
+
+    private static CardResponses decode(byte[] snapshot) {
+        return CardSnapshot.decode(ByteBuffer.wrap(snapshot));
+    }
+
+    private static void assertSameCard(CardResponses expected, CardResponses actual) {
+        assertNotNull(actual);
+        assertArrayEquals(expected.getPpseResponse(), actual.getPpseResponse());
+        assertEquals(expected.getApplicationCount(), actual.getApplicationCount());
+        for (int a = 0; a < expected.getApplicationCount(); a++) {
+            CardApplication want = expected.getApplication(a);
+            CardApplication got = actual.getApplication(a);
+            assertArrayEquals(want.getAid(), got.getAid());
+            assertArrayEquals(want.getSelectResponse(), got.getSelectResponse());
+            assertArrayEquals(want.getGpoTemplate().getPdol().getEncoded(), got.getGpoTemplate().getPdol().getEncoded());
+            assertArrayEquals(want.getGpoTemplate().getTemplate(), got.getGpoTemplate().getTemplate());
+            assertEquals(want.getGpoTemplate().getSlotCount(), got.getGpoTemplate().getSlotCount());
+            RecordStore wantRecords = want.getRecords();
+            RecordStore gotRecords = got.getRecords();
+            assertEquals(wantRecords.size(), gotRecords.size());
+            for (int sfi = 1; sfi <= RecordStore.MAX_SFI; sfi++) {
+                for (int record = 1; record <= RecordStore.MAX_RECORD; record++) {
+                    assertArrayEquals(wantRecords.get(sfi, record), gotRecords.get(sfi, record));
+                }
+            }
+        }
+    }
+
+
+    @Test
+    public void roundTrip() {
+        assertSameCard(card, decode(CardSnapshot.encode(card)));
+    }
+
+    @Test
+    public void roundTripWithPatchSlots() {
+        GpoTemplate patching = new GpoTemplate.Builder(card.getGpoTemplate().getPdol())
+                .fixed(0x82, new byte[]{0x00, (byte) 0x80})
+                .fromTerminal(0x9F66)
+                .build();
+        CardResponses patched = card.withGpoTemplate(patching);
+        CardResponses decoded = decode(CardSnapshot.encode(patched));
+        assertSameCard(patched, decoded);
+        GpoTemplate slots = decoded.getGpoTemplate();
+        assertEquals(1, slots.getSlotCount());
+        assertEquals(patching.getSlotResponseOffset(0), slots.getSlotResponseOffset(0));
+        assertEquals(patching.getSlotDataOffset(0), slots.getSlotDataOffset(0));
+        assertEquals(patching.getSlotLength(0), slots.getSlotLength(0));
+    }
+
+    @Test
+    public void roundTripWithMoreThan255Records() {
+        RecordStore.Builder builder = new RecordStore.Builder();
+        for (int sfi = 1; sfi <= 2; sfi++) {
+            for (int record = 1; record <= 200; record++) {
+                builder.put(sfi, record, new byte[]{0x70, 0x02, (byte) sfi, (byte) record, (byte) 0x90, 0x00});
+            }
+        }
+        CardResponses large = card.withRecords(builder.build());
+        assertEquals(400, large.getPrimaryApplication().getRecords().size());
+        assertSameCard(large, decode(CardSnapshot.encode(large)));
+    }
+
+
+    @Test
+    public void truncatedSnapshotIsRejected() {
+        byte[] snapshot = CardSnapshot.encode(card);
+        for (int length = 0; length < snapshot.length; length++) {
+            assertNull("length " + length, decode(Arrays.copyOf(snapshot, length)));
+        }
+    }
+
+    @Test
+    public void extraBytesAreRejected() {
+        byte[] snapshot = CardSnapshot.encode(card);
+        assertNull(decode(Arrays.copyOf(snapshot, snapshot.length + 1)));
+    }
+
+    @Test
+    public void crcMismatchIsRejected() {
+        byte[] snapshot = CardSnapshot.encode(card);
+        for (int i = HEADER_LENGTH; i < snapshot.length; i++) {
+            byte[] corrupt = snapshot.clone();
+            corrupt[i] ^= 0x01;
+            assertNull("byte " + i, decode(corrupt));
+        }
+        byte[] corrupt = snapshot.clone();
+        corrupt[HEADER_LENGTH - 1] ^= 0x01;
+        assertNull(decode(corrupt));
+    }
+
+    @Test
+    public void versionMismatchIsRejected() {
+        byte[] snapshot = CardSnapshot.encode(card);
+        ByteBuffer.wrap(snapshot).putShort(VERSION_OFFSET, (short) (CardSnapshot.VERSION - 1));
+        assertNull(decode(snapshot));
+        ByteBuffer.wrap(snapshot).putShort(VERSION_OFFSET, (short) (CardSnapshot.VERSION + 1));
+        assertNull(decode(snapshot));
+    }
+
+    @Test
+    public void badMagicIsRejected() {
+        byte[] snapshot = CardSnapshot.encode(card);
+        snapshot[0] ^= 0x01;
+        assertNull(decode(snapshot));
+    }
+}
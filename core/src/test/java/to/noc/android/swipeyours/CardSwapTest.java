@@ -0,0 +1,97 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/*
+ *  Card changes racing taps.  One thread keeps compiling and swapping in two cards, the way
+ *  the preference listener does, while another runs whole sessions on the same processor.
+ *  Every response in a session must come from the card whose application the session
+ *  selected: a response from the other card, or a stale or half built one, fails the test.
+ */
+public class CardSwapTest {
+
+    private static final String CARD_A = ";4046460664629718=16101210000018100000?";
+    private static final String CARD_B = "%B4111111111111111^TEST/CARD^2512101000000000000?;4111111111111111=251210100000000000001?";
+
+    private static final byte[] PPSE_SELECT = Util.hexToByteArray("00A404000E325041592E5359532E444446303100");
+    private static final byte[] AID_SELECT = Util.hexToByteArray("00A4040007A000000003101000");
+    private static final byte[] GPO = Util.hexToByteArray("80A80000048302800000");
+    private static final byte[] READ_RECORD = Util.hexToByteArray("00B2010C00");
+
+    private static final int SESSIONS = 200000;
+
+
+    @Test
+    public void everySessionIsAnsweredByOneCard() throws Exception {
+        final ApduProcessor processor = new ApduProcessor();
+        final CardResponses cardA = ApduProcessor.compileCard(CARD_A);
+        final CardResponses cardB = ApduProcessor.compileCard(CARD_B);
+        assertNotNull(cardA);
+        assertNotNull(cardB);
+        assertTrue("the cards must be told apart by their records",
+                !Arrays.equals(cardA.getReadRecordResponse(), cardB.getReadRecordResponse()));
+        processor.setCard(cardA);
+
+        final AtomicReference<Throwable> swapFailure = new AtomicReference<>();
+        final Thread swapper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean useCardA = false;
+                    while (!Thread.currentThread().isInterrupted()) {
+                        useCardA = !useCardA;
+                        assertTrue(processor.configureReadRecResponse(useCardA ? CARD_A : CARD_B));
+                    }
+                } catch (Throwable t) {
+                    swapFailure.set(t);
+                }
+            }
+        }, "card-swapper");
+        swapper.start();
+
+        int swapsSeen = 0;
+        CardResponses lastCard = null;
+        try {
+            for (int i = 0; i < SESSIONS; i++) {
+                byte[] ppse = processor.process(PPSE_SELECT);
+                byte[] select = processor.process(AID_SELECT);
+                CardApplication application = processor.getSession().getApplication();
+                assertNotNull("session " + i + " selected no application", application);
+
+                // Both cards are Visa, so the directory and SELECT responses are the same
+                assertArrayEquals(cardA.getPpseResponse(), ppse);
+                assertArrayEquals(application.getSelectResponse(), select);
+                assertArrayEquals(application.getGpoTemplate().getTemplate(), processor.process(GPO));
+                byte[] record = processor.process(READ_RECORD);
+                assertArrayEquals("session " + i + " mixed cards", application.getRecords().get(1, 1), record);
+                assertTrue("session " + i + " read an unknown record",
+                        Arrays.equals(record, cardA.getReadRecordResponse())
+                                || Arrays.equals(record, cardB.getReadRecordResponse()));
+
+                processor.onDeactivated(ApduStats.DEACTIVATION_DESELECTED);
+                if (processor.getCard() != lastCard) {
+                    lastCard = processor.getCard();
+                    swapsSeen++;
+                }
+            }
+        } finally {
+            swapper.interrupt();
+            swapper.join();
+        }
+        if (swapFailure.get() != null) {
+            throw new AssertionError(swapFailure.get());
+        }
+        if (swapsSeen < 2) {
+            fail("the card never changed between sessions, so nothing raced");
+        }
+    }
+}
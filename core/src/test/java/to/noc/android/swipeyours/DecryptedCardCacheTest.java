@@ -0,0 +1,145 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class DecryptedCardCacheTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final EncryptedCardStore store = new EncryptedCardStore(SoftwareKeyProvider.generate());
+    private final CardResponses card = ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA);
+
+
+    private File snapshotFile() {
+        return new File(folder.getRoot(), "card.sealed");
+    }
+
+    /*
+     *  A cache in a new process: nothing cached, so get() decrypts the file
+     */
+    private CardResponses decryptFresh() throws Exception {
+        return new DecryptedCardCache(store, snapshotFile()).get();
+    }
+
+    private static boolean isZeroed(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    @Test
+    public void roundTrip() throws Exception {
+        DecryptedCardCache cache = new DecryptedCardCache(store, snapshotFile());
+        assertNull(cache.get());
+        cache.put(card);
+        assertSame(card, cache.get());
+
+        CardResponses decrypted = decryptFresh();
+        assertNotNull(decrypted);
+        assertArrayEquals(card.getPpseResponse(), decrypted.getPpseResponse());
+        assertArrayEquals(card.getReadRecordResponse(), decrypted.getReadRecordResponse());
+    }
+
+    @Test
+    public void decryptsOnlyOnce() throws Exception {
+        new DecryptedCardCache(store, snapshotFile()).put(card);
+        DecryptedCardCache cache = new DecryptedCardCache(store, snapshotFile());
+        CardResponses first = cache.get();
+        assertTrue(snapshotFile().delete());
+        assertSame(first, cache.get());
+    }
+
+    @Test
+    public void snapshotFromAnotherKeyIsRejected() throws Exception {
+        new DecryptedCardCache(new EncryptedCardStore(SoftwareKeyProvider.generate()), snapshotFile()).put(card);
+        try {
+            decryptFresh();
+            fail("snapshot sealed with another key decrypted");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void walletBlobIsNotASnapshot() throws Exception {
+        store.write(snapshotFile(), CardSnapshot.encode(card), "wallet");
+        try {
+            decryptFresh();
+            fail("wallet blob decrypted as a snapshot");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void clearDeletesTheSnapshot() throws Exception {
+        DecryptedCardCache cache = new DecryptedCardCache(store, snapshotFile());
+        cache.put(card);
+        cache.clear();
+        assertFalse(snapshotFile().exists());
+        assertNull(cache.get());
+    }
+
+
+    @Test
+    public void releaseWipesReplacedDecryptedCards() throws Exception {
+        new DecryptedCardCache(store, snapshotFile()).put(card);
+        DecryptedCardCache cache = new DecryptedCardCache(store, snapshotFile());
+        CardResponses decrypted = cache.get();
+        byte[] record = decrypted.getReadRecordResponse();
+
+        // still the cached card, so it stays readable
+        cache.release(decrypted);
+        assertFalse(isZeroed(record));
+
+        cache.put(ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA));
+        assertFalse(isZeroed(record));
+        cache.release(decrypted);
+        assertTrue(isZeroed(record));
+    }
+
+    @Test
+    public void releaseNeverWipesCardsHandedToPut() throws Exception {
+        DecryptedCardCache cache = new DecryptedCardCache(store, snapshotFile());
+        cache.put(card);
+        cache.clear();
+        cache.release(card);
+        assertFalse(isZeroed(card.getReadRecordResponse()));
+    }
+
+    @Test
+    public void wipeZeroesEveryRecord() throws Exception {
+        new DecryptedCardCache(store, snapshotFile()).put(card);
+        CardResponses decrypted = decryptFresh();
+        RecordStore records = decrypted.getPrimaryApplication().getRecords();
+        decrypted.wipe();
+        for (int sfi = 1; sfi <= records.getHighestSfi(); sfi++) {
+            for (int record = 1; record <= records.getHighestRecord(); record++) {
+                byte[] response = records.get(sfi, record);
+                assertTrue(response == null || isZeroed(response));
+            }
+        }
+        assertFalse(isZeroed(card.getReadRecordResponse()));
+        assertTrue(Files.exists(snapshotFile().toPath()));
+    }
+}
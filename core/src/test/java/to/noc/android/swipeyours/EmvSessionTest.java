@@ -0,0 +1,103 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+public class EmvSessionTest {
+
+    private static final byte[] PPSE_SELECT = Util.hexToByteArray("00A404000E325041592E5359532E444446303100");
+    private static final byte[] AID_SELECT = Util.hexToByteArray("00A4040007A000000003101000");
+    private static final byte[] UNKNOWN_AID_SELECT = Util.hexToByteArray("00A4040007A000000099999900");
+    private static final byte[] BAD_LENGTH_AID_SELECT = Util.hexToByteArray("00A4040009A000000003101000");
+    private static final byte[] GPO = Util.hexToByteArray("80A80000048302800000");
+    private static final byte[] READ_RECORD = Util.hexToByteArray("00B2010C00");
+
+    private static final byte[] SW_CONDITIONS_NOT_SATISFIED = Util.hexToByteArray("6985");
+    private static final byte[] SW_FILE_NOT_FOUND = Util.hexToByteArray("6A82");
+
+    private final ApduProcessor processor = new ApduProcessor();
+    private final EmvSession session = processor.getSession();
+
+
+    private void select() {
+        processor.setCard(ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA));
+        processor.process(PPSE_SELECT);
+        processor.process(AID_SELECT);
+        assertEquals(SessionState.APPLICATION_SELECTED, session.getState());
+        assertNotNull(session.getApplication());
+    }
+
+
+    @Test
+    public void wholeTransaction() {
+        select();
+        processor.process(GPO);
+        assertEquals(SessionState.PROCESSING, session.getState());
+        processor.process(READ_RECORD);
+        assertEquals(SessionState.RECORDS_READ, session.getState());
+        assertEquals(4, session.getTransitionCount());
+        assertEquals(0, session.getRejectedCount());
+
+        processor.onDeactivated(ApduStats.DEACTIVATION_DESELECTED);
+        assertEquals(SessionState.IDLE, session.getState());
+        assertNull(session.getApplication());
+    }
+
+    @Test
+    public void outOfOrderCommandsAreRejected() {
+        processor.setCard(ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA));
+        assertArrayEquals(SW_CONDITIONS_NOT_SATISFIED, processor.process(GPO));
+        processor.process(PPSE_SELECT);
+        assertArrayEquals(SW_CONDITIONS_NOT_SATISFIED, processor.process(READ_RECORD));
+        assertEquals(2, session.getRejectedCount());
+        assertEquals(SessionState.PPSE_SELECTED, session.getState());
+    }
+
+    @Test
+    public void failedSelectDropsTheSelectedApplication() {
+        select();
+        processor.process(GPO);
+        assertArrayEquals(SW_FILE_NOT_FOUND, processor.process(UNKNOWN_AID_SELECT));
+        assertEquals(SessionState.PPSE_SELECTED, session.getState());
+        assertNull(session.getApplication());
+        assertArrayEquals(SW_CONDITIONS_NOT_SATISFIED, processor.process(GPO));
+        assertArrayEquals(SW_CONDITIONS_NOT_SATISFIED, processor.process(READ_RECORD));
+
+        // selecting our AID again starts over from there
+        processor.process(AID_SELECT);
+        assertEquals(SessionState.APPLICATION_SELECTED, session.getState());
+    }
+
+    @Test
+    public void malformedSelectDropsTheSelectedApplication() {
+        select();
+        processor.process(BAD_LENGTH_AID_SELECT);
+        assertEquals(SessionState.PPSE_SELECTED, session.getState());
+        assertArrayEquals(SW_CONDITIONS_NOT_SATISFIED, processor.process(GPO));
+    }
+
+    @Test
+    public void failedSelectWithoutPpseGoesBackToIdle() {
+        processor.setCard(ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA));
+        processor.process(AID_SELECT);
+        assertEquals(SessionState.APPLICATION_SELECTED, session.getState());
+        processor.process(UNKNOWN_AID_SELECT);
+        assertEquals(SessionState.IDLE, session.getState());
+        assertNull(session.getApplication());
+    }
+
+    @Test
+    public void failedPpseSelectGoesBackToIdle() {
+        select();
+        processor.setCard(CardResponses.NONE);
+        assertArrayEquals(SW_FILE_NOT_FOUND, processor.process(PPSE_SELECT));
+        assertEquals(SessionState.IDLE, session.getState());
+        assertNull(session.getApplication());
+        assertArrayEquals(SW_CONDITIONS_NOT_SATISFIED, processor.process(GPO));
+    }
+}
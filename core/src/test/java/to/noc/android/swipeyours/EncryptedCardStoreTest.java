@@ -0,0 +1,143 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+
+public class EncryptedCardStoreTest {
+
+    // magic (4), version (1), IV length (1), then the IV
+    private static final int VERSION_OFFSET = 4;
+    private static final int IV_OFFSET = 6;
+    private static final String PURPOSE = "wallet";
+
+    private static final byte[] PLAINTEXT = Constants.DEFAULT_SWIPE_DATA.getBytes(StandardCharsets.US_ASCII);
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final EncryptedCardStore store = new EncryptedCardStore(new SoftwareKeyProvider(key(1)));
+
+
+    private static byte[] key(int fill) {
+        byte[] key = new byte[SoftwareKeyProvider.KEY_LENGTH];
+        Arrays.fill(key, (byte) fill);
+        return key;
+    }
+
+    private void assertRejected(String message, byte[] sealed, String purpose) {
+        try {
+            store.open(sealed, purpose);
+            fail(message + " opened");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void roundTrip() throws Exception {
+        byte[] sealed = store.seal(PLAINTEXT, PURPOSE);
+        assertArrayEquals(PLAINTEXT, store.open(sealed, PURPOSE));
+    }
+
+    @Test
+    public void sealedBlobHidesThePlaintext() throws Exception {
+        String sealed = new String(store.seal(PLAINTEXT, PURPOSE), StandardCharsets.ISO_8859_1);
+        assertFalse(sealed.contains("4046460664629718"));
+        // a fresh IV every time, so the same card never seals to the same bytes
+        assertFalse(Arrays.equals(store.seal(PLAINTEXT, PURPOSE), store.seal(PLAINTEXT, PURPOSE)));
+    }
+
+    @Test
+    public void fileRoundTrip() throws Exception {
+        File file = new File(folder.getRoot(), "wallet.sealed");
+        assertNull(store.read(file, PURPOSE));
+        store.write(file, PLAINTEXT, PURPOSE);
+        assertArrayEquals(PLAINTEXT, store.read(file, PURPOSE));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+
+    @Test
+    public void flippedCiphertextByteIsRejected() throws Exception {
+        byte[] sealed = store.seal(PLAINTEXT, PURPOSE);
+        int ivLength = sealed[IV_OFFSET - 1];
+        for (int i = IV_OFFSET + ivLength; i < sealed.length; i++) {
+            byte[] corrupt = sealed.clone();
+            corrupt[i] ^= 0x01;
+            assertRejected("byte " + i, corrupt, PURPOSE);
+        }
+    }
+
+    @Test
+    public void flippedIvByteIsRejected() throws Exception {
+        byte[] sealed = store.seal(PLAINTEXT, PURPOSE);
+        int ivLength = sealed[IV_OFFSET - 1];
+        for (int i = IV_OFFSET; i < IV_OFFSET + ivLength; i++) {
+            byte[] corrupt = sealed.clone();
+            corrupt[i] ^= 0x01;
+            assertRejected("IV byte " + i, corrupt, PURPOSE);
+        }
+    }
+
+    @Test
+    public void wrongPurposeIsRejected() throws Exception {
+        assertRejected("snapshot sealed as wallet", store.seal(PLAINTEXT, PURPOSE), "snapshot");
+    }
+
+    @Test
+    public void wrongKeyIsRejected() throws Exception {
+        byte[] sealed = new EncryptedCardStore(new SoftwareKeyProvider(key(2))).seal(PLAINTEXT, PURPOSE);
+        assertRejected("other key", sealed, PURPOSE);
+    }
+
+    @Test
+    public void badMagicIsRejected() throws Exception {
+        byte[] sealed = store.seal(PLAINTEXT, PURPOSE);
+        sealed[0] ^= 0x01;
+        assertRejected("bad magic", sealed, PURPOSE);
+    }
+
+    @Test
+    public void badVersionIsRejected() throws Exception {
+        byte[] sealed = store.seal(PLAINTEXT, PURPOSE);
+        sealed[VERSION_OFFSET] = (byte) (EncryptedCardStore.VERSION + 1);
+        assertRejected("bad version", sealed, PURPOSE);
+    }
+
+    @Test
+    public void truncatedBlobIsRejected() throws Exception {
+        byte[] sealed = store.seal(PLAINTEXT, PURPOSE);
+        for (int length = 0; length < sealed.length; length++) {
+            assertRejected("length " + length, Arrays.copyOf(sealed, length), PURPOSE);
+        }
+    }
+
+    @Test
+    public void corruptFileIsRejected() throws Exception {
+        File file = new File(folder.getRoot(), "wallet.sealed");
+        store.write(file, PLAINTEXT, PURPOSE);
+        byte[] sealed = Files.readAllBytes(file.toPath());
+        sealed[sealed.length - 1] ^= 0x01;
+        Files.write(file.toPath(), sealed);
+        try {
+            store.read(file, PURPOSE);
+            fail("corrupt file opened");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+}
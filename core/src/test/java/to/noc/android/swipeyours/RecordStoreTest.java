@@ -0,0 +1,127 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class RecordStoreTest {
+
+    private static final byte[] PPSE_SELECT = Util.hexToByteArray("00A404000E325041592E5359532E444446303100");
+    private static final byte[] AID_SELECT = Util.hexToByteArray("00A4040007A000000003101000");
+    private static final byte[] GPO = Util.hexToByteArray("80A80000048302800000");
+
+    private static final byte[] SW_RECORD_NOT_FOUND = Util.hexToByteArray("6A83");
+    private static final byte[] SW_FILE_NOT_FOUND = Util.hexToByteArray("6A82");
+
+
+    private static byte[] record(int sfi, int record) {
+        return new byte[]{0x70, 0x02, (byte) sfi, (byte) record, (byte) 0x90, 0x00};
+    }
+
+    private static byte[] readRecord(int sfi, int record) {
+        return new byte[]{0x00, (byte) 0xB2, (byte) record, (byte) (sfi << 3 | 0x04), 0x00};
+    }
+
+    /*
+     *  SFI 1 records 1-3 and 5, SFI 2 record 2, SFI 30 records 1 and 254
+     */
+    private static RecordStore gappyStore() {
+        return new RecordStore.Builder()
+                .put(1, 1, record(1, 1))
+                .put(1, 2, record(1, 2))
+                .put(1, 3, record(1, 3))
+                .put(1, 5, record(1, 5))
+                .put(2, 2, record(2, 2))
+                .put(30, 1, record(30, 1))
+                .put(30, RecordStore.MAX_RECORD, record(30, RecordStore.MAX_RECORD))
+                .build();
+    }
+
+
+    @Test
+    public void aflSplitsRecordsIntoRuns() {
+        assertEquals("08010300" + "08050500" + "10020200" + "F0010100" + "F0FEFE00",
+                Util.byteArrayToHex(gappyStore().getAfl()));
+    }
+
+    @Test
+    public void aflOfContiguousRecordsIsOneEntryPerSfi() {
+        RecordStore store = new RecordStore.Builder()
+                .put(1, 1, record(1, 1))
+                .put(1, 2, record(1, 2))
+                .put(3, 1, record(3, 1))
+                .build();
+        assertEquals("08010200" + "18010100", Util.byteArrayToHex(store.getAfl()));
+    }
+
+    @Test
+    public void emptyStore() {
+        assertEquals(0, RecordStore.EMPTY.size());
+        assertEquals(0, RecordStore.EMPTY.getAfl().length);
+        assertEquals(0, RecordStore.EMPTY.getHighestSfi());
+        assertNull(RecordStore.EMPTY.get(1, 1));
+        assertFalse(RecordStore.EMPTY.hasSfi(1));
+    }
+
+    @Test
+    public void lookupAtTheSfiAndRecordBoundaries() {
+        RecordStore store = gappyStore();
+        assertEquals(7, store.size());
+        assertEquals(30, store.getHighestSfi());
+        assertEquals(RecordStore.MAX_RECORD, store.getHighestRecord());
+
+        assertArrayEquals(record(1, 1), store.get(1, 1));
+        assertArrayEquals(record(30, 1), store.get(30, 1));
+        assertArrayEquals(record(30, RecordStore.MAX_RECORD), store.get(30, RecordStore.MAX_RECORD));
+        assertNull(store.get(1, 4));
+        assertNull(store.get(0, 1));
+        assertNull(store.get(31, 1));
+        assertNull(store.get(1, 0));
+        assertNull(store.get(1, RecordStore.MAX_RECORD + 1));
+
+        assertTrue(store.hasSfi(1));
+        assertTrue(store.hasSfi(30));
+        assertFalse(store.hasSfi(3));
+        assertFalse(store.hasSfi(0));
+        assertFalse(store.hasSfi(31));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sfiPastThirtyIsRefused() {
+        new RecordStore.Builder().put(31, 1, record(31, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordZeroIsRefused() {
+        new RecordStore.Builder().put(1, 0, record(1, 0));
+    }
+
+
+    @Test
+    public void readRecordAnswersFromTheStore() {
+        CardResponses compiled = ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA);
+        RecordStore store = gappyStore();
+        CardResponses card = compiled.withRecords(store).withGpoTemplate(GpoTemplate.format1(
+                compiled.getGpoTemplate().getPdol(), new byte[]{0x00, (byte) 0x80}, store.getAfl()));
+
+        ApduProcessor processor = new ApduProcessor();
+        processor.setCard(card);
+        processor.process(PPSE_SELECT);
+        processor.process(AID_SELECT);
+        processor.process(GPO);
+
+        assertSame(store.get(1, 5), processor.process(readRecord(1, 5)));
+        assertSame(store.get(30, RecordStore.MAX_RECORD), processor.process(readRecord(30, RecordStore.MAX_RECORD)));
+        // a gap in a file the card has, and a file it doesn't have
+        assertArrayEquals(SW_RECORD_NOT_FOUND, processor.process(readRecord(1, 4)));
+        assertArrayEquals(SW_RECORD_NOT_FOUND, processor.process(readRecord(2, 1)));
+        assertArrayEquals(SW_FILE_NOT_FOUND, processor.process(readRecord(3, 1)));
+        assertArrayEquals(SW_FILE_NOT_FOUND, processor.process(readRecord(31, 1)));
+    }
+}
@@ -0,0 +1,177 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TlvTest {
+
+    private final TlvReader reader = new TlvReader();
+
+
+    private static byte[] value(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) (i + 1);
+        }
+        return value;
+    }
+
+    private void assertElement(int tag, byte[] value) {
+        assertTrue(reader.next());
+        assertEquals(Integer.toHexString(tag), tag, reader.getTag());
+        assertArrayEquals(value, Arrays.copyOfRange(reader.getData(), reader.getValueOffset(), reader.getValueEnd()));
+    }
+
+
+    @Test
+    public void roundTripsMultiByteTags() {
+        byte[] encoded = new TlvWriter(64)
+                .put(0x57, value(3))            // one byte
+                .put(0x9F38, value(3))          // two bytes
+                .put(0xDF8101, value(2))        // three bytes
+                .put(0xFF818201, value(1))      // four bytes
+                .toByteArray();
+        assertArrayEquals(Util.hexToByteArray("9F3803"), Arrays.copyOfRange(encoded, 5, 8));
+        assertArrayEquals(Util.hexToByteArray("DF810102"), Arrays.copyOfRange(encoded, 11, 15));
+
+        reader.reset(encoded);
+        assertElement(0x57, value(3));
+        assertElement(0x9F38, value(3));
+        assertElement(0xDF8101, value(2));
+        assertElement(0xFF818201, value(1));
+        assertFalse(reader.next());
+        assertTrue(reader.isAtEnd());
+    }
+
+
+    @Test
+    public void roundTripsLongFormLengths() {
+        int[] lengths = {0, 0x7F, 0x80, 0xFF, 0x100, 0xFFFF, 0x10000};
+        String[] encodedLengths = {"00", "7F", "8180", "81FF", "820100", "82FFFF", "83010000"};
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] encoded = new TlvWriter(0x10010).put(0x5A, value(lengths[i])).toByteArray();
+            byte[] lengthBytes = Util.hexToByteArray(encodedLengths[i]);
+            assertEquals(TlvWriter.encodedLength(0x5A, lengths[i]), encoded.length);
+            assertArrayEquals(lengthBytes, Arrays.copyOfRange(encoded, 1, 1 + lengthBytes.length));
+
+            reader.reset(encoded);
+            assertElement(0x5A, value(lengths[i]));
+            assertTrue(reader.isAtEnd());
+        }
+    }
+
+
+    @Test
+    public void widensTemplateLengthsWhenClosed() {
+        byte[] encoded = new TlvWriter(512)
+                .begin(0x70)
+                    .begin(0xBF0C)
+                        .put(0x50, value(0x90))
+                    .end()
+                    .put(0x57, value(0x70))
+                .end()
+                .toByteArray();
+        // 70 82 0109 | BF0C 81 93 | 50 81 90 ... | 57 70 ...
+        assertArrayEquals(Util.hexToByteArray("70820109BF0C819350819001"), Arrays.copyOf(encoded, 12));
+        assertEquals(4 + 0x109, encoded.length);
+
+        reader.reset(encoded);
+        assertTrue(reader.findDeep(0x57));
+        assertArrayEquals(value(0x70), Arrays.copyOfRange(encoded, reader.getValueOffset(), reader.getValueEnd()));
+        assertTrue(reader.reset(encoded).findDeep(0x50));
+        assertEquals(0x90, reader.getValueLength());
+    }
+
+
+    @Test
+    public void skipsPaddingBetweenElements() {
+        reader.reset(Util.hexToByteArray("0000570201020000500141"));
+        assertElement(0x57, value(2));
+        assertElement(0x50, new byte[]{0x41});
+        assertFalse(reader.next());
+        assertTrue(reader.isAtEnd());
+    }
+
+
+    @Test
+    public void rejectsEveryTruncation() {
+        byte[][] elements = {
+                new TlvWriter(8).put(0x9F66, value(4)).toByteArray(),
+                new TlvWriter(300).put(0x57, value(0x100)).toByteArray(),
+                new TlvWriter(16).begin(0x77).put(0x82, value(2)).end().toByteArray(),
+        };
+        for (byte[] element : elements) {
+            for (int length = 1; length < element.length; length++) {
+                reader.reset(element, 0, length);
+                assertFalse("prefix of " + length, reader.next());
+                assertTrue("prefix of " + length, reader.isMalformed());
+                assertFalse(reader.isAtEnd());
+            }
+        }
+    }
+
+
+    @Test
+    public void rejectsLengthsPastTheEnd() {
+        // value claims one byte more than there is, in short and long form
+        assertMalformed("570301 02");
+        assertMalformed("5A8181" + hex(value(0x80)));
+        assertMalformed("5A820101" + hex(value(0x100)));
+        // a length that would overflow if it weren't range checked
+        assertMalformed("5A83FFFFFF01");
+    }
+
+
+    @Test
+    public void rejectsUnsupportedEncodings() {
+        assertMalformed("5A8401000000");        // four length bytes
+        assertMalformed("5A8000");              // indefinite length
+        assertMalformed("FF8181818101");        // five byte tag
+        assertMalformed("9F");                  // tag cut short
+    }
+
+
+    @Test
+    public void notAtEndWithTrailingJunk() {
+        reader.reset(Util.hexToByteArray("8302800083"));
+        assertElement(0x83, new byte[]{(byte) 0x80, 0x00});
+        assertFalse(reader.isAtEnd());
+        assertFalse(reader.next());
+        assertTrue(reader.isMalformed());
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void endWithoutBeginThrows() {
+        new TlvWriter(8).end();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unclosedTemplateThrows() {
+        new TlvWriter(8).begin(0x70).put(0x57, value(1)).toByteArray();
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void noRoomToWidenLengthThrows() {
+        new TlvWriter(2 + 0x80).begin(0x70).putRaw(value(0x80)).end();
+    }
+
+
+    private void assertMalformed(String hex) {
+        reader.reset(Util.hexToByteArray(hex.replace(" ", "")));
+        assertFalse(hex, reader.next());
+        assertTrue(hex, reader.isMalformed());
+    }
+
+    private static String hex(byte[] bytes) {
+        return Util.byteArrayToHex(bytes);
+    }
+}
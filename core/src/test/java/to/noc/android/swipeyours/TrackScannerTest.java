@@ -0,0 +1,180 @@
+package to.noc.android.swipeyours;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class TrackScannerTest {
+
+    private static final String TRACK_1 = "%B4046460664629718^000NETSPEND^161012100000181000000?";
+    private static final String TRACK_2 = ";4046460664629718=16101210000018100000?";
+    private static final String PACKED_TRACK_2 = "4046460664629718D16101210000018100000F";
+
+    private static final String OTHER_TRACK_2 = ";4111111111111111=251210100000000000001?";
+    private static final String OTHER_PACKED_TRACK_2 = "4111111111111111D251210100000000000001";
+
+    private final TrackScanner scanner = new TrackScanner();
+    private final ByteBuffer out = ByteBuffer.allocate(TrackScanner.MAX_TRACK_2_BYTES);
+
+
+    private TrackScanner.Result scan(String swipeData) {
+        out.clear();
+        return scanner.scan(swipeData, out);
+    }
+
+    private void assertPacked(String packedHex) {
+        assertEquals(packedHex, Util.byteArrayToHex(Arrays.copyOf(out.array(), out.position())));
+    }
+
+    private void assertTrack2(String swipeData, String track2) {
+        assertEquals(track2, swipeData.substring(scanner.getTrack2Start(), scanner.getTrack2End()));
+    }
+
+    private void assertNotFound(TrackScanner.Result expected, String swipeData) {
+        assertEquals(swipeData, expected, scan(swipeData));
+        assertEquals("buffer rewound for " + swipeData, 0, out.position());
+        assertEquals(-1, scanner.getTrack2Start());
+    }
+
+
+    @Test
+    public void track1AndTrack2Together() {
+        String swipeData = TRACK_1 + TRACK_2;
+        assertEquals(TrackScanner.Result.OK, scan(swipeData));
+        assertPacked(PACKED_TRACK_2);
+        assertTrack2(swipeData, TRACK_2);
+        assertEquals("000NETSPEND", swipeData.substring(scanner.getNameStart(), scanner.getNameEnd()));
+        assertEquals("4046460664629718",
+                swipeData.substring(scanner.getPanStart(), scanner.getPanStart() + scanner.getPanLength()));
+        assertEquals(1610, scanner.getExpiry());
+        assertEquals(121, scanner.getServiceCode());
+    }
+
+    @Test
+    public void track2Alone() {
+        assertEquals(TrackScanner.Result.OK, scan(TRACK_2));
+        assertPacked(PACKED_TRACK_2);
+        assertEquals(-1, scanner.getNameStart());
+    }
+
+    @Test
+    public void evenNumberOfDigitsIsNotPadded() {
+        assertEquals(TrackScanner.Result.OK, scan(OTHER_TRACK_2));
+        assertPacked(OTHER_PACKED_TRACK_2);
+    }
+
+    @Test
+    public void writesNothingWithoutABuffer() {
+        assertEquals(TrackScanner.Result.OK, scanner.scan(TRACK_1 + TRACK_2, null));
+        assertEquals(16, scanner.getPanLength());
+    }
+
+
+    @Test
+    public void missingEndSentinel() {
+        assertNotFound(TrackScanner.Result.MALFORMED_TRACK_2, ";4046460664629718=16101210000018100000");
+        assertNotFound(TrackScanner.Result.MALFORMED_TRACK_2, TRACK_1 + ";4046460664629718=1610121000");
+    }
+
+    @Test
+    public void badExpiry() {
+        assertNotFound(TrackScanner.Result.INVALID_EXPIRY, ";4046460664629718=1613121?");    // month 13
+        assertNotFound(TrackScanner.Result.INVALID_EXPIRY, ";4046460664629718=1600121?");    // month 00
+        assertNotFound(TrackScanner.Result.INVALID_EXPIRY, ";4046460664629718=161?");        // 3 digits
+        assertNotFound(TrackScanner.Result.INVALID_EXPIRY, ";4046460664629718=?");
+    }
+
+    @Test
+    public void badPanLength() {
+        assertNotFound(TrackScanner.Result.INVALID_PAN_LENGTH, ";40464606646=16101210000018100000?");
+        assertNotFound(TrackScanner.Result.INVALID_PAN_LENGTH, ";40464606646297180000=16101210000018100000?");
+    }
+
+    @Test
+    public void tooMuchData() {
+        char[] data = new char[TrackScanner.MAX_TRACK_2_DATA_LENGTH + 1];
+        Arrays.fill(data, '1');
+        assertNotFound(TrackScanner.Result.TRACK_2_TOO_LONG, ";4046460664629718=" + new String(data) + "?");
+    }
+
+    @Test
+    public void noTrack2() {
+        assertNotFound(TrackScanner.Result.NO_TRACK_2, "");
+        assertNotFound(TrackScanner.Result.NO_TRACK_2, TRACK_1);
+    }
+
+    @Test
+    public void reportsTheCandidateThatGotFurthest() {
+        // the bad PAN is only the first problem; the bad expiry got further
+        assertNotFound(TrackScanner.Result.INVALID_EXPIRY, ";1234=1610? ;4046460664629718=1613?");
+    }
+
+
+    @Test
+    public void firstValidTrack2Wins() {
+        String swipeData = TRACK_2 + OTHER_TRACK_2;
+        assertEquals(TrackScanner.Result.OK, scan(swipeData));
+        assertPacked(PACKED_TRACK_2);
+        assertTrack2(swipeData, TRACK_2);
+    }
+
+    @Test
+    public void invalidTrack2IsSkippedForALaterOne() {
+        String swipeData = ";4046460664629718=1613?" + OTHER_TRACK_2;
+        assertEquals(TrackScanner.Result.OK, scan(swipeData));
+        assertPacked(OTHER_PACKED_TRACK_2);
+        assertTrack2(swipeData, OTHER_TRACK_2);
+    }
+
+
+    @Test
+    public void whitespaceBetweenTracks() {
+        String swipeData = "  " + TRACK_1 + "\r\n\t" + TRACK_2 + "\n";
+        assertEquals(TrackScanner.Result.OK, scan(swipeData));
+        assertPacked(PACKED_TRACK_2);
+        assertEquals("000NETSPEND", swipeData.substring(scanner.getNameStart(), scanner.getNameEnd()));
+    }
+
+    @Test
+    public void whitespaceInsideTrack2() {
+        assertNotFound(TrackScanner.Result.MALFORMED_TRACK_2, ";4046460664629718=1610 1210000018100000?");
+    }
+
+    @Test
+    public void readerNoise() {
+        // a reader dump with a failed read marker, doubled start sentinels and a cut off track
+        String swipeData = "%E?;E?;;4046;" + TRACK_2 + "+E?";
+        assertEquals(TrackScanner.Result.OK, scan(swipeData));
+        assertPacked(PACKED_TRACK_2);
+        assertTrack2(swipeData, TRACK_2);
+    }
+
+    @Test
+    public void startSentinelInsideTrack2RestartsTheScan() {
+        String swipeData = ";404646" + TRACK_2;
+        assertEquals(TrackScanner.Result.OK, scan(swipeData));
+        assertPacked(PACKED_TRACK_2);
+        assertTrack2(swipeData, TRACK_2);
+    }
+
+
+    @Test
+    public void leavesBufferContentsBeforeThePositionAlone() {
+        out.clear();
+        out.put((byte) 0x55);
+        assertEquals(TrackScanner.Result.OK, scanner.scan(TRACK_2, out));
+        assertEquals(0x55, out.get(0));
+        assertArrayEquals(Util.hexToByteArray(PACKED_TRACK_2),
+                Arrays.copyOfRange(out.array(), 1, out.position()));
+
+        out.clear();
+        out.put((byte) 0x55);
+        assertEquals(TrackScanner.Result.MALFORMED_TRACK_2, scanner.scan(";4046460664629718=1610", out));
+        assertEquals(1, out.position());
+    }
+}
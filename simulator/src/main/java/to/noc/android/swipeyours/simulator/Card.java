@@ -0,0 +1,8 @@
+package to.noc.android.swipeyours.simulator;
+
+/*
+ *  The contactless card (or phone) on the other side of the simulated terminal's field.
+ */
+public interface Card {
+    byte[] transceive(byte[] commandApdu);
+}
@@ -0,0 +1,389 @@
+package to.noc.android.swipeyours.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.ApduStats;
+import to.noc.android.swipeyours.ApduTraceReader;
+import to.noc.android.swipeyours.ApduTraceWriter;
+import to.noc.android.swipeyours.CardResponses;
+import to.noc.android.swipeyours.LatencyHistogram;
+import to.noc.android.swipeyours.Util;
+
+
+/*
+ *  Throws malformed command APDUs at ApduProcessor from many threads and checks that every
+ *  response ends in a valid ISO 7816 status word (with no data unless it's 9000 or 61xx) and
+ *  comes back within a latency budget.
+ *
+ *  Inputs are mutations of the commands of a real transaction (captured by running a
+ *  TerminalSession once) plus any commands from recorded traces: bytes flipped or replaced,
+ *  commands truncated or extended, Lc and Le corrupted or dropped, extended length framing,
+ *  and now and then pure noise.  Before each mutated command a random number of the
+ *  transaction's valid commands is sent, so mutations reach every session state rather than
+ *  being turned away as out of order, and one case in CARDLESS_ONE_IN runs with no card
+ *  configured at all.
+ *
+ *  Handling time is measured around the single process() call.  A case over the budget is
+ *  run again from the same state, up to RETRIES times, and the input is reported as slow
+ *  once SLOW_RUNS of its runs have been over the budget.  A single GC pause or JIT compilation
+ *  elsewhere doesn't count against an input, but one that is slow only some of the time
+ *  still gets reported.
+ *
+ *  Each thread has its own processor and random number generator (seeded from the run's seed
+ *  and the thread number), so a reported input can be fed back to a single processor.
+ */
+public class Fuzzer {
+
+    private static final int MAX_REPORTED_FINDINGS = 10;
+    private static final int RETRIES = 3;
+    private static final int SLOW_RUNS = 2;
+    private static final int CARDLESS_ONE_IN = 16;
+    private static final int NOISE_ONE_IN = 32;
+    private static final int MAX_NOISE_LENGTH = 300;
+    private static final int BATCH = 1024;
+
+    private final CardResponses card;
+    private final List<byte[]> transaction;
+    private final List<byte[]> corpus;
+    private final int threads;
+    private final long budgetNanos;
+    private final long seed;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong cases = new AtomicLong();
+    private final AtomicLong badResponses = new AtomicLong();
+    private final AtomicLong exceptions = new AtomicLong();
+    private final AtomicLong slowInputs = new AtomicLong();
+    private final AtomicLong transientSpikes = new AtomicLong();
+    private final List<String> findings = new ArrayList<>();
+
+
+    public Fuzzer(CardResponses card, int threads, long budgetNanos, long seed) throws TerminalException {
+        this.card = card;
+        this.threads = threads;
+        this.budgetNanos = budgetNanos;
+        this.seed = seed;
+        transaction = captureTransaction(card);
+        corpus = new ArrayList<>(transaction);
+    }
+
+
+    /*
+     *  Runs one transaction against a fresh processor and returns the commands the terminal
+     *  sent, in order.
+     */
+    private static List<byte[]> captureTransaction(CardResponses card) throws TerminalException {
+        final ApduProcessor processor = new ApduProcessor();
+        processor.setCard(card);
+        final List<byte[]> commands = new ArrayList<>();
+        new TerminalSession(
+                new Card() {
+                    @Override
+                    public byte[] transceive(byte[] commandApdu) {
+                        commands.add(commandApdu.clone());
+                        return processor.process(commandApdu);
+                    }
+                },
+                null,
+                new Random(0)).run();
+        return commands;
+    }
+
+
+    /*
+     *  Adds every command in a recorded trace to the inputs that are mutated.
+     */
+    public void addTrace(File traceFile) throws IOException {
+        ApduTraceReader reader = ApduTraceReader.open(traceFile);
+        while (reader.next()) {
+            if (reader.getKind() == ApduTraceWriter.KIND_COMMAND) {
+                corpus.add(reader.copyPayload());
+            }
+        }
+    }
+
+
+    /*
+     *  Runs the passed in number of cases spread over all threads and returns the wall clock
+     *  time taken in nanoseconds.
+     */
+    public long run(long count) throws InterruptedException {
+        final AtomicLong remaining = new AtomicLong(count);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(seed * 31 + t);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runCases(remaining, random);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "fuzzer-" + t);
+            thread.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+
+    private void runCases(AtomicLong remaining, Random random) {
+        ApduProcessor processor = new ApduProcessor();
+        long batch;
+        // Cases are claimed in batches so the threads don't all contend on one counter
+        while ((batch = Math.min(BATCH, remaining.getAndAdd(-BATCH))) > 0) {
+            for (long i = 0; i < batch; i++) {
+                runCase(processor, random);
+            }
+            cases.addAndGet(batch);
+        }
+    }
+
+
+    private void runCase(ApduProcessor processor, Random random) {
+        CardResponses caseCard = random.nextInt(CARDLESS_ONE_IN) == 0 ? CardResponses.NONE : card;
+        int prefix = random.nextInt(transaction.size() + 1);
+        byte[] input = random.nextInt(NOISE_ONE_IN) == 0 ? noise(random) : mutate(pick(prefix, random), random);
+
+        long nanos = runInput(processor, caseCard, prefix, input);
+        if (nanos > budgetNanos) {
+            int runs = 1;
+            int slowRuns = 1;
+            long slowest = nanos;
+            while (runs <= RETRIES && slowRuns < SLOW_RUNS) {
+                long retry = runInput(processor, caseCard, prefix, input);
+                runs++;
+                if (retry > budgetNanos) {
+                    slowRuns++;
+                }
+                slowest = Math.max(slowest, retry);
+                nanos = Math.min(nanos, retry);
+            }
+            if (slowRuns >= SLOW_RUNS) {
+                slowInputs.incrementAndGet();
+                finding(String.format("slow (up to %.1f us, %d of %d runs over budget) after %d valid commands%s: %s",
+                        slowest / 1e3, slowRuns, runs, prefix, caseCard == card ? "" : " with no card",
+                        Util.byteArrayToHex(input)));
+            } else {
+                transientSpikes.incrementAndGet();
+            }
+        }
+        latency.record(nanos);
+    }
+
+
+    /*
+     *  Sends the first prefix commands of the transaction and then input, checking every
+     *  response, and returns how long input took to handle.
+     */
+    private long runInput(ApduProcessor processor, CardResponses caseCard, int prefix, byte[] input) {
+        processor.setCard(caseCard);
+        long nanos = 0;
+        try {
+            for (int i = 0; i < prefix; i++) {
+                byte[] command = transaction.get(i);
+                check(command, processor.process(command), i);
+            }
+            long start = System.nanoTime();
+            byte[] response = processor.process(input);
+            nanos = System.nanoTime() - start;
+            check(input, response, prefix);
+        } catch (RuntimeException e) {
+            exceptions.incrementAndGet();
+            finding(String.format("%s after %d valid commands: %s", e, prefix, Util.byteArrayToHex(input)));
+        }
+        processor.onDeactivated(ApduStats.DEACTIVATION_DESELECTED);
+        return nanos;
+    }
+
+
+    private void check(byte[] command, byte[] response, int prefix) {
+        if (!hasValidStatusWord(response)) {
+            badResponses.incrementAndGet();
+            finding(String.format("bad response after %d valid commands: %s%n  <- %s", prefix,
+                    Util.byteArrayToHex(command), response == null ? "(none)" : Util.byteArrayToHex(response)));
+        }
+    }
+
+
+    /*
+     *  9000 or 61xx (more data available), either of which may follow response data, or an
+     *  ISO 7816-4 warning or error status on its own: SW1 of 62 to 6F (60 isn't a status)
+     */
+    static boolean hasValidStatusWord(byte[] response) {
+        if (response == null || response.length < 2) {
+            return false;
+        }
+        int sw1 = response[response.length - 2] & 0xFF;
+        int sw2 = response[response.length - 1] & 0xFF;
+        if ((sw1 == 0x90 && sw2 == 0x00) || sw1 == 0x61) {
+            return true;
+        }
+        return response.length == 2 && sw1 >= 0x62 && sw1 <= 0x6F;
+    }
+
+
+    private synchronized void finding(String finding) {
+        if (findings.size() < MAX_REPORTED_FINDINGS) {
+            findings.add(finding);
+        }
+    }
+
+
+    /*
+     *  Usually the command the session expects next, so the mutation gets past the state
+     *  check to the command's own parsing
+     */
+    private byte[] pick(int prefix, Random random) {
+        if (prefix < transaction.size() && random.nextBoolean()) {
+            return transaction.get(prefix);
+        }
+        return corpus.get(random.nextInt(corpus.size()));
+    }
+
+
+    private static byte[] noise(Random random) {
+        byte[] bytes = new byte[random.nextInt(MAX_NOISE_LENGTH + 1)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+
+    /*
+     *  Applies one to three random mutations to a copy of apdu
+     */
+    private static byte[] mutate(byte[] apdu, Random random) {
+        byte[] bytes = apdu.clone();
+        for (int n = 1 + random.nextInt(3); n > 0; n--) {
+            switch (random.nextInt(8)) {
+                case 0:     // flip a bit
+                    if (bytes.length > 0) {
+                        bytes[random.nextInt(bytes.length)] ^= 1 << random.nextInt(8);
+                    }
+                    break;
+                case 1:     // replace a byte
+                    if (bytes.length > 0) {
+                        bytes[random.nextInt(bytes.length)] = (byte) random.nextInt(256);
+                    }
+                    break;
+                case 2:     // truncate
+                    if (bytes.length > 0) {
+                        bytes = Arrays.copyOf(bytes, random.nextInt(bytes.length));
+                    }
+                    break;
+                case 3:     // corrupt Lc
+                    if (bytes.length > 4) {
+                        bytes[4] = (byte) corruptLength(bytes[4] & 0xFF, random);
+                    }
+                    break;
+                case 4:     // drop, add or corrupt Le
+                    bytes = mutateLe(bytes, random);
+                    break;
+                case 5:     // append junk
+                    byte[] junk = new byte[1 + random.nextInt(16)];
+                    random.nextBytes(junk);
+                    bytes = concat(bytes, junk);
+                    break;
+                case 6:     // change P1 or P2, keeping the CLA and INS the route is found by
+                    if (bytes.length >= 4) {
+                        bytes[2 + random.nextInt(2)] = (byte) random.nextInt(256);
+                    }
+                    break;
+                default:    // extended length framing: 00 and a two byte Lc
+                    bytes = extendedLength(bytes, random);
+                    break;
+            }
+        }
+        return bytes;
+    }
+
+
+    private static int corruptLength(int length, Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return length + 1;
+            case 1:
+                return length - 1;
+            case 2:
+                return random.nextBoolean() ? 0 : 0xFF;
+            default:
+                return random.nextInt(256);
+        }
+    }
+
+    private static byte[] mutateLe(byte[] bytes, Random random) {
+        if (bytes.length <= 4) {
+            return concat(bytes, new byte[]{(byte) random.nextInt(256)});
+        }
+        switch (random.nextInt(3)) {
+            case 0:
+                return Arrays.copyOf(bytes, bytes.length - 1);
+            case 1:
+                return concat(bytes, new byte[]{0x00});
+            default:
+                bytes[bytes.length - 1] = (byte) corruptLength(bytes[bytes.length - 1] & 0xFF, random);
+                return bytes;
+        }
+    }
+
+    private static byte[] extendedLength(byte[] bytes, Random random) {
+        if (bytes.length < 5) {
+            return bytes;
+        }
+        int lc = random.nextBoolean() ? bytes.length - 5 : random.nextInt(0x10000);
+        byte[] extended = new byte[bytes.length + 2];
+        System.arraycopy(bytes, 0, extended, 0, 4);
+        extended[4] = 0x00;
+        extended[5] = (byte) (lc >> 8);
+        extended[6] = (byte) lc;
+        System.arraycopy(bytes, 5, extended, 7, bytes.length - 5);
+        return extended;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+
+    /*
+     *  Number of inputs that got a bad response, threw, or were over the budget on SLOW_RUNS runs
+     */
+    public long getFailures() {
+        return badResponses.get() + exceptions.get() + slowInputs.get();
+    }
+
+
+    public void report(PrintStream out, long elapsedNanos) {
+        for (String finding : findings) {
+            out.println("Finding: " + finding);
+        }
+        out.printf("%-14s %10s %10s %10s %10s %10s%n", "(microseconds)", "count", "p50", "p99", "p99.9", "max");
+        out.printf("%-14s %10d %10.2f %10.2f %10.2f %10.2f%n", "FUZZED", latency.getCount(),
+                latency.getPercentileNanos(50) / 1e3,
+                latency.getPercentileNanos(99) / 1e3,
+                latency.getPercentileNanos(99.9) / 1e3,
+                latency.getMaxNanos() / 1e3);
+
+        long count = cases.get();
+        out.printf("%n%d cases mutated from %d commands on %d threads in %.2f s: %.0f cases/s%n",
+                count, corpus.size(), threads, elapsedNanos / 1e9, count / (elapsedNanos / 1e9));
+        out.printf("%d bad responses, %d exceptions, %d slow inputs over %.0f us (%d transient spikes retried)%n",
+                badResponses.get(), exceptions.get(), slowInputs.get(), budgetNanos / 1e3,
+                transientSpikes.get());
+    }
+}
@@ -0,0 +1,140 @@
+package to.noc.android.swipeyours.simulator;
+
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import to.noc.android.swipeyours.ApduCommand;
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.ApduStats;
+import to.noc.android.swipeyours.CardResponses;
+import to.noc.android.swipeyours.LatencyHistogram;
+
+
+/*
+ *  Runs many simulated taps across many threads and reports per command and per session
+ *  latency percentiles and overall sessions per second.
+ *
+ *  Each thread plays a separate terminal talking to its own ApduProcessor (the way each phone
+ *  has its own PaymentService), but all of them share one compiled card.
+ */
+public class LoadTest {
+
+    private static final ApduCommand[] COMMANDS = ApduCommand.values();
+
+    private final CardResponses card;
+    private final int threads;
+    private final LatencyHistogram[] commandLatency = new LatencyHistogram[COMMANDS.length];
+    private final LatencyHistogram sessionLatency = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+
+
+    public LoadTest(CardResponses card, int threads) {
+        this.card = card;
+        this.threads = threads;
+        for (int i = 0; i < commandLatency.length; i++) {
+            commandLatency[i] = new LatencyHistogram();
+        }
+    }
+
+
+    /*
+     *  Runs the passed in number of sessions spread over all threads and returns the wall
+     *  clock time taken in nanoseconds.
+     */
+    public long run(long sessions) throws InterruptedException {
+        final AtomicLong remaining = new AtomicLong(sessions);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runSessions(remaining, new Random(seed));
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "terminal-" + t);
+            thread.start();
+        }
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+
+    private void runSessions(AtomicLong remaining, Random random) {
+        final ApduProcessor processor = new ApduProcessor();
+        processor.setCard(card);
+
+        TerminalSession session = new TerminalSession(
+                new Card() {
+                    @Override
+                    public byte[] transceive(byte[] commandApdu) {
+                        return processor.process(commandApdu);
+                    }
+                },
+                new TerminalSession.Listener() {
+                    @Override
+                    public void onExchange(ApduCommand command, byte[] commandApdu,
+                                           byte[] responseApdu, long nanos) {
+                        commandLatency[command.ordinal()].record(nanos);
+                    }
+                },
+                random);
+
+        while (remaining.getAndDecrement() > 0) {
+            long start = System.nanoTime();
+            try {
+                session.run();
+                sessionLatency.record(System.nanoTime() - start);
+            } catch (TerminalException e) {
+                failures.incrementAndGet();
+            }
+            processor.onDeactivated(ApduStats.DEACTIVATION_DESELECTED);
+        }
+    }
+
+
+    public void reset() {
+        for (LatencyHistogram histogram : commandLatency) {
+            histogram.reset();
+        }
+        sessionLatency.reset();
+        failures.set(0);
+    }
+
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+
+    public void report(PrintStream out, long elapsedNanos) {
+        out.printf("%-14s %10s %10s %10s %10s %10s%n", "(microseconds)", "count", "p50", "p99", "p99.9", "max");
+        for (ApduCommand command : COMMANDS) {
+            printRow(out, command.name(), commandLatency[command.ordinal()]);
+        }
+        printRow(out, "SESSION", sessionLatency);
+
+        long sessions = sessionLatency.getCount();
+        out.printf("%n%d sessions (%d failed) on %d threads in %.2f s: %.0f sessions/s%n",
+                sessions, failures.get(), threads, elapsedNanos / 1e9, sessions / (elapsedNanos / 1e9));
+    }
+
+
+    private static void printRow(PrintStream out, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        out.printf("%-14s %10d %10.2f %10.2f %10.2f %10.2f%n", name, histogram.getCount(),
+                histogram.getPercentileNanos(50) / 1e3,
+                histogram.getPercentileNanos(99) / 1e3,
+                histogram.getPercentileNanos(99.9) / 1e3,
+                histogram.getMaxNanos() / 1e3);
+    }
+}
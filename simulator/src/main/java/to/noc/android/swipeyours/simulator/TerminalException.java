@@ -0,0 +1,12 @@
+package to.noc.android.swipeyours.simulator;
+
+/*
+ *  Thrown when the card gives a response a real terminal would abort the transaction on.
+ */
+public class TerminalException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public TerminalException(String message) {
+        super(message);
+    }
+}
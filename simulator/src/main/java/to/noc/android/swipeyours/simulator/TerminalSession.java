@@ -0,0 +1,216 @@
+package to.noc.android.swipeyours.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import to.noc.android.swipeyours.ApduCommand;
+import to.noc.android.swipeyours.TlvReader;
+import to.noc.android.swipeyours.Util;
+
+
+/*
+ *  The terminal's half of one contactless mag stripe transaction (Visa MSD, or the
+ *  selection and record reading part of Mastercard PayPass mag stripe):
+ *
+ *    1. SELECT the PPSE and pick the first AID from its directory
+ *    2. SELECT that AID and read the PDOL from the response
+ *    3. GET PROCESSING OPTIONS with terminal data laid out according to the PDOL
+ *    4. READ RECORD every record named by the AFL in the GPO response
+ *
+ *  Any status word other than 9000, or a response missing what the next step needs, aborts
+ *  the session with a TerminalException the way a real terminal would decline the tap.
+ */
+public class TerminalSession {
+
+    /*
+     *  Called after every command/response exchange with the time the card took to answer.
+     */
+    public interface Listener {
+        void onExchange(ApduCommand command, byte[] commandApdu, byte[] responseApdu, long nanos);
+    }
+
+    private static final byte[] PPSE_SELECT =
+            Util.hexToByteArray("00A404000E325041592E5359532E444446303100");
+
+    private static final int TAG_ADF_NAME = 0x4F;
+    private static final int TAG_PDOL = 0x9F38;
+    private static final int TAG_RESPONSE_FORMAT_1 = 0x80;
+    private static final int TAG_AFL = 0x94;
+    private static final int TAG_TRACK_2_EQUIVALENT = 0x57;
+    private static final int TAG_TRACK_2_DATA = 0x9F6B;        // PayPass mag stripe
+    private static final int TAG_UNPREDICTABLE_NUMBER = 0x9F37;
+
+    private final Card card;
+    private final Listener listener;
+    private final Random random;
+
+    // Values the terminal fills PDOL entries with, keyed by tag
+    private final Map<Integer, byte[]> terminalData = new HashMap<>();
+
+    private final TlvReader tlvReader = new TlvReader();
+
+
+    public TerminalSession(Card card, Listener listener, Random random) {
+        this.card = card;
+        this.listener = listener;
+        this.random = random;
+
+        terminalData.put(0x9F66, Util.hexToByteArray("80000000"));      // TTQ: MSD supported
+        terminalData.put(0x9F02, Util.hexToByteArray("000000000100"));  // Amount, authorised
+        terminalData.put(0x9F03, Util.hexToByteArray("000000000000"));  // Amount, other
+        terminalData.put(0x9F1A, Util.hexToByteArray("0840"));          // Terminal country code
+        terminalData.put(0x5F2A, Util.hexToByteArray("0840"));          // Transaction currency
+        terminalData.put(0x9A, Util.hexToByteArray("151026"));          // Transaction date
+        terminalData.put(0x9C, Util.hexToByteArray("00"));              // Transaction type
+        terminalData.put(0x95, new byte[5]);                            // TVR
+    }
+
+
+    /*
+     *  Runs the whole transaction and returns the track 2 equivalent data read from the card.
+     */
+    public byte[] run() throws TerminalException {
+        byte[] ppse = exchange(ApduCommand.PPSE_SELECT, PPSE_SELECT);
+        byte[] aid = findInResponse(ppse, TAG_ADF_NAME);
+        if (aid == null) {
+            throw new TerminalException("PPSE response has no application");
+        }
+
+        byte[] select = exchange(ApduCommand.AID_SELECT, command(0x00, 0xA4, 0x04, 0x00, aid));
+        byte[] pdol = findInResponse(select, TAG_PDOL);
+
+        byte[] gpo = exchange(ApduCommand.GPO, command(0x80, 0xA8, 0x00, 0x00, gpoData(pdol)));
+        byte[] afl = applicationFileLocator(gpo);
+        if (afl == null || afl.length == 0 || afl.length % 4 != 0) {
+            throw new TerminalException("GPO response has no valid AFL");
+        }
+
+        byte[] track2 = null;
+        for (int i = 0; i < afl.length; i += 4) {
+            int sfi = (afl[i] & 0xFF) >> 3;
+            int first = afl[i + 1] & 0xFF;
+            int last = afl[i + 2] & 0xFF;
+            if (sfi < 1 || sfi > 30 || first == 0 || last < first) {
+                throw new TerminalException("Malformed AFL entry");
+            }
+            for (int record = first; record <= last; record++) {
+                byte[] response = exchange(ApduCommand.READ_RECORD,
+                        new byte[]{0x00, (byte) 0xB2, (byte) record, (byte) (sfi << 3 | 0x04), 0x00});
+                byte[] value = findInResponse(response, TAG_TRACK_2_EQUIVALENT);
+                if (value == null) {
+                    value = findInResponse(response, TAG_TRACK_2_DATA);
+                }
+                if (value != null) {
+                    track2 = value;
+                }
+            }
+        }
+        if (track2 == null) {
+            throw new TerminalException("No track 2 data in any record");
+        }
+        return track2;
+    }
+
+
+    private byte[] exchange(ApduCommand step, byte[] commandApdu) throws TerminalException {
+        long start = System.nanoTime();
+        byte[] response = card.transceive(commandApdu);
+        long elapsed = System.nanoTime() - start;
+        if (listener != null) {
+            listener.onExchange(step, commandApdu, response, elapsed);
+        }
+        if (response == null || response.length < 2) {
+            throw new TerminalException(step.getDescription() + ": response has no status word");
+        }
+        int sw = (response[response.length - 2] & 0xFF) << 8 | (response[response.length - 1] & 0xFF);
+        if (sw != 0x9000) {
+            throw new TerminalException(String.format("%s: card returned status %04X",
+                    step.getDescription(), sw));
+        }
+        return response;
+    }
+
+
+    /*
+     *  Builds the GPO command data (tag 83) from the card's PDOL: each requested tag's terminal
+     *  value, truncated or zero padded to the requested length.
+     */
+    private byte[] gpoData(byte[] pdol) throws TerminalException {
+        ByteArrayOutputStream values = new ByteArrayOutputStream();
+        int i = 0;
+        while (pdol != null && i < pdol.length) {
+            int tag = pdol[i++] & 0xFF;
+            if ((tag & 0x1F) == 0x1F) {
+                do {
+                    if (i >= pdol.length) {
+                        throw new TerminalException("Malformed PDOL");
+                    }
+                    tag = (tag << 8) | (pdol[i] & 0xFF);
+                } while ((pdol[i++] & 0x80) != 0);
+            }
+            if (i >= pdol.length) {
+                throw new TerminalException("Malformed PDOL");
+            }
+            int length = pdol[i++] & 0xFF;
+
+            byte[] value = tag == TAG_UNPREDICTABLE_NUMBER ? unpredictableNumber() : terminalData.get(tag);
+            for (int j = 0; j < length; j++) {
+                values.write(value != null && j < value.length ? value[j] : 0);
+            }
+        }
+        if (values.size() > 0x7F) {
+            throw new TerminalException("PDOL data too long");
+        }
+        byte[] data = new byte[2 + values.size()];
+        data[0] = (byte) 0x83;
+        data[1] = (byte) values.size();
+        System.arraycopy(values.toByteArray(), 0, data, 2, values.size());
+        return data;
+    }
+
+
+    private byte[] unpredictableNumber() {
+        byte[] un = new byte[4];
+        random.nextBytes(un);
+        return un;
+    }
+
+
+    /*
+     *  Returns a copy of the value of tag anywhere in the response, ignoring the trailing
+     *  status word, or null if it's missing or the response is malformed.
+     */
+    private byte[] findInResponse(byte[] response, int tag) {
+        if (tlvReader.reset(response, 0, response.length - 2).findDeep(tag)) {
+            return Arrays.copyOfRange(response, tlvReader.getValueOffset(), tlvReader.getValueEnd());
+        }
+        return null;
+    }
+
+
+    private byte[] applicationFileLocator(byte[] gpo) {
+        if ((gpo[0] & 0xFF) == TAG_RESPONSE_FORMAT_1) {
+            // Format 1: the value is the 2 byte AIP followed by the AFL
+            byte[] value = findInResponse(gpo, TAG_RESPONSE_FORMAT_1);
+            return value == null || value.length < 2 ? null
+                    : Arrays.copyOfRange(value, 2, value.length);
+        }
+        return findInResponse(gpo, TAG_AFL);
+    }
+
+
+    private static byte[] command(int cla, int ins, int p1, int p2, byte[] data) {
+        byte[] apdu = new byte[6 + data.length];
+        apdu[0] = (byte) cla;
+        apdu[1] = (byte) ins;
+        apdu[2] = (byte) p1;
+        apdu[3] = (byte) p2;
+        apdu[4] = (byte) data.length;
+        System.arraycopy(data, 0, apdu, 5, data.length);
+        apdu[apdu.length - 1] = 0x00;   // Le
+        return apdu;
+    }
+}
@@ -0,0 +1,215 @@
+package to.noc.android.swipeyours.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import to.noc.android.swipeyours.ApduCommand;
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.ApduTraceRecorder;
+import to.noc.android.swipeyours.CardResponses;
+import to.noc.android.swipeyours.Constants;
+import to.noc.android.swipeyours.Util;
+
+
+/*
+ *  Command line entry point.
+ *
+ *    flow  (default)  Runs one transaction and prints every command and response.
+ *    load             Runs many concurrent sessions and prints latency percentiles.
+ *    replay <trace>   Replays a recorded APDU trace, checking every response matches.
+ *    fuzz             Sends malformed commands from many threads, checking every response
+ *                     has a valid status word and arrives within the latency budget.
+ *
+ *  Options:
+ *    --swipe <data>      Magstripe data for the emulated card (defaults to the built in card)
+ *    --record <file>     Flow mode appends the transaction to an APDU trace file
+ *    --iterations <n>    Replay mode passes over the trace (default: 1)
+ *    --threads <n>       Load mode terminal threads (default: available processors)
+ *    --sessions <n>      Load mode measured sessions (default: 100000)
+ *    --warmup <n>        Load mode sessions run before measuring (default: 20000)
+ *    --cases <n>         Fuzz mode inputs (default: 1000000)
+ *    --budget-us <n>     Fuzz mode handling time allowed per command (default: 500)
+ *    --seed <n>          Fuzz mode random seed (default: 1)
+ *    --trace <file>      Fuzz mode also mutates the commands in a recorded trace
+ *
+ *  Exits with status 1 if any transaction fails, any replayed response doesn't match, or
+ *  any fuzzed input gets a bad or slow response.
+ */
+public class TerminalSimulator {
+
+    public static void main(String[] args) throws Exception {
+        String mode = "flow";
+        String swipeData = Constants.DEFAULT_SWIPE_DATA;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long sessions = 100000;
+        long warmup = 20000;
+        File recordFile = null;
+        File traceFile = null;
+        int iterations = 1;
+        long cases = 1000000;
+        long budgetMicros = 500;
+        long seed = 1;
+        List<File> fuzzTraces = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "flow":
+                case "load":
+                case "fuzz":
+                    mode = args[i];
+                    break;
+                case "replay":
+                    mode = args[i];
+                    traceFile = new File(args[++i]);
+                    break;
+                case "--swipe":
+                    swipeData = args[++i];
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--sessions":
+                    sessions = Long.parseLong(args[++i]);
+                    break;
+                case "--warmup":
+                    warmup = Long.parseLong(args[++i]);
+                    break;
+                case "--record":
+                    recordFile = new File(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--cases":
+                    cases = Long.parseLong(args[++i]);
+                    break;
+                case "--budget-us":
+                    budgetMicros = Long.parseLong(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--trace":
+                    fuzzTraces.add(new File(args[++i]));
+                    break;
+                default:
+                    System.err.println("Unknown argument: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        if ("replay".equals(mode)) {
+            System.exit(runReplay(traceFile, iterations) ? 0 : 1);
+        }
+
+        CardResponses card = ApduProcessor.compileCard(swipeData);
+        if (card == null) {
+            System.err.println("Swipe data has no usable track 2 data");
+            System.exit(2);
+        }
+
+        boolean ok;
+        if ("load".equals(mode)) {
+            ok = runLoad(card, threads, warmup, sessions);
+        } else if ("fuzz".equals(mode)) {
+            ok = runFuzz(card, threads, cases, budgetMicros, seed, fuzzTraces);
+        } else {
+            ok = runFlow(card, recordFile);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+
+    private static boolean runFlow(CardResponses card, File recordFile) throws InterruptedException {
+        final ApduProcessor processor = new ApduProcessor();
+        processor.setCard(card);
+
+        ApduTraceRecorder recorder = null;
+        if (recordFile != null) {
+            final ApduTraceRecorder traceRecorder = new ApduTraceRecorder(recordFile, Long.MAX_VALUE);
+            traceRecorder.onCardChanged(card);
+            processor.setListener(new ApduProcessor.ApduListener() {
+                @Override
+                public void onApdu(ApduCommand command, byte[] commandApdu, byte[] responseApdu) {
+                    traceRecorder.record(command, commandApdu, responseApdu);
+                }
+            });
+            recorder = traceRecorder;
+        }
+
+        TerminalSession session = new TerminalSession(
+                new Card() {
+                    @Override
+                    public byte[] transceive(byte[] commandApdu) {
+                        return processor.process(commandApdu);
+                    }
+                },
+                new TerminalSession.Listener() {
+                    @Override
+                    public void onExchange(ApduCommand command, byte[] commandApdu,
+                                           byte[] responseApdu, long nanos) {
+                        System.out.printf("%s (%.1f us)%n  -> %s%n  <- %s%n", command.getDescription(),
+                                nanos / 1e3, Util.byteArrayToHex(commandApdu),
+                                responseApdu == null ? "(none)" : Util.byteArrayToHex(responseApdu));
+                    }
+                },
+                new Random());
+
+        try {
+            byte[] track2 = session.run();
+            System.out.println("Transaction complete, track 2 equivalent data: " + Util.byteArrayToHex(track2));
+            return true;
+        } catch (TerminalException e) {
+            System.out.println("Transaction failed: " + e.getMessage());
+            return false;
+        } finally {
+            System.out.println("Session: " + processor.getSession());
+            // Android reports the field going away as DEACTIVATION_LINK_LOSS (0)
+            processor.onDeactivated(0);
+            if (recorder != null) {
+                recorder.onDeactivated(0);
+                recorder.close();
+            }
+        }
+    }
+
+
+    private static boolean runReplay(File traceFile, int iterations) throws IOException {
+        TraceReplayer replayer = new TraceReplayer(traceFile);
+        if (replayer.getExchangeCount() == 0) {
+            System.out.println("No commands in " + traceFile);
+            return false;
+        }
+        long elapsed = replayer.replay(iterations);
+        replayer.report(System.out, iterations, elapsed);
+        return replayer.getMismatchCount() == 0;
+    }
+
+
+    private static boolean runLoad(CardResponses card, int threads, long warmup, long sessions)
+            throws InterruptedException {
+        LoadTest loadTest = new LoadTest(card, threads);
+        if (warmup > 0) {
+            loadTest.run(warmup);
+            loadTest.reset();
+        }
+        long elapsed = loadTest.run(sessions);
+        loadTest.report(System.out, elapsed);
+        return loadTest.getFailures() == 0;
+    }
+
+
+    private static boolean runFuzz(CardResponses card, int threads, long cases, long budgetMicros,
+                                   long seed, List<File> traces) throws Exception {
+        Fuzzer fuzzer = new Fuzzer(card, threads, budgetMicros * 1000, seed);
+        for (File trace : traces) {
+            fuzzer.addTrace(trace);
+        }
+        long elapsed = fuzzer.run(cases);
+        fuzzer.report(System.out, elapsed);
+        return fuzzer.getFailures() == 0;
+    }
+}
@@ -0,0 +1,191 @@
+package to.noc.android.swipeyours.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import to.noc.android.swipeyours.ApduCommand;
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.ApduTraceReader;
+import to.noc.android.swipeyours.ApduTraceWriter;
+import to.noc.android.swipeyours.CardResponses;
+import to.noc.android.swipeyours.Util;
+
+
+/*
+ *  Feeds the commands of a trace recorded by PaymentService (or by the simulator's --record
+ *  option) back into an ApduProcessor and checks every response matches the recorded one.
+ *
+ *  The whole trace is loaded up front so replays measure the command logic and not the file
+ *  parsing.  Each exchange remembers the card that was active when it was recorded; replay
+ *  switches cards at the same points the device did.  The recorded cards have their card
+ *  data zeroed, like the recorded READ RECORD responses, so the two still match.
+ *
+ *  A command and its response are recorded together with one timestamp, so a response only
+ *  counts as a command's if the times match.  Commands recorded without their response (the
+ *  recording buffer was full) are replayed but not checked, and responses without their
+ *  command are ignored.
+ */
+public class TraceReplayer {
+
+    private static final int MAX_REPORTED_MISMATCHES = 10;
+
+    private static class Exchange {
+        final int sessionId;
+        final long nanoTime;
+        final CardResponses card;
+        final ApduCommand command;
+        final byte[] commandApdu;
+        byte[] responseApdu;
+
+        Exchange(int sessionId, long nanoTime, CardResponses card, ApduCommand command, byte[] commandApdu) {
+            this.sessionId = sessionId;
+            this.nanoTime = nanoTime;
+            this.card = card;
+            this.command = command;
+            this.commandApdu = commandApdu;
+        }
+    }
+
+    private final List<Exchange> exchanges = new ArrayList<>();
+    // Indexes into exchanges where a deactivation was recorded, with the reason
+    private final List<int[]> deactivations = new ArrayList<>();
+    private int sessions;
+    private boolean truncated;
+
+    private final List<String> mismatches = new ArrayList<>();
+    private long mismatchCount;
+    private long uncheckedCount;
+
+
+    public TraceReplayer(File traceFile) throws IOException {
+        ApduTraceReader reader = ApduTraceReader.open(traceFile);
+        CardResponses card = null;
+        Exchange pending = null;
+        boolean inSession = false;
+
+        while (reader.next()) {
+            switch (reader.getKind()) {
+                case ApduTraceWriter.KIND_CARD:
+                    card = reader.getCard();
+                    if (card == null) {
+                        throw new IOException("Corrupt card in trace session " + reader.getSessionId());
+                    }
+                    break;
+                case ApduTraceWriter.KIND_COMMAND:
+                    if (card == null) {
+                        throw new IOException("Trace session " + reader.getSessionId() + " has no card");
+                    }
+                    if (!inSession) {
+                        sessions++;
+                        inSession = true;
+                    }
+                    pending = new Exchange(reader.getSessionId(), reader.getNanoTime(), card,
+                            reader.getCommand(), reader.copyPayload());
+                    exchanges.add(pending);
+                    break;
+                case ApduTraceWriter.KIND_RESPONSE:
+                    if (pending != null && pending.nanoTime == reader.getNanoTime()) {
+                        pending.responseApdu = reader.copyPayload();
+                        pending = null;
+                    }
+                    break;
+                case ApduTraceWriter.KIND_DEACTIVATION:
+                    deactivations.add(new int[]{exchanges.size(), reader.getDeactivationReason()});
+                    pending = null;
+                    inSession = false;
+                    break;
+                default:
+                    throw new IOException("Unknown trace frame kind " + reader.getKind());
+            }
+        }
+        truncated = reader.isTruncated();
+    }
+
+
+    public int getSessionCount() {
+        return sessions;
+    }
+
+    public int getExchangeCount() {
+        return exchanges.size();
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long getMismatchCount() {
+        return mismatchCount;
+    }
+
+    public long getUncheckedCount() {
+        return uncheckedCount;
+    }
+
+
+    /*
+     *  Replays the whole trace the passed in number of times through one processor and returns
+     *  the time taken in nanoseconds.  Mismatches are counted on every iteration.
+     */
+    public long replay(int iterations) {
+        ApduProcessor processor = new ApduProcessor();
+        mismatches.clear();
+        mismatchCount = 0;
+        uncheckedCount = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            int nextDeactivation = 0;
+            for (int e = 0; e < exchanges.size(); e++) {
+                while (nextDeactivation < deactivations.size() && deactivations.get(nextDeactivation)[0] == e) {
+                    processor.onDeactivated(deactivations.get(nextDeactivation++)[1]);
+                }
+                Exchange exchange = exchanges.get(e);
+                if (processor.getCard() != exchange.card) {
+                    processor.setCard(exchange.card);
+                }
+                byte[] response = processor.process(exchange.commandApdu);
+                if (exchange.responseApdu == null) {
+                    uncheckedCount++;
+                } else if (!Arrays.equals(response, exchange.responseApdu)) {
+                    mismatch(exchange, response);
+                }
+            }
+            while (nextDeactivation < deactivations.size()) {
+                processor.onDeactivated(deactivations.get(nextDeactivation++)[1]);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+
+    private void mismatch(Exchange exchange, byte[] response) {
+        if (mismatches.size() < MAX_REPORTED_MISMATCHES) {
+            mismatches.add(String.format("session %d %s%n  -> %s%n  recorded %s%n  replayed %s",
+                    exchange.sessionId, exchange.command.getDescription(),
+                    Util.byteArrayToHex(exchange.commandApdu),
+                    Util.byteArrayToHex(exchange.responseApdu),
+                    response == null ? "(none)" : Util.byteArrayToHex(response)));
+        }
+        mismatchCount++;
+    }
+
+
+    public void report(PrintStream out, int iterations, long elapsedNanos) {
+        for (String mismatch : mismatches) {
+            out.println("Mismatch in " + mismatch);
+        }
+        if (truncated) {
+            out.println("Trace ends in a partly written frame, which was ignored");
+        }
+        long commands = (long) exchanges.size() * iterations;
+        out.printf("%d sessions, %d commands x %d iterations: %d mismatched, %d unchecked%n",
+                sessions, exchanges.size(), iterations, mismatchCount, uncheckedCount);
+        out.printf("Replayed %d commands in %.2f s: %.0f commands/s%n",
+                commands, elapsedNanos / 1e9, commands / (elapsedNanos / 1e9));
+    }
+}
@@ -0,0 +1,45 @@
+package to.noc.android.swipeyours.simulator;
+
+import org.junit.Test;
+
+import to.noc.android.swipeyours.Util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class FuzzerTest {
+
+    private static boolean valid(String hex) {
+        return Fuzzer.hasValidStatusWord(Util.hexToByteArray(hex));
+    }
+
+
+    @Test
+    public void successMayFollowData() {
+        assertTrue(valid("9000"));
+        assertTrue(valid("7003570100" + "9000"));
+        assertTrue(valid("6110"));
+        assertTrue(valid("70035701006110"));
+    }
+
+    @Test
+    public void errorsAndWarningsStandAlone() {
+        assertTrue(valid("6A82"));
+        assertTrue(valid("6283"));
+        assertTrue(valid("6D00"));
+        assertFalse(valid("70035701006A82"));
+        assertFalse(valid("006985"));
+    }
+
+    @Test
+    public void rejectsWhatIsNoStatusWord() {
+        assertFalse(Fuzzer.hasValidStatusWord(null));
+        assertFalse(valid(""));
+        assertFalse(valid("90"));
+        assertFalse(valid("6000"));
+        assertFalse(valid("9001"));
+        assertFalse(valid("0000"));
+        assertFalse(valid("7003570100" + "0000"));
+    }
+}
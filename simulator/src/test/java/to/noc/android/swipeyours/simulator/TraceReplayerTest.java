@@ -0,0 +1,96 @@
+package to.noc.android.swipeyours.simulator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import to.noc.android.swipeyours.ApduCommand;
+import to.noc.android.swipeyours.ApduProcessor;
+import to.noc.android.swipeyours.ApduTraceWriter;
+import to.noc.android.swipeyours.CardResponses;
+import to.noc.android.swipeyours.Constants;
+import to.noc.android.swipeyours.Util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TraceReplayerTest {
+
+    private static final byte[] PPSE_SELECT = Util.hexToByteArray("00A404000E325041592E5359532E444446303100");
+    private static final byte[] READ_RECORD = Util.hexToByteArray("00B2010C00");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+
+    /*
+     *  flow.trace is one transaction recorded with "flow --record".  A change to the card
+     *  emulation logic that changes what a terminal sees shows up here as a mismatch, as does
+     *  a recorded card whose zeroed card data no longer matches the zeroed responses.
+     */
+    @Test
+    public void recordedTransactionReplays() throws Exception {
+        TraceReplayer replayer = new TraceReplayer(new File(getClass().getResource("flow.trace").toURI()));
+        assertFalse(replayer.isTruncated());
+        assertEquals(1, replayer.getSessionCount());
+        assertEquals(4, replayer.getExchangeCount());
+
+        replayer.replay(10);
+        assertEquals(0, replayer.getMismatchCount());
+        assertEquals(0, replayer.getUncheckedCount());
+    }
+
+
+    @Test
+    public void responsesArePairedByTime() throws Exception {
+        CardResponses card = ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA);
+        byte[] wrongResponse = Util.hexToByteArray("6A82");
+        File trace = folder.newFile("paired.trace");
+        try (ApduTraceWriter writer = new ApduTraceWriter(new RandomAccessFile(trace, "rw").getChannel(), 1)) {
+            writer.writeCard(0, card);
+            // the response to this command was dropped, so the next one isn't its response
+            record(writer, 1, ApduTraceWriter.KIND_COMMAND, PPSE_SELECT);
+            record(writer, 2, ApduTraceWriter.KIND_RESPONSE, wrongResponse);
+            // recorded with its response, which is wrong
+            record(writer, 3, ApduTraceWriter.KIND_COMMAND, PPSE_SELECT);
+            record(writer, 3, ApduTraceWriter.KIND_RESPONSE, wrongResponse);
+            writer.writeDeactivation(4, 0);
+        }
+
+        TraceReplayer replayer = new TraceReplayer(trace);
+        assertEquals(2, replayer.getExchangeCount());
+        replayer.replay(1);
+        assertEquals(1, replayer.getUncheckedCount());
+        assertEquals(1, replayer.getMismatchCount());
+    }
+
+
+    @Test
+    public void cardDataIsNotWritten() throws Exception {
+        CardResponses card = ApduProcessor.compileCard(Constants.DEFAULT_SWIPE_DATA);
+        byte[] record = card.getReadRecordResponse();
+        File trace = folder.newFile("redacted.trace");
+        try (ApduTraceWriter writer = new ApduTraceWriter(new RandomAccessFile(trace, "rw").getChannel(), 1)) {
+            writer.writeCard(0, card);
+            writer.onRecord(1, ApduTraceWriter.KIND_COMMAND, ApduCommand.READ_RECORD, READ_RECORD, 0, READ_RECORD.length);
+            writer.onRecord(1, ApduTraceWriter.KIND_RESPONSE, ApduCommand.READ_RECORD, record, 0, record.length);
+            writer.writeDeactivation(2, 0);
+        }
+
+        // the packed PAN appears nowhere in the file, and the card handed in is untouched
+        String hex = Util.byteArrayToHex(Files.readAllBytes(trace.toPath()));
+        assertFalse(hex.contains("4046460664629718"));
+        assertTrue(Util.byteArrayToHex(card.getReadRecordResponse()).contains("4046460664629718"));
+    }
+
+
+    private static void record(ApduTraceWriter writer, long nanoTime, int kind, byte[] apdu) {
+        writer.onRecord(nanoTime, kind, ApduCommand.PPSE_SELECT, apdu, 0, apdu.length);
+    }
+}
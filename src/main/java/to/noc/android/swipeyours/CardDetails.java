@@ -0,0 +1,151 @@
+package to.noc.android.swipeyours;
+
+import us.fatehi.creditcardnumber.ServiceCode;
+import us.fatehi.magnetictrack.bankcard.BankCardMagneticTrack;
+import us.fatehi.magnetictrack.bankcard.Track1FormatB;
+import us.fatehi.magnetictrack.bankcard.Track2;
+
+
+/*
+ *  Everything SetCardActivity displays about a piece of swipe data, worked out once so it can
+ *  be done off the UI thread and cached.  Instances are immutable.
+ *
+ *  Track2 data must be supplied.  If track1 data is available, the name field is pulled from
+ *  it for display purposes.
+ */
+public class CardDetails {
+
+    private final String swipeData;
+    private final TrackScanner.Result scanResult;
+    private final boolean valid;
+
+    private final String name;
+    private final String cardNumber;
+    private final String cardBrand;
+    private final String expiration;
+    private final String discretionaryData;
+    private final String serviceCode;
+    private final String[] serviceCodeValues = new String[3];
+    private final String[] serviceCodeDescriptions = new String[3];
+
+
+    /*
+     *  Details of swipe data that can't be used
+     */
+    private CardDetails(String swipeData, TrackScanner.Result scanResult) {
+        this.swipeData = swipeData;
+        this.scanResult = scanResult;
+        this.valid = false;
+        this.name = null;
+        this.cardNumber = null;
+        this.cardBrand = null;
+        this.expiration = null;
+        this.discretionaryData = null;
+        this.serviceCode = null;
+    }
+
+    private CardDetails(String swipeData, Track1FormatB track1Data, Track2 track2Data) {
+        this.swipeData = swipeData;
+        this.scanResult = TrackScanner.Result.OK;
+        this.valid = true;
+        this.name = track1Data.hasName() ? track1Data.getName().getFullName() : null;
+        this.cardNumber = track2Data.getPrimaryAccountNumber().getAccountNumber();
+        this.cardBrand = track2Data.getPrimaryAccountNumber().getCardBrand().name();
+        this.expiration = track2Data.getExpirationDate().toString();
+        this.discretionaryData = track2Data.hasDiscretionaryData() ?
+                track2Data.getDiscretionaryData() : "[none]";
+
+        ServiceCode code = track2Data.getServiceCode();
+        this.serviceCode = code.getServiceCode();
+        serviceCodeValues[0] = code.getServiceCode1().getValue() + ":";
+        serviceCodeDescriptions[0] = code.getServiceCode1().getDescription();
+        serviceCodeValues[1] = code.getServiceCode2().getValue() + ":";
+        serviceCodeDescriptions[1] = code.getServiceCode2().getDescription();
+        serviceCodeValues[2] = code.getServiceCode3().getValue() + ":";
+        serviceCodeDescriptions[2] = code.getServiceCode3().getDescription();
+    }
+
+
+    /*
+     *  Parses swipe data, which must already have had its whitespace removed.  Never returns
+     *  null; check isValid().
+     */
+    public static CardDetails parse(String swipeData) {
+        // The scan is what the card will be compiled from, so check it first: it says what's
+        // wrong instead of just failing
+        TrackScanner.Result scanResult = new TrackScanner().scan(swipeData, null);
+        if (scanResult != TrackScanner.Result.OK) {
+            return new CardDetails(swipeData, scanResult);
+        }
+
+        BankCardMagneticTrack allTracks;
+        try {
+            allTracks = BankCardMagneticTrack.from(swipeData);
+        } catch (RuntimeException e) {
+            return new CardDetails(swipeData, scanResult);
+        }
+        Track2 track2Data = allTracks.getTrack2();
+        if (!track2Data.getPrimaryAccountNumber().isPrimaryAccountNumberValid()) {
+            return new CardDetails(swipeData, scanResult);
+        }
+        return new CardDetails(swipeData, allTracks.getTrack1(), track2Data);
+    }
+
+
+    public String getSwipeData() {
+        return swipeData;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /*
+     *  Why the swipe data can't be used, for display next to the input
+     */
+    public String getError() {
+        if (valid) {
+            return null;
+        }
+        return scanResult == TrackScanner.Result.OK ? "Invalid swipe data"
+                : "Invalid swipe data: " + scanResult.getDescription();
+    }
+
+    /*
+     *  The name from track 1, or null if there is no track 1 or it has no name
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getCardNumber() {
+        return cardNumber;
+    }
+
+    public String getCardBrand() {
+        return cardBrand;
+    }
+
+    public String getExpiration() {
+        return expiration;
+    }
+
+    public String getDiscretionaryData() {
+        return discretionaryData;
+    }
+
+    public String getServiceCode() {
+        return serviceCode;
+    }
+
+    /*
+     *  Digit of the service code at position (0 to 2) followed by a colon
+     */
+    public String getServiceCodeValue(int position) {
+        return serviceCodeValues[position];
+    }
+
+    public String getServiceCodeDescription(int position) {
+        return serviceCodeDescriptions[position];
+    }
+}
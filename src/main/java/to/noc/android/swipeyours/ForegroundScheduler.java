@@ -0,0 +1,136 @@
+package to.noc.android.swipeyours;
+
+import android.os.Handler;
+
+
+/*
+ *  Decides when to bring MainActivity to the front after NFC sessions end.
+ *
+ *  Terminals often deactivate and reselect the card several times in one checkout.  Instead
+ *  of launching the activity on every deactivation, each deactivation (re)starts a quiet
+ *  period timer, and the launch only happens once the field has stayed idle for the whole
+ *  period.  The first command of a new session cancels any pending launch, so UI work never
+ *  competes with APDU handling.
+ *
+ *  Commands, deactivations and the delayed launch all run on the service's main thread, so no
+ *  locking is needed.
+ */
+public class ForegroundScheduler {
+
+    /*
+     *  ONCE_PER_SERVICE_START launches only after the first burst of deactivations while the
+     *  service is running, not once per NFC session.  Android keeps the PaymentService alive
+     *  while it's being used by a terminal and destroys it some time after, so that is usually,
+     *  but not always, once per checkout visit.
+     */
+    public enum Policy {
+        ALWAYS("After every tap"),
+        ONCE_PER_SERVICE_START("Once per service start"),
+        NEVER("Never");
+
+        // The name ONCE_PER_SERVICE_START was saved under before it was renamed
+        private static final String LEGACY_ONCE_NAME = "ONCE_PER_SESSION";
+
+        private final String description;
+
+        Policy(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        /*
+         *  Returns the policy with the passed in name, or ALWAYS (the original behaviour) if
+         *  the name is null or unknown.
+         */
+        public static Policy fromName(String name) {
+            if (LEGACY_ONCE_NAME.equals(name)) {
+                return ONCE_PER_SERVICE_START;
+            }
+            if (name != null) {
+                for (Policy policy : values()) {
+                    if (policy.name().equals(name)) {
+                        return policy;
+                    }
+                }
+            }
+            return ALWAYS;
+        }
+    }
+
+
+    public static final long DEFAULT_QUIET_PERIOD_MILLIS = 750;
+
+    private final Handler handler;
+    private final Runnable foregroundAction;
+    private final long quietPeriodMillis;
+    private Policy policy = Policy.ALWAYS;
+
+    private boolean sessionActive;
+    private boolean launchPending;
+    private boolean launched;
+
+    private final Runnable launch = new Runnable() {
+        @Override
+        public void run() {
+            launchPending = false;
+            if (!sessionActive) {
+                launched = true;
+                foregroundAction.run();
+            }
+        }
+    };
+
+
+    /*
+     *  foregroundAction is run on handler's thread once a burst of deactivations has settled.
+     */
+    public ForegroundScheduler(Handler handler, Runnable foregroundAction, long quietPeriodMillis) {
+        this.handler = handler;
+        this.foregroundAction = foregroundAction;
+        this.quietPeriodMillis = quietPeriodMillis;
+    }
+
+
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+        if (policy == Policy.NEVER) {
+            cancel();
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+
+    /*
+     *  Called for every command APDU, so it does nothing unless a launch is pending.
+     */
+    public void onCommand() {
+        sessionActive = true;
+        if (launchPending) {
+            cancel();
+        }
+    }
+
+
+    public void onDeactivated() {
+        sessionActive = false;
+        if (policy == Policy.NEVER || (policy == Policy.ONCE_PER_SERVICE_START && launched)) {
+            return;
+        }
+        // Restart the quiet period, collapsing a burst of deactivations into one launch
+        handler.removeCallbacks(launch);
+        handler.postDelayed(launch, quietPeriodMillis);
+        launchPending = true;
+    }
+
+
+    public void cancel() {
+        handler.removeCallbacks(launch);
+        launchPending = false;
+    }
+}
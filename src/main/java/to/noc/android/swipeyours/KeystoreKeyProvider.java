@@ -0,0 +1,59 @@
+package to.noc.android.swipeyours;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+
+/*
+ *  A KeyProvider whose AES key is generated inside the Android keystore and never leaves it:
+ *  the app only ever holds a handle, and the key can't be read out of storage or a backup.
+ *  Keystore AES keys need API 23.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class KeystoreKeyProvider implements KeyProvider {
+
+    private static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+
+    private final String alias;
+    private SecretKey key;
+
+
+    public KeystoreKeyProvider(String alias) {
+        this.alias = alias;
+    }
+
+
+    @Override
+    public synchronized SecretKey getKey() throws GeneralSecurityException {
+        if (key == null) {
+            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEY_STORE);
+            try {
+                keyStore.load(null);
+            } catch (IOException e) {
+                throw new KeyStoreException("Unable to open the Android keystore", e);
+            }
+            key = (SecretKey) keyStore.getKey(alias, null);
+            if (key == null) {
+                KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, ANDROID_KEY_STORE);
+                generator.init(new KeyGenParameterSpec.Builder(alias,
+                        KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                        .setKeySize(256)
+                        .build());
+                key = generator.generateKey();
+            }
+        }
+        return key;
+    }
+}
@@ -0,0 +1,82 @@
+package to.noc.android.swipeyours;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import java.text.DateFormat;
+
+
+/*
+ *  Presents a LogStore to a ListView.  Rows are recycled, and an entry is only formatted when
+ *  its row is bound, so the cost of displaying the log depends on the screen size rather than
+ *  on how many entries are retained.
+ *
+ *  The adapter shows the store as it was at the last refresh(), not as it is now: ListView
+ *  requires the count not to change without a notification, and entries keep arriving between
+ *  the frames that refresh it.  Rows are found by entry index, so dropping old entries doesn't
+ *  shift them either.
+ */
+public class LogAdapter extends BaseAdapter {
+
+    private final LayoutInflater inflater;
+    private final LogStore store;
+    private final DateFormat timeStampFmt = LogStore.newTimeStampFormat();
+    private final StringBuilder rowText = new StringBuilder();
+
+
+    private int count;
+    private long firstIndex;
+
+
+    public LogAdapter(LayoutInflater inflater, LogStore store) {
+        this.inflater = inflater;
+        this.store = store;
+        count = store.size();
+        firstIndex = store.getFirstIndex();
+    }
+
+
+    /*
+     *  Catches up with the entries added and dropped since the last refresh.
+     */
+    public void refresh() {
+        count = store.size();
+        firstIndex = store.getFirstIndex();
+        notifyDataSetChanged();
+    }
+
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    /*
+     *  Null if the entry was dropped from the store after the last refresh
+     */
+    @Override
+    public LogStore.Entry getItem(int position) {
+        return store.getByIndex(firstIndex + position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView row = (TextView) convertView;
+        if (row == null) {
+            row = (TextView) inflater.inflate(R.layout.log_row, parent, false);
+        }
+        LogStore.Entry entry = getItem(position);
+        // A dropped entry's row is blank until the next refresh removes it
+        row.setText(entry == null ? "" : entry.format(rowText, timeStampFmt).toString());
+        return row;
+    }
+}
@@ -0,0 +1,152 @@
+package to.noc.android.swipeyours;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+
+/*
+ *  Bounded, in memory store of log entries.  Once the retention limit is reached the oldest
+ *  entry is overwritten by each new one, so memory use stays flat however long the app runs.
+ *
+ *  Entries keep their raw parts (timestamp, tag, APDU bytes) and are only turned into display
+ *  text when a row scrolls into view.  Only accessed from the UI thread.
+ */
+public class LogStore {
+
+    public static final class Entry {
+        private final long timeMillis;
+        private final String tag;
+        private final String text;              // plain messages
+        private final ApduCommand command;      // APDU exchanges
+        private final byte[] commandApdu;
+        private final byte[] responseApdu;
+
+        Entry(long timeMillis, String tag, String text) {
+            this(timeMillis, tag, text, null, null, null);
+        }
+
+        Entry(long timeMillis, String tag, ApduCommand command, byte[] commandApdu, byte[] responseApdu) {
+            this(timeMillis, tag, null, command, commandApdu, responseApdu);
+        }
+
+        private Entry(long timeMillis, String tag, String text, ApduCommand command,
+                      byte[] commandApdu, byte[] responseApdu) {
+            this.timeMillis = timeMillis;
+            this.tag = tag;
+            this.text = text;
+            this.command = command;
+            this.commandApdu = commandApdu;
+            this.responseApdu = responseApdu;
+        }
+
+        /*
+         *  Formats the entry into sb, which is cleared first.
+         */
+        public StringBuilder format(StringBuilder sb, DateFormat timeStampFmt) {
+            sb.setLength(0);
+            sb.append(timeStampFmt.format(new Date(timeMillis))).append(tag).append(' ');
+            if (command == null) {
+                sb.append(text);
+            } else {
+                sb.append("Received ").append(command.getDescription()).append(": ");
+                Util.appendHex(sb, commandApdu, 0, commandApdu.length, true);
+                sb.append(" / Response: ");
+                Util.appendHex(sb, responseApdu, 0, responseApdu.length, true);
+            }
+            return sb;
+        }
+    }
+
+
+    public static DateFormat newTimeStampFormat() {
+        return new SimpleDateFormat("HH:mm:ss.SSS  ", Locale.US);
+    }
+
+
+    private Entry[] entries;
+    private int start;      // index of the oldest entry
+    private int size;
+    private long added;     // entries ever added, the index the next one will have
+
+
+    public LogStore(int retentionLimit) {
+        entries = new Entry[checkedLimit(retentionLimit)];
+    }
+
+
+    public void add(Entry entry) {
+        added++;
+        if (size < entries.length) {
+            entries[(start + size++) % entries.length] = entry;
+        } else {
+            entries[start] = entry;
+            start = (start + 1) % entries.length;
+        }
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+
+    /*
+     *  Position 0 is the oldest retained entry.
+     */
+    public Entry get(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("position=" + position + " size=" + size);
+        }
+        return entries[(start + position) % entries.length];
+    }
+
+
+    /*
+     *  Every entry ever added has an index that, unlike its position, doesn't change as older
+     *  entries are dropped.  This is the index of the oldest retained entry.
+     */
+    public long getFirstIndex() {
+        return added - size;
+    }
+
+    /*
+     *  The entry with the passed in index, or null if it has been dropped or not added yet.
+     */
+    public Entry getByIndex(long index) {
+        long position = index - getFirstIndex();
+        return position >= 0 && position < size ? get((int) position) : null;
+    }
+
+
+    public int getRetentionLimit() {
+        return entries.length;
+    }
+
+
+    /*
+     *  Changes the retention limit, keeping the newest entries that still fit.
+     */
+    public void setRetentionLimit(int retentionLimit) {
+        if (checkedLimit(retentionLimit) == entries.length) {
+            return;
+        }
+        int kept = Math.min(size, retentionLimit);
+        Entry[] resized = new Entry[retentionLimit];
+        for (int i = 0; i < kept; i++) {
+            resized[i] = get(size - kept + i);
+        }
+        entries = resized;
+        start = 0;
+        size = kept;
+    }
+
+
+    private static int checkedLimit(int retentionLimit) {
+        if (retentionLimit <= 0) {
+            throw new IllegalArgumentException("retention limit must be positive: " + retentionLimit);
+        }
+        return retentionLimit;
+    }
+}
@@ -1,22 +1,26 @@
 package to.noc.android.swipeyours;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.content.ComponentName;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.Typeface;
 import android.nfc.NfcAdapter;
 import android.nfc.cardemulation.CardEmulation;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /*
@@ -25,28 +29,46 @@ import java.util.Locale;
  */
 public class MainActivity extends Activity {
 
-    private static TextView activityLog;
-    private static final StringBuilder logCache = new StringBuilder();
-    private static final DateFormat timeStampFmt = new SimpleDateFormat("HH:mm:ss.SSS  ", Locale.US);
+    /*
+     *  Log entries are kept in a bounded store for the life of the process, including any
+     *  logged before the activity is created.  New entries are batched into at most one list
+     *  update per display frame.  The store exists before any resources can be read, so its
+     *  limit is a constant rather than a resource.
+     */
+    private static final int LOG_RETENTION_LIMIT = 20000;
+    private static final LogStore logStore = new LogStore(LOG_RETENTION_LIMIT);
+    private static LogAdapter logAdapter;
+    private static boolean logUpdatePending;
+
+    private static final Choreographer.FrameCallback logUpdater = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            logUpdatePending = false;
+            if (logAdapter != null) {
+                logAdapter.refresh();
+            }
+        }
+    };
 
     private static final String TAG = MainActivity.class.getSimpleName();
+
+    // This activity's adapter, which logAdapter only points to until a newer activity's replaces it
+    private LogAdapter activityLogAdapter;
     
     
     private static void log(String tag, Object... messageFragments) {
+        log(System.currentTimeMillis(), tag, messageFragments);
+    }
+
+
+    private static void log(long timeMillis, String tag, Object... messageFragments) {
         StringBuilder message = new StringBuilder();
         for(Object fragment : messageFragments) {
             message.append(fragment.toString());
         }
         String text = message.toString();
 
-        logCache.append(timeStampFmt.format(new Date())).append(tag).append(" ").append(text).append('\n');
-
-        // any logging before activityLog is initialized does not get
-        // cleared and will be printed to the screen later
-        if (activityLog != null) {
-            activityLog.append(logCache);
-            logCache.setLength(0);
-        }
+        addLogEntry(new LogStore.Entry(timeMillis, tag, text));
 
         //
         //  The logs may have credit card numbers in them, so don't send the output to the system
@@ -56,22 +78,94 @@ public class MainActivity extends Activity {
     }
 
 
+    private static void addLogEntry(LogStore.Entry entry) {
+        logStore.add(entry);
+        if (logAdapter != null && !logUpdatePending) {
+            logUpdatePending = true;
+            Choreographer.getInstance().postFrameCallback(logUpdater);
+        }
+    }
+
+
+    private static final int MSG_LOG = 0;
+    private static final int MSG_DRAIN_APDU_TRACE = 1;
+
     private static Handler handler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
-            Bundle data = msg.getData();
-            log(data.getString("tag"), (Object[])data.getStringArray("messageFragments"));
+            switch (msg.what) {
+                case MSG_LOG:
+                    Bundle data = msg.getData();
+                    log(data.getString("tag"), (Object[])data.getStringArray("messageFragments"));
+                    break;
+                case MSG_DRAIN_APDU_TRACE:
+                    drainApduTrace();
+                    break;
+            }
             super.handleMessage(msg);
         }
     };
 
 
+    /*
+     *  APDUs are logged in binary form by the PaymentService and only formatted when this
+     *  activity's thread drains them, keeping the cost of logging off the NFC response path.
+     */
+    private static final String APDU_TAG = PaymentService.class.getSimpleName();
+    private static final ApduTraceBuffer apduTrace = new ApduTraceBuffer(256);
+    private static final AtomicBoolean apduDrainPending = new AtomicBoolean();
+
+    private static final ApduTraceBuffer.Reader apduTraceReader = new ApduTraceBuffer.Reader() {
+        private long commandNanoTime;
+        private ApduCommand command;
+        private byte[] commandApdu;
+
+        @Override
+        public void onRecord(long nanoTime, int direction, ApduCommand command,
+                             byte[] data, int offset, int length) {
+            // Only the bytes are copied here; the hex is formatted if the entry is displayed
+            byte[] apdu = Arrays.copyOfRange(data, offset, offset + length);
+            if (direction == ApduTraceBuffer.DIRECTION_COMMAND) {
+                this.commandNanoTime = nanoTime;
+                this.command = command;
+                this.commandApdu = apdu;
+            } else {
+                long timeMillis = System.currentTimeMillis() - (System.nanoTime() - commandNanoTime) / 1000000L;
+                addLogEntry(new LogStore.Entry(timeMillis, APDU_TAG, this.command, commandApdu, apdu));
+            }
+        }
+    };
+
+
+    private static void drainApduTrace() {
+        apduDrainPending.set(false);
+        apduTrace.drain(apduTraceReader);
+        long dropped = apduTrace.takeDroppedCount();
+        if (dropped > 0) {
+            log(TAG, "APDU log fell behind, dropped ", dropped, " records");
+        }
+    }
+
+
+    /*
+     *  Called by the PaymentService for every command/response pair.  Does not allocate.
+     */
+    public static void logApdu(ApduCommand command, byte[] commandApdu, byte[] responseApdu) {
+        long now = System.nanoTime();
+        apduTrace.recordExchange(now, command, commandApdu, responseApdu);
+        if (!apduDrainPending.getAndSet(true)) {
+            handler.sendEmptyMessage(MSG_DRAIN_APDU_TRACE);
+        }
+    }
+
+
     /*
      *  Receives log messages from another thread like the PaymentService and passes
      *  them along to the thread for this activity class.
      */
     public static void sendLog(String tag, String ...messageFragments) {
         Message message = Message.obtain();
+        message.what = MSG_LOG;
         Bundle data = new Bundle();
         data.putString("tag", tag);
         data.putStringArray("messageFragments", messageFragments);
@@ -85,7 +179,11 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.activity_main);
-        activityLog = (TextView) findViewById(R.id.activity_log);
+        activityLogAdapter = new LogAdapter(getLayoutInflater(), logStore);
+        logAdapter = activityLogAdapter;
+        ListView activityLog = (ListView) findViewById(R.id.activity_log);
+        activityLog.setAdapter(activityLogAdapter);
+        activityLog.setSelection(activityLogAdapter.getCount() - 1);
 
         CardEmulation cardEmulationManager = CardEmulation.getInstance(NfcAdapter.getDefaultAdapter(this));
         ComponentName paymentServiceComponent =
@@ -103,6 +201,107 @@ public class MainActivity extends Activity {
     }
 
 
+    @Override
+    protected void onDestroy() {
+        if (logAdapter == activityLogAdapter) {
+            logAdapter = null;
+        }
+        super.onDestroy();
+    }
+
+
+    /*
+     *  Shows a snapshot of the PaymentService latency statistics, with options to share it as
+     *  text or to start counting again.
+     */
+    private void showStats() {
+        showReport(R.string.menu_stats, PaymentService.stats.snapshot(), new Runnable() {
+            @Override
+            public void run() {
+                PaymentService.stats.reset();
+            }
+        });
+    }
+
+
+    /*
+     *  Shows the commands terminals sent that PaymentService couldn't answer, most frequent
+     *  first, with options to share the list as text or to start counting again.
+     */
+    private void showUnhandled() {
+        showReport(R.string.menu_unhandled, PaymentService.unhandled.snapshot(), new Runnable() {
+            @Override
+            public void run() {
+                PaymentService.unhandled.reset();
+            }
+        });
+    }
+
+
+    /*
+     *  Shows a monospaced text report titled with the passed in string resource.  Share sends
+     *  the text to another app, and Reset runs reset.
+     */
+    private void showReport(int titleId, final String text, final Runnable reset) {
+        final String title = getString(titleId);
+        TextView reportView = new TextView(this);
+        reportView.setTypeface(Typeface.MONOSPACE);
+        reportView.setTextIsSelectable(true);
+        reportView.setPadding(20, 20, 20, 20);
+        reportView.setText(text);
+
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setView(reportView)
+                .setPositiveButton(R.string.button_share, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent send = new Intent(Intent.ACTION_SEND);
+                        send.setType("text/plain");
+                        send.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.report_subject, title));
+                        send.putExtra(Intent.EXTRA_TEXT, text);
+                        startActivity(Intent.createChooser(send, getString(R.string.report_export, title)));
+                    }
+                })
+                .setNeutralButton(R.string.button_reset, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        reset.run();
+                    }
+                })
+                .setNegativeButton(R.string.button_close, null)
+                .show();
+    }
+
+
+    /*
+     *  Lets the user choose when the PaymentService brings this activity to the front after a
+     *  tap.  The service picks up the change through its preference listener.
+     */
+    private void showForegroundPolicy() {
+        final SharedPreferences prefs = WalletStore.getPrefs(this);
+        final ForegroundScheduler.Policy[] policies = ForegroundScheduler.Policy.values();
+        String[] descriptions = new String[policies.length];
+        for (int i = 0; i < policies.length; i++) {
+            descriptions[i] = policies[i].getDescription();
+        }
+        ForegroundScheduler.Policy current = ForegroundScheduler.Policy.fromName(
+                prefs.getString(Constants.FOREGROUND_POLICY_PREF_KEY, null));
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_foreground)
+                .setSingleChoiceItems(descriptions, current.ordinal(), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        prefs.edit().putString(Constants.FOREGROUND_POLICY_PREF_KEY, policies[which].name()).commit();
+                        dialog.dismiss();
+                    }
+                })
+                .setNegativeButton(R.string.button_close, null)
+                .show();
+    }
+
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.activity_main_menu, menu);
@@ -117,6 +316,15 @@ public class MainActivity extends Activity {
                 Intent intent = new Intent(this, SetCardActivity.class);
                 startActivity(intent);
                 return true;
+            case R.id.menu_stats:
+                showStats();
+                return true;
+            case R.id.menu_unhandled:
+                showUnhandled();
+                return true;
+            case R.id.menu_foreground:
+                showForegroundPolicy();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
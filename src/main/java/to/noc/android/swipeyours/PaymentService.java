@@ -1,251 +1,183 @@
 package to.noc.android.swipeyours;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Handler;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import static to.noc.android.swipeyours.Constants.DEFAULT_SWIPE_DATA;
-import static to.noc.android.swipeyours.Constants.SWIPE_DATA_PREF_KEY;
+import static to.noc.android.swipeyours.Constants.ACTIVE_CARD_PREF_KEY;
+import static to.noc.android.swipeyours.Constants.FOREGROUND_POLICY_PREF_KEY;
+import static to.noc.android.swipeyours.Constants.WALLET_VERSION_PREF_KEY;
 
 
 /*
  *  We include a default, zero-balance prepaid Visa so the app always has some card data.
- *  Any swipe data configured by the SetCardActivity and saved as a shared preference will
- *  be used, if available, instead of the included card.
+ *  Any cards configured by the SetCardActivity and saved by the WalletStore will be used, if
+ *  available, instead of the included card.
  */
 public class PaymentService extends HostApduService implements SharedPreferences.OnSharedPreferenceChangeListener {
 
     private static final String TAG = PaymentService.class.getSimpleName();
 
-    private static final byte[] ISO7816_UNKNOWN_ERROR_RESPONSE = {
-            (byte)0x6F, (byte)0x00
-    };
-
     /*
-     *  PPSE (Proximity Payment System Environment)
-     *
-     *  This is the first select that a point of sale device will send to the payment device.
+     *  Latency and session statistics survive service restarts for the life of the process
+     *  so MainActivity can display them.
      */
-    private static final byte[] PPSE_APDU_SELECT = {
-            (byte)0x00, // CLA (class of command)
-            (byte)0xA4, // INS (instruction); A4 = select
-            (byte)0x04, // P1  (parameter 1)  (0x04: select by name)
-            (byte)0x00, // P2  (parameter 2)
-            (byte)0x0E, // LC  (length of data)  14 (0x0E) = length("2PAY.SYS.DDF01")
-                // 2PAY.SYS.DDF01 (ASCII values of characters used):
-                // This value requests the card or payment device to list the application
-                // identifiers (AIDs) it supports in the response:
-                '2', 'P', 'A', 'Y', '.', 'S', 'Y', 'S', '.', 'D', 'D', 'F', '0', '1',
-            (byte)0x00 // LE   (max length of expected result, 0 implies 256)
-    };
-
-    private static final byte[] PPSE_APDU_SELECT_RESP = {
-            (byte)0x6F,  // FCI Template
-            (byte)0x23,  // length = 35
-                (byte)0x84,  // DF Name
-                (byte)0x0E,  // length("2PAY.SYS.DDF01")
-                    // Data (ASCII values of characters used):
-                    '2', 'P', 'A', 'Y', '.', 'S', 'Y', 'S', '.', 'D', 'D', 'F', '0', '1',
-                (byte)0xA5, // FCI Proprietary Template
-                (byte)0x11, // length = 17
-                    (byte)0xBF, // FCI Issuer Discretionary Data
-                    (byte)0x0C, // length = 12
-                        (byte)0x0E,
-                        (byte)0x61, // Directory Entry
-                        (byte)0x0C, // Entry length = 12
-                        (byte)0x4F, // ADF Name
-                        (byte)0x07, // ADF Length = 7
-                            // Tell the POS (point of sale terminal) that we support the standard
-                            // Visa credit or debit applet: A0000000031010
-                            // Visa's RID (Registered application provider IDentifier) is 5 bytes:
-                            (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x03,
-                            // PIX (Proprietary application Identifier eXtension) is the last 2 bytes.
-                            // 10 10 (means visa credit or debit)
-                            (byte)0x10, (byte)0x10,
-                    (byte)0x87,  // Application Priority Indicator
-                    (byte)0x01,  // length = 1
-                        (byte)0x01,
-            (byte) 0x90, // SW1  (90 00 = Success)
-            (byte) 0x00  // SW2
-    };
+    static final ApduStats stats = new ApduStats();
 
     /*
-     *  MSD (Magnetic Stripe Data)
+     *  Frequency counts of the commands we couldn't answer, also kept for the life of the
+     *  process and shown by MainActivity.
      */
-    private static final byte[] VISA_MSD_SELECT = {
-            (byte)0x00,  // CLA
-            (byte)0xa4,  // INS
-            (byte)0x04,  // P1
-            (byte)0x00,  // P2
-            (byte)0x07,  // LC (data length = 7)
-                // POS is selecting the AID (Visa debit or credit) that we specified in the PPSE
-                // response:
-                (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x03, (byte)0x10, (byte)0x10,
-            (byte)0x00   // LE
-    };
-
-
-    private static final byte[] VISA_MSD_SELECT_RESPONSE = {
-            (byte) 0x6F,  // File Control Information (FCI) Template
-            (byte) 0x1E,  // length = 30 (0x1E)
-                (byte) 0x84,  // Dedicated File (DF) Name
-                (byte) 0x07,  // DF length = 7
-
-                // A0000000031010  (Visa debit or credit AID)
-                (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x03, (byte)0x10, (byte)0x10,
-
-                (byte) 0xA5,  // File Control Information (FCI) Proprietary Template
-                (byte) 0x13,  // length = 19 (0x13)
-                    (byte) 0x50,  // Application Label
-                    (byte) 0x0B,  // length
-                    'V', 'I', 'S', 'A', ' ', 'C', 'R', 'E', 'D', 'I', 'T',
-                    (byte) 0x9F, (byte) 0x38,  // Processing Options Data Object List (PDOL)
-                    (byte) 0x03,  // length
-                    (byte) 0x9F, (byte) 0x66, (byte) 0x02, // PDOL value (Does this request terminal type?)
-            (byte) 0x90,  // SW1
-            (byte) 0x00   // SW2
-    };
-
+    static final UnhandledApduSketch unhandled = new UnhandledApduSketch();
 
     /*
-     *  GPO (Get Processing Options) command
+     *  Every session is also recorded to TRACE_FILE_NAME in the app's files directory, so a
+     *  tap a terminal rejected can be pulled off the device and replayed with the simulator.
+     *  The card data is zeroed before anything is written (see ApduTraceWriter).  Like the
+     *  stats, one recorder serves the process.
      */
-    private static final byte[] GPO_COMMAND = {
-            (byte) 0x80,  // CLA
-            (byte) 0xA8,  // INS
-            (byte) 0x00,  // P1
-            (byte) 0x00,  // P2
-            (byte) 0x04,  // LC (length)
-                // data
-                (byte) 0x83,  // tag
-                (byte) 0x02,  // length
-                    (byte) 0x80,    //  { These 2 bytes can vary, so we'll only        }
-                    (byte) 0x00,    //  { compare the header of this GPO command below }
-            (byte) 0x00   // Le
-    };
-
+    static final String TRACE_FILE_NAME = "apdu.trace";
+    private static final long MAX_TRACE_FILE_SIZE = 4 * 1024 * 1024;
+    private static ApduTraceRecorder traceRecorder;
+
+    private final ApduProcessor processor = new ApduProcessor();
+    private final CardWallet wallet = new CardWallet();
+    private DecryptedCardCache activeCard;
+    private CardResponses currentCard;
+    // Cards replaced while a session may still be answering from one of their applications
+    private final ArrayList<CardResponses> retiredCards = new ArrayList<>(2);
+
+    // The wallet is only loaded from its file when the card snapshot can't be used, or
+    // once the cards change while the service is running
+    private boolean walletLoaded;
+
+    // Reloads after the cards change run here rather than on the main thread, which answers
+    // taps: a bulk import can leave thousands of new cards to compile
+    private final ExecutorService walletLoader = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler();
+    private boolean destroyed;
+
+    // Guards registering the preference listener on walletLoader against onDestroy
+    private final Object listenerLock = new Object();
+    private boolean listening;
+
+    private ForegroundScheduler foregroundScheduler;
+    // Read at the end of the first session rather than in onCreate, so it can't delay a tap
+    private boolean foregroundPolicyLoaded;
+
+
+    private void loadWallet() {
+        WalletStore.load(this, wallet);
+        walletLoaded = true;
+    }
 
     /*
-     *  The data in the request can vary, but it won't affect our response. This method
-     *  checks the initial 4 bytes of an APDU to see if it's a GPO command.
+     *  Reloads the wallet on walletLoader, then runs then on the main thread.  The wallet
+     *  compiles new cards without locking, so the main thread can keep using it meanwhile.
      */
-    private boolean isGpoCommand(byte[] apdu) {
-        return (apdu.length > 4 &&
-                apdu[0] == GPO_COMMAND[0] &&
-                apdu[1] == GPO_COMMAND[1] &&
-                apdu[2] == GPO_COMMAND[2] &&
-                apdu[3] == GPO_COMMAND[3]
-        );
+    private void loadWalletInBackground(final Runnable then) {
+        final Context context = getApplicationContext();
+        walletLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                WalletStore.load(context, wallet);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!destroyed) {
+                            walletLoaded = true;
+                            then.run();
+                        }
+                    }
+                });
+            }
+        });
     }
 
 
     /*
-     *  SwipeYours only emulates Visa MSD, so our response is not dependant on the GPO command
-     *  data.
+     *  Hands the active card's precompiled responses to the processor.
      */
-    private static final byte[] GPO_COMMAND_RESPONSE = {
-            (byte) 0x80,
-            (byte) 0x06,  // length
-                (byte) 0x00,
-                (byte) 0x80,
-                (byte) 0x08,
-                (byte) 0x01,
-                (byte) 0x01,
-                (byte) 0x00,
-            (byte) 0x90,  // SW1
-            (byte) 0x00   // SW2
-    };
-
-
-    private static final byte[] READ_REC_COMMAND = {
-            (byte) 0x00,  // CLA
-            (byte) 0xB2,  // INS
-            (byte) 0x01,  // P1
-            (byte) 0x0C,  // P2
-            (byte) 0x00   // length
-    };
-
-
-    private static final Pattern TRACK_2_PATTERN = Pattern.compile(".*;(\\d{12,19}=\\d{1,128})\\?.*");
+    private void activateCard() {
+        CardWallet.Card card = wallet.getActive();
+        if (card != null) {
+            setCard(card.getResponses());
+        } else {
+            MainActivity.sendLog(TAG, "PaymentService has no usable card");
+        }
+    }
 
     /*
-     *  Unlike the upper case commands above, the Read REC response changes depending on the track 2
-     *  portion of the user's magnetic stripe data.
+     *  A session that selected an application before the change keeps answering GPO and READ
+     *  RECORD from it, so the old card can't be wiped (if it was decrypted from the snapshot)
+     *  until that session ends.  processCommandApdu, the preference listener and onDeactivated
+     *  all run on the main thread, so the session can't select anything while this runs.
      */
-    private static byte[] readRecResponse = {};
-
-    private static void configureReadRecResponse(String swipeData) {
-        Matcher matcher = TRACK_2_PATTERN.matcher(swipeData);
-        if (matcher.matches()) {
-
-            String track2EquivData = matcher.group(1);
-            // convert the track 2 data into the required byte representation
-            track2EquivData = track2EquivData.replace('=', 'D');
-            if (track2EquivData.length() % 2 != 0) {
-                // add an 'F' to make the hex string a whole number of bytes wide
-                track2EquivData += "F";
-            }
-
-            // Each binary byte is represented by 2 4-bit hex characters
-            int track2EquivByteLen = track2EquivData.length()/2;
-
-            readRecResponse = new byte[6 + track2EquivByteLen];
-
-            ByteBuffer bb = ByteBuffer.wrap(readRecResponse);
-            bb.put((byte) 0x70);                            // EMV Record Template tag
-            bb.put((byte) (track2EquivByteLen + 2));        // Length with track 2 tag
-            bb.put((byte) 0x57);                                // Track 2 Equivalent Data tag
-            bb.put((byte)track2EquivByteLen);                   // Track 2 data length
-            bb.put(Util.hexToByteArray(track2EquivData));           // Track 2 equivalent data
-            bb.put((byte) 0x90);                            // SW1
-            bb.put((byte) 0x00);                            // SW2
-        } else {
-            MainActivity.sendLog(TAG, "PaymentService processed bad swipe data");
+    private void setCard(CardResponses card) {
+        processor.setCard(card);
+        traceRecorder.onCardChanged(card);
+        if (currentCard != null && currentCard != card) {
+            retiredCards.add(currentCard);
         }
+        currentCard = card;
+        if (processor.getSession().getApplication() == null) {
+            releaseRetiredCards();
+        }
+    }
 
+    private void releaseRetiredCards() {
+        for (int i = 0; i < retiredCards.size(); i++) {
+            activeCard.release(retiredCards.get(i));
+        }
+        retiredCards.clear();
     }
 
     @Override
     public byte[] processCommandApdu(byte[] commandApdu, Bundle bundle) {
-        String inboundApduDescription;
-        byte[] responseApdu;
-
-        if (Arrays.equals(PPSE_APDU_SELECT, commandApdu)) {
-            inboundApduDescription = "Received PPSE select: ";
-            responseApdu = PPSE_APDU_SELECT_RESP;
-        } else if (Arrays.equals(VISA_MSD_SELECT, commandApdu)) {
-            inboundApduDescription =  "Received Visa-MSD select: ";
-            responseApdu =  VISA_MSD_SELECT_RESPONSE;
-        } else if (isGpoCommand(commandApdu)) {
-            inboundApduDescription =  "Received GPO (get processing options): ";
-            responseApdu =  GPO_COMMAND_RESPONSE;
-        } else if (Arrays.equals(READ_REC_COMMAND, commandApdu)) {
-            inboundApduDescription = "Received READ REC: ";
-            responseApdu = readRecResponse;
-        } else {
-            inboundApduDescription = "Received Unhandled APDU: ";
-            responseApdu = ISO7816_UNKNOWN_ERROR_RESPONSE;
-        }
-
-        MainActivity.sendLog(TAG, inboundApduDescription, Util.byteArrayToHex(commandApdu),
-                " / Response: ", Util.byteArrayToHex(responseApdu));
-
-        return responseApdu;
+        foregroundScheduler.onCommand();
+        return processor.process(commandApdu);
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
         MainActivity.sendLog(TAG, "onSharedPreferenceChanged: key=", key);
-        if (SWIPE_DATA_PREF_KEY.equals(key)) {
-            String swipeData = prefs.getString(SWIPE_DATA_PREF_KEY, DEFAULT_SWIPE_DATA);
-            configureReadRecResponse(swipeData);
+        if (WALLET_VERSION_PREF_KEY.equals(key)) {
+            // Only cards that weren't already in the wallet get compiled.  The old card keeps
+            // answering until they're done.
+            loadWalletInBackground(new Runnable() {
+                @Override
+                public void run() {
+                    activateCard();
+                }
+            });
+        } else if (FOREGROUND_POLICY_PREF_KEY.equals(key)) {
+            foregroundScheduler.setPolicy(ForegroundScheduler.Policy.fromName(prefs.getString(key, null)));
+            foregroundPolicyLoaded = true;
+        } else if (ACTIVE_CARD_PREF_KEY.equals(key)) {
+            final int index = prefs.getInt(ACTIVE_CARD_PREF_KEY, 0);
+            Runnable select = new Runnable() {
+                @Override
+                public void run() {
+                    if (index >= 0 && index < wallet.size()) {
+                        setCard(wallet.select(index));
+                    }
+                }
+            };
+            if (walletLoaded) {
+                select.run();
+            } else {
+                loadWalletInBackground(select);
+            }
         }
     }
 
@@ -254,27 +186,108 @@ public class PaymentService extends HostApduService implements SharedPreferences
         super.onCreate();
         MainActivity.sendLog(TAG, "onCreate");
 
-        // Attempt to get swipe data that SetCardActivity saved as a shared preference,
-        // otherwise use the default no-balance prepaid visa configured into the app.
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        String swipeData = prefs.getString(SWIPE_DATA_PREF_KEY, DEFAULT_SWIPE_DATA);
-        configureReadRecResponse(swipeData);
-        prefs.registerOnSharedPreferenceChangeListener(this);
+        if (traceRecorder == null) {
+            traceRecorder = new ApduTraceRecorder(new File(getFilesDir(), TRACE_FILE_NAME), MAX_TRACE_FILE_SIZE);
+        }
+        activeCard = WalletStore.getActiveCard(this);
+
+        processor.setStats(stats);
+        processor.setUnhandledSketch(unhandled);
+        processor.setListener(new ApduProcessor.ApduListener() {
+            @Override
+            public void onApdu(ApduCommand command, byte[] commandApdu, byte[] responseApdu) {
+                MainActivity.logApdu(command, commandApdu, responseApdu);
+                traceRecorder.record(command, commandApdu, responseApdu);
+            }
+        });
+
+        foregroundScheduler = new ForegroundScheduler(new Handler(), new Runnable() {
+            @Override
+            public void run() {
+                // Bring the main activity to the foreground (if it wasn't already) now that
+                // the terminal has been quiet long enough for the checkout to be over.
+                Intent intent = new Intent(getApplicationContext(), MainActivity.class);
+                intent.setFlags(Intent.FLAG_ACTIVITY_BROUGHT_TO_FRONT | Intent.FLAG_ACTIVITY_NEW_TASK);
+                startActivity(intent);
+            }
+        }, ForegroundScheduler.DEFAULT_QUIET_PERIOD_MILLIS);
+
+        // The snapshot of the active card's responses is all we need to answer a tap, and is
+        // much cheaper than decrypting and compiling the wallet.  It's decrypted once per
+        // process: a service recreated later gets the cached card back.
+        CardResponses snapshot = null;
+        try {
+            snapshot = activeCard.get();
+        } catch (IOException | GeneralSecurityException e) {
+            MainActivity.sendLog(TAG, "Unable to decrypt the card snapshot: ", e.getMessage());
+        }
+        if (snapshot != null) {
+            setCard(snapshot);
+        } else {
+            // Load the cards that SetCardActivity saved, otherwise use the default no-balance
+            // prepaid visa configured into the app, and snapshot the result for the next start.
+            MainActivity.sendLog(TAG, "No usable card snapshot, loading the wallet");
+            loadWallet();
+            activateCard();
+            WalletStore.saveSnapshot(this, wallet.getActive());
+        }
+        registerListenerInBackground();
+    }
+
+
+    /*
+     *  Registering the listener takes the lock the preferences hold while their XML loads, so
+     *  on the main thread it would hold up the first tap behind the load the snapshot avoids.
+     *  Changes are still delivered on the main thread.
+     */
+    private void registerListenerInBackground() {
+        final SharedPreferences prefs = WalletStore.getPrefs(this);
+        walletLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (listenerLock) {
+                    if (!destroyed) {
+                        prefs.registerOnSharedPreferenceChangeListener(PaymentService.this);
+                        listening = true;
+                    }
+                }
+            }
+        });
+    }
+
+
+    @Override
+    public void onDestroy() {
+        MainActivity.sendLog(TAG, "onDestroy");
+        synchronized (listenerLock) {
+            destroyed = true;
+            if (listening) {
+                WalletStore.getPrefs(this).unregisterOnSharedPreferenceChangeListener(this);
+            }
+        }
+        walletLoader.shutdownNow();
+        handler.removeCallbacksAndMessages(null);
+        // A launch still pending would otherwise bring MainActivity up after the service is gone
+        foregroundScheduler.cancel();
+        releaseRetiredCards();
+        activeCard.release(currentCard);
+        super.onDestroy();
     }
 
 
     @Override
     public void onDeactivated(int reason) {
+        processor.onDeactivated(reason);
+        releaseRetiredCards();
+        traceRecorder.onDeactivated(reason);
         MainActivity.sendLog(TAG, "onDeactivated(", String.valueOf(reason), ")");
 
-        //
-        // Bring the main activity to the foreground (if it wasn't already) now that the
-        // NFC transaction completed.  We could do it earlier, but doing it here won't slow any
-        // time sensitive responses.
-        //
-        Intent intent = new Intent(getApplicationContext(), MainActivity.class);
-        intent.setFlags(Intent.FLAG_ACTIVITY_BROUGHT_TO_FRONT | Intent.FLAG_ACTIVITY_NEW_TASK);
-        startActivity(intent);
+        if (!foregroundPolicyLoaded) {
+            String policy = WalletStore.getPrefs(this).getString(FOREGROUND_POLICY_PREF_KEY, null);
+            foregroundScheduler.setPolicy(ForegroundScheduler.Policy.fromName(policy));
+            foregroundPolicyLoaded = true;
+        }
+        foregroundScheduler.onDeactivated();
     }
 
 }
@@ -1,128 +1,421 @@
 package to.noc.android.swipeyours;
 
 import android.app.Activity;
-import android.content.SharedPreferences;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.LruCache;
 import android.view.Gravity;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import us.fatehi.creditcardnumber.ServiceCode;
-import us.fatehi.magnetictrack.bankcard.BankCardMagneticTrack;
-import us.fatehi.magnetictrack.bankcard.Track1FormatB;
-import us.fatehi.magnetictrack.bankcard.Track2;
-
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
 import java.util.ServiceConfigurationError;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static to.noc.android.swipeyours.Constants.DEFAULT_SWIPE_DATA;
-import static to.noc.android.swipeyours.Constants.SWIPE_DATA_PREF_KEY;
 
 public class SetCardActivity extends Activity {
 
+    private static final String TAG = SetCardActivity.class.getSimpleName();
+
+    private static final int REQUEST_IMPORT_FILE = 1;
+
+    // Import progress is shown every this many lines, and only this many rejected lines are
+    // written to the log so a bad file can't flood it
+    private static final int IMPORT_PROGRESS_INTERVAL = 1000;
+    private static final int MAX_LOGGED_REJECTIONS = 100;
+
+    // Pasted input is validated once it has stopped changing for this long
+    private static final long VALIDATION_DELAY_MILLIS = 300;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /*
+     *  Parse results keyed by the swipe data input exactly as typed, so returning to an earlier
+     *  value or reopening the activity shows its details without parsing again.  Entries are
+     *  weighed by the length of their key, so a few pasted reader dumps can't hold on to much
+     *  memory.  LruCache is thread safe; the validation thread fills it.
+     */
+    private static final int DETAILS_CACHE_CHARS = 64 * 1024;
+    private static final LruCache<String, CardDetails> detailsCache =
+            new LruCache<String, CardDetails>(DETAILS_CACHE_CHARS) {
+                @Override
+                protected int sizeOf(String key, CardDetails details) {
+                    return Math.max(key.length(), 1);
+                }
+            };
+
+    // Shared with any other instance and a running import; see WalletStore
+    private final CardWallet wallet = WalletStore.getSharedWallet();
+    // Set once the wallet has been loaded; the card buttons do nothing until then
+    private boolean walletReady;
+    private Spinner cardList;
+    private ArrayAdapter<CardWallet.Card> cardListAdapter;
+
+    private EditText swipeDataInput;
+    private TextView swipeDataStatus;
+    private CardDetailsViews cardDetailsViews;
+
+    private final Handler handler = new Handler();
+    private ExecutorService validator;
+    // Bumped for every validation of the input, so a slow result for an old value is dropped
+    private int inputGeneration;
+
+    private final Runnable validateInput = new Runnable() {
+        @Override
+        public void run() {
+            validateInput(false);
+        }
+    };
+
+
     /*
-     *  Returns true if the passed in track data was successfully parsed, otherwise false.
-     *  Track2 data must be supplied.  If track1 data is available, the name field is pulled
-     *  from it for display purposes.
+     *  The views showing the active card's details, looked up once so showing a card is a
+     *  single pass of setText calls.
      */
-    private boolean parseTrackData(String trackData) {
-
-        final BankCardMagneticTrack allTracks = BankCardMagneticTrack.from(trackData);
-
-        Track1FormatB track1Data = allTracks.getTrack1();
-        Track2 track2Data = allTracks.getTrack2();
-
-        boolean isValid = track2Data.getPrimaryAccountNumber().isPrimaryAccountNumberValid();
-
-        if (isValid) {
-            int warningVisibility = DEFAULT_SWIPE_DATA.equals(trackData) ?
-                    View.VISIBLE : View.GONE;
-            findViewById(R.id.using_default_card_warning).setVisibility(warningVisibility);
-
-            ServiceCode serviceCode = track2Data.getServiceCode();
-
-            String fullName = track1Data.hasName() ? track1Data.getName().getFullName() : "[none]";
-            findViewById(R.id.optional_name_view).setVisibility(
-                    track1Data.hasName() ? View.VISIBLE : View.GONE
-            );
-
-            String cardNumber = track2Data.getPrimaryAccountNumber().getAccountNumber();
-            String cardBrand = track2Data.getPrimaryAccountNumber().getCardBrand().name();
-            String expDate = track2Data.getExpirationDate().toString();
-            String discretionaryData = track2Data.hasDiscretionaryData() ?
-                    track2Data.getDiscretionaryData() : "[none]";
-
-            setTextView(R.id.current_swipe_data, trackData);
-            setTextView(R.id.name_on_card, fullName);
-            setTextView(R.id.card_number, cardNumber);
-            setTextView(R.id.card_brand, cardBrand);
-            setTextView(R.id.card_expiration, expDate);
-            setTextView(R.id.service_code, serviceCode.getServiceCode());
-            setTextView(R.id.service_code1_val, serviceCode.getServiceCode1().getValue() + ":");
-            setTextView(R.id.service_code1_descr, serviceCode.getServiceCode1().getDescription());
-            setTextView(R.id.service_code2_val, serviceCode.getServiceCode2().getValue() + ":");
-            setTextView(R.id.service_code2_descr, serviceCode.getServiceCode2().getDescription());
-            setTextView(R.id.service_code3_val, serviceCode.getServiceCode3().getValue() + ":");
-            setTextView(R.id.service_code3_descr, serviceCode.getServiceCode3().getDescription());
-            setTextView(R.id.discretionary_data, discretionaryData);
+    private static class CardDetailsViews {
+        private final View defaultCardWarning;
+        private final View nameRow;
+        private final TextView swipeData;
+        private final TextView name;
+        private final TextView cardNumber;
+        private final TextView cardBrand;
+        private final TextView expiration;
+        private final TextView serviceCode;
+        private final TextView[] serviceCodeValues;
+        private final TextView[] serviceCodeDescriptions;
+        private final TextView discretionaryData;
 
+        CardDetailsViews(Activity activity) {
+            defaultCardWarning = activity.findViewById(R.id.using_default_card_warning);
+            nameRow = activity.findViewById(R.id.optional_name_view);
+            swipeData = (TextView) activity.findViewById(R.id.current_swipe_data);
+            name = (TextView) activity.findViewById(R.id.name_on_card);
+            cardNumber = (TextView) activity.findViewById(R.id.card_number);
+            cardBrand = (TextView) activity.findViewById(R.id.card_brand);
+            expiration = (TextView) activity.findViewById(R.id.card_expiration);
+            serviceCode = (TextView) activity.findViewById(R.id.service_code);
+            serviceCodeValues = new TextView[]{
+                    (TextView) activity.findViewById(R.id.service_code1_val),
+                    (TextView) activity.findViewById(R.id.service_code2_val),
+                    (TextView) activity.findViewById(R.id.service_code3_val)
+            };
+            serviceCodeDescriptions = new TextView[]{
+                    (TextView) activity.findViewById(R.id.service_code1_descr),
+                    (TextView) activity.findViewById(R.id.service_code2_descr),
+                    (TextView) activity.findViewById(R.id.service_code3_descr)
+            };
+            discretionaryData = (TextView) activity.findViewById(R.id.discretionary_data);
         }
 
-        return isValid;
+        void show(CardDetails details) {
+            if (!details.isValid()) {
+                return;
+            }
+            defaultCardWarning.setVisibility(DEFAULT_SWIPE_DATA.equals(details.getSwipeData()) ?
+                    View.VISIBLE : View.GONE);
+            nameRow.setVisibility(details.getName() != null ? View.VISIBLE : View.GONE);
+
+            swipeData.setText(details.getSwipeData());
+            name.setText(details.getName() != null ? details.getName() : "[none]");
+            cardNumber.setText(details.getCardNumber());
+            cardBrand.setText(details.getCardBrand());
+            expiration.setText(details.getExpiration());
+            serviceCode.setText(details.getServiceCode());
+            for (int i = 0; i < serviceCodeValues.length; i++) {
+                serviceCodeValues[i].setText(details.getServiceCodeValue(i));
+                serviceCodeDescriptions[i].setText(details.getServiceCodeDescription(i));
+            }
+            discretionaryData.setText(details.getDiscretionaryData());
+        }
+    }
+
+
+    private interface DetailsCallback {
+        void onDetails(CardDetails details);
+    }
+
+
+    /*
+     *  Passes the details of the passed in input to callback on the UI thread: right away if
+     *  they're cached, otherwise once the validation thread has parsed them, unless the
+     *  activity has gone by then.
+     */
+    private void lookupDetails(final String input, final DetailsCallback callback) {
+        CardDetails cached = detailsCache.get(input);
+        if (cached != null) {
+            callback.onDetails(cached);
+            return;
+        }
+        validator.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CardDetails details = CardDetails.parse(WHITESPACE.matcher(input).replaceAll(""));
+                detailsCache.put(input, details);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isFinishing() && !isDestroyed()) {
+                            callback.onDetails(details);
+                        }
+                    }
+                });
+            }
+        });
     }
 
-    private void setTextView(int id, String textValue) {
-        TextView view = (TextView) findViewById(id);
-        view.setText(textValue);
+
+    /*
+     *  Validates the swipe data input and shows the result under it.  When addWhenValid is
+     *  set, a valid card is then added to the wallet.
+     */
+    private void validateInput(final boolean addWhenValid) {
+        handler.removeCallbacks(validateInput);
+        final String input = swipeDataInput.getText().toString();
+        final int generation = ++inputGeneration;
+
+        if (input.isEmpty() && !addWhenValid) {
+            swipeDataStatus.setVisibility(View.GONE);
+            return;
+        }
+        lookupDetails(input, new DetailsCallback() {
+            @Override
+            public void onDetails(CardDetails details) {
+                if (generation != inputGeneration) {
+                    return;
+                }
+                swipeDataStatus.setVisibility(View.VISIBLE);
+                swipeDataStatus.setText(details.isValid() ?
+                        "Valid " + details.getCardBrand() + " card, expires " + details.getExpiration() :
+                        details.getError());
+                if (addWhenValid) {
+                    addCard(details);
+                }
+            }
+        });
     }
 
 
     /*
-     *  Triggered by button press
+     *  Triggered by button press.  Adds the pasted card to the wallet and makes it active, once
+     *  the input has been validated.
      */
     public void setNewCard(View view) {
-        String newSwipeData = ((EditText) findViewById(R.id.swipe_data)).getText().toString().replaceAll("\\s+","");
-        boolean newDataIsValid = parseTrackData(newSwipeData);
+        if (walletReady) {
+            validateInput(true);
+        }
+    }
 
+
+    private void addCard(CardDetails details) {
         String toastMessage;
         int toastDuration;
 
-        if (newDataIsValid) {
+        int index = details.isValid() ? wallet.add(details.getSwipeData()) : -1;
+        if (index >= 0) {
             toastMessage = "New Card Set";
             toastDuration = Toast.LENGTH_SHORT;
-            storeNewSwipeData(newSwipeData);
+            wallet.select(index);
+            WalletStore.saveInBackground(this, wallet);
+            refreshCardList();
+            cardDetailsViews.show(details);
         } else {
-            toastMessage = "Invalid swipe data";
+            toastMessage = details.isValid() ? "Invalid swipe data" : details.getError();
             toastDuration = Toast.LENGTH_LONG;
         }
 
-        Toast toast = Toast.makeText(getApplicationContext(), toastMessage, toastDuration);
-        toast.setGravity(Gravity.CENTER, 0, 0);
-        toast.show();
+        showToast(toastMessage, toastDuration);
     }
 
 
     /*
-     *  Get any previously saved swipe data (or default swipe data) from the preference storage
-     *  of the app.
+     *  Triggered by button press.  Removes the active card from the wallet.
      */
-    private String getSavedSwipeData() {
-        SharedPreferences prefs =  PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
-        return prefs.getString(SWIPE_DATA_PREF_KEY, DEFAULT_SWIPE_DATA);
+    public void removeCard(View view) {
+        if (!walletReady) {
+            return;
+        }
+        if (wallet.size() <= 1) {
+            showToast("The wallet must keep at least one card", Toast.LENGTH_LONG);
+            return;
+        }
+        wallet.remove(wallet.getActiveIndex());
+        WalletStore.saveInBackground(this, wallet);
+        refreshCardList();
+        showActiveCard();
     }
 
+
     /*
-     *  Save new magnetic stripe data to the shared preference storage of our app.
+     *  Triggered by button press.  Asks for a text file of card reader captures, one swipe per
+     *  line, to import into the wallet.
      */
-    private void storeNewSwipeData(String newSwipeData) {
-        SharedPreferences.Editor prefEditor =
-                PreferenceManager.getDefaultSharedPreferences(getApplicationContext()).edit();
-        prefEditor.putString(SWIPE_DATA_PREF_KEY, newSwipeData);
-        prefEditor.commit();
+    public void importCards(View view) {
+        if (!walletReady) {
+            return;
+        }
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT)
+                .setType("text/*")
+                .addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, REQUEST_IMPORT_FILE);
+    }
+
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_IMPORT_FILE && resultCode == RESULT_OK
+                && data != null && data.getData() != null) {
+            importFile(data.getData());
+        }
+    }
+
+
+    /*
+     *  Streams the file through a CardImporter on a background thread, adding each valid card
+     *  to the shared wallet as its batch finishes.  The wallet is saved once at the end, which
+     *  is what makes the PaymentService pick the new cards up.
+     */
+    private void importFile(Uri uri) {
+        TextView status = (TextView) findViewById(R.id.import_status);
+        status.setVisibility(View.VISIBLE);
+        status.setText("Importing...");
+        new Thread(new ImportTask(this, uri), "CardImport").start();
+    }
+
+
+    /*
+     *  An import of a large file can outlive the activity, so the task only keeps the
+     *  application context, and reaches the activity through a weak reference to show its
+     *  progress if it's still around.  The cards go into the shared wallet rather than the
+     *  activity's, so the final save includes whatever a recreated activity did meanwhile.
+     */
+    private static class ImportTask implements Runnable {
+        private final Context context;
+        private final Uri uri;
+        private final CardWallet wallet;
+        private final Handler handler;
+        private final WeakReference<SetCardActivity> activityRef;
+        private int lines;
+        private int rejected;
+
+        ImportTask(SetCardActivity activity, Uri uri) {
+            this.context = activity.getApplicationContext();
+            this.uri = uri;
+            this.wallet = WalletStore.getSharedWallet();
+            this.handler = activity.handler;
+            this.activityRef = new WeakReference<>(activity);
+        }
+
+        @Override
+        public void run() {
+            String summary;
+            long start = System.nanoTime();
+            try (ParcelFileDescriptor fd = context.getContentResolver().openFileDescriptor(uri, "r");
+                 FileInputStream in = new FileInputStream(fd.getFileDescriptor())) {
+
+                int valid = new CardImporter().importFrom(in.getChannel(), new CardImporter.Listener() {
+                    @Override
+                    public void onLine(int lineNumber, CardImporter.Status lineStatus,
+                                       TrackScanner.Result scanResult, CardWallet.Card card) {
+                        lines++;
+                        if (card != null) {
+                            wallet.add(card);
+                        } else if (++rejected <= MAX_LOGGED_REJECTIONS) {
+                            String reason = lineStatus == CardImporter.Status.INVALID_TRACK_DATA ?
+                                    scanResult.getDescription() : lineStatus.getDescription();
+                            MainActivity.sendLog(TAG, "Import line ", String.valueOf(lineNumber), ": ", reason);
+                        }
+                        if (lines % IMPORT_PROGRESS_INTERVAL == 0) {
+                            showStatus("Imported " + lines + " lines, " + rejected + " rejected", false);
+                        }
+                    }
+                });
+                WalletStore.save(context, wallet);
+                summary = String.format(Locale.US, "Imported %d cards from %d lines (%d rejected) in %.1f s",
+                        valid, lines, rejected, (System.nanoTime() - start) / 1e9);
+            } catch (IOException | InterruptedException e) {
+                summary = "Import failed: " + e.getMessage();
+            }
+
+            MainActivity.sendLog(TAG, summary);
+            showStatus(summary, true);
+        }
+
+        /*
+         *  Shows text as the import status, and the wallet's new contents once finished, if
+         *  the activity hasn't gone away
+         */
+        private void showStatus(final String text, final boolean finished) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    SetCardActivity activity = activityRef.get();
+                    if (activity == null || activity.isFinishing()) {
+                        return;
+                    }
+                    ((TextView) activity.findViewById(R.id.import_status)).setText(text);
+                    if (finished) {
+                        activity.refreshCardList();
+                        activity.showActiveCard();
+                    }
+                }
+            });
+        }
+    }
+
+
+    private void showToast(String message, int duration) {
+        Toast toast = Toast.makeText(getApplicationContext(), message, duration);
+        toast.setGravity(Gravity.CENTER, 0, 0);
+        toast.show();
+    }
+
+
+    private void showActiveCard() {
+        CardWallet.Card card = wallet.getActive();
+        if (card == null) {
+            return;
+        }
+        final String swipeData = card.getSwipeData();
+        lookupDetails(swipeData, new DetailsCallback() {
+            @Override
+            public void onDetails(CardDetails details) {
+                // Skip the result if another card was picked while it was being parsed
+                CardWallet.Card active = wallet.getActive();
+                if (active != null && active.getSwipeData().equals(swipeData)) {
+                    cardDetailsViews.show(details);
+                }
+            }
+        });
+    }
+
+
+    /*
+     *  Rebuilds the card picker from the wallet's contents.  The labels are computed when each
+     *  card is added, so this doesn't parse anything.
+     */
+    private void refreshCardList() {
+        cardListAdapter.clear();
+        cardListAdapter.addAll(wallet.list());
+        cardList.setSelection(wallet.getActiveIndex());
     }
 
 
@@ -130,7 +423,70 @@ public class SetCardActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_set_card);
-        parseTrackData(getSavedSwipeData());
+
+        validator = Executors.newSingleThreadExecutor();
+        cardDetailsViews = new CardDetailsViews(this);
+        swipeDataStatus = (TextView) findViewById(R.id.swipe_data_status);
+        swipeDataInput = (EditText) findViewById(R.id.swipe_data);
+        swipeDataInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence text, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable text) {
+                // Restart the delay, so a burst of edits is validated once
+                handler.removeCallbacks(validateInput);
+                handler.postDelayed(validateInput, VALIDATION_DELAY_MILLIS);
+            }
+        });
+
+        cardList = (Spinner) findViewById(R.id.wallet_cards);
+        cardListAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
+        cardListAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        cardList.setAdapter(cardListAdapter);
+        cardList.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (position != wallet.getActiveIndex()) {
+                    // The card list didn't change, so only the index and the active card's
+                    // snapshot are rewritten
+                    wallet.select(position);
+                    WalletStore.saveActiveIndexInBackground(SetCardActivity.this, wallet);
+                }
+                showActiveCard();
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+
+        // Decrypting and parsing the wallet takes a while for a big one, so the cards show up
+        // once it's done
+        WalletStore.loadSharedWallet(this, handler, new Runnable() {
+            @Override
+            public void run() {
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                walletReady = true;
+                refreshCardList();
+                showActiveCard();
+            }
+        });
+    }
+
+
+    @Override
+    protected void onDestroy() {
+        handler.removeCallbacksAndMessages(null);
+        validator.shutdownNow();
+        super.onDestroy();
     }
 
 }
@@ -0,0 +1,284 @@
+package to.noc.android.swipeyours;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.preference.PreferenceManager;
+import android.util.Base64;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static to.noc.android.swipeyours.Constants.ACTIVE_CARD_PREF_KEY;
+import static to.noc.android.swipeyours.Constants.DEFAULT_SWIPE_DATA;
+import static to.noc.android.swipeyours.Constants.SEALED_WALLET_PREF_KEY;
+import static to.noc.android.swipeyours.Constants.SWIPE_DATA_PREF_KEY;
+import static to.noc.android.swipeyours.Constants.WALLET_PREF_KEY;
+import static to.noc.android.swipeyours.Constants.WALLET_VERSION_PREF_KEY;
+
+
+/*
+ *  Loads and saves a CardWallet.
+ *
+ *  Card data is never stored in the clear: the wallet's swipe data is sealed by an
+ *  EncryptedCardStore into a file of its own, with a key from the Android keystore (API 23
+ *  and up) or from a key file in the app's private storage (older phones, which can't keep
+ *  AES keys in the keystore).  A wallet of thousands of imported cards is megabytes, so it's
+ *  kept out of the shared preferences, which are parsed whole at every process start; they
+ *  only hold the active card's index and a version bumped on every save, which is how the
+ *  PaymentService hears about new cards.  Wallets older versions kept in the preferences
+ *  (sealed, or in plaintext) are moved to the file the first time they're loaded.
+ *
+ *  Every save also writes an encrypted CardSnapshot of the active card's responses, which is
+ *  all a newly created PaymentService needs to answer a tap.  It's held in a DecryptedCardCache
+ *  shared by the whole process, so it's decrypted at most once.  The wallet file stays the
+ *  source of truth: the snapshot is deleted whenever it can't be brought up to date, so it's
+ *  never stale.
+ *
+ *  The activities share one wallet (getSharedWallet), so one recreated while an import is
+ *  still adding cards edits the same cards rather than a stale copy.  load() and save() are
+ *  serialized, and save() writes the wallet as it is when it runs, so the last save always
+ *  stores the latest cards.  Both decrypt or encrypt the whole wallet: the activities run
+ *  them on the I/O thread here, and the service on its own loader thread.
+ */
+public class WalletStore {
+
+    private static final String TAG = WalletStore.class.getSimpleName();
+
+    private static final String SNAPSHOT_FILE_NAME = "active_card.snapshot";
+    private static final String WALLET_FILE_NAME = "wallet.sealed";
+    private static final String KEY_FILE_NAME = "card_store.key";
+    private static final String KEY_ALIAS = "card_store";
+    private static final String WALLET_PURPOSE = "wallet";
+
+    private static EncryptedCardStore store;
+    private static DecryptedCardCache activeCard;
+
+    private static final CardWallet sharedWallet = new CardWallet();
+    private static final ExecutorService io = Executors.newSingleThreadExecutor();
+    // Only touched on io
+    private static boolean sharedWalletLoaded;
+
+
+    public static SharedPreferences getPrefs(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+    }
+
+    public static File getSnapshotFile(Context context) {
+        return new File(context.getFilesDir(), SNAPSHOT_FILE_NAME);
+    }
+
+    private static File getWalletFile(Context context) {
+        return new File(context.getFilesDir(), WALLET_FILE_NAME);
+    }
+
+
+    private static synchronized EncryptedCardStore getStore(Context context) {
+        if (store == null) {
+            // A phone that started out below API 23 keeps its key file after an upgrade, or
+            // everything sealed with it would be lost
+            File keyFile = new File(context.getFilesDir(), KEY_FILE_NAME);
+            KeyProvider keys = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && !keyFile.exists()
+                    ? new KeystoreKeyProvider(KEY_ALIAS)
+                    : new SoftwareKeyProvider(keyFile);
+            store = new EncryptedCardStore(keys);
+        }
+        return store;
+    }
+
+    /*
+     *  The process wide cache of the active card's decrypted snapshot
+     */
+    public static synchronized DecryptedCardCache getActiveCard(Context context) {
+        if (activeCard == null) {
+            activeCard = new DecryptedCardCache(getStore(context), getSnapshotFile(context));
+        }
+        return activeCard;
+    }
+
+
+    /*
+     *  The wallet the activities show and edit.  It's empty until loadSharedWallet() has run.
+     */
+    public static CardWallet getSharedWallet() {
+        return sharedWallet;
+    }
+
+    /*
+     *  Loads the shared wallet on the I/O thread if it hasn't been yet, then posts then to
+     *  handler.
+     */
+    public static void loadSharedWallet(Context context, final Handler handler, final Runnable then) {
+        final Context appContext = context.getApplicationContext();
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!sharedWalletLoaded) {
+                    load(appContext, sharedWallet);
+                    sharedWalletLoaded = true;
+                }
+                handler.post(then);
+            }
+        });
+    }
+
+    public static void saveInBackground(Context context, final CardWallet wallet) {
+        final Context appContext = context.getApplicationContext();
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                save(appContext, wallet);
+            }
+        });
+    }
+
+    public static void saveActiveIndexInBackground(Context context, final CardWallet wallet) {
+        final Context appContext = context.getApplicationContext();
+        io.execute(new Runnable() {
+            @Override
+            public void run() {
+                saveActiveIndex(appContext, wallet);
+            }
+        });
+    }
+
+
+    /*
+     *  Fills the wallet from its file.  Installs that predate the wallet get a wallet holding
+     *  their single saved card (or the default card if they never set one).  If the sealed
+     *  wallet can't be opened (say the key was lost) the default card is used, and the sealed
+     *  wallet is left alone until cards are saved again.
+     */
+    public static synchronized void load(Context context, CardWallet wallet) {
+        SharedPreferences prefs = getPrefs(context);
+        String serialized;
+        boolean migrate = false;
+
+        File file = getWalletFile(context);
+        String sealed = prefs.getString(SEALED_WALLET_PREF_KEY, null);
+        if (file.exists()) {
+            serialized = readWallet(context, file);
+        } else if (sealed != null) {
+            serialized = openWallet(context, sealed);
+            migrate = serialized != null;
+        } else {
+            serialized = prefs.getString(WALLET_PREF_KEY, prefs.getString(SWIPE_DATA_PREF_KEY, null));
+            migrate = serialized != null;
+        }
+        if (serialized == null) {
+            serialized = DEFAULT_SWIPE_DATA;
+        }
+
+        wallet.replaceAll(CardWallet.parse(serialized), prefs.getInt(ACTIVE_CARD_PREF_KEY, 0));
+        if (wallet.size() == 0) {
+            wallet.add(DEFAULT_SWIPE_DATA);
+        }
+        if (migrate) {
+            MainActivity.sendLog(TAG, "Moving the stored cards to ", file.getName());
+            save(context, wallet);
+        }
+    }
+
+
+    /*
+     *  Nothing is saved if the wallet can't be sealed: card data is never written in the clear.
+     */
+    public static synchronized void save(Context context, CardWallet wallet) {
+        if (!writeWallet(context, wallet.serialize())) {
+            return;
+        }
+        saveSnapshot(context, wallet.getActive());
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor prefEditor = prefs.edit();
+        prefEditor.remove(SEALED_WALLET_PREF_KEY);
+        prefEditor.remove(WALLET_PREF_KEY);
+        prefEditor.remove(SWIPE_DATA_PREF_KEY);
+        prefEditor.putInt(ACTIVE_CARD_PREF_KEY, wallet.getActiveIndex());
+        prefEditor.putLong(WALLET_VERSION_PREF_KEY, prefs.getLong(WALLET_VERSION_PREF_KEY, 0) + 1);
+        prefEditor.commit();
+    }
+
+
+    /*
+     *  Only the active card changed, so the stored card list doesn't need rewriting.
+     */
+    public static synchronized void saveActiveIndex(Context context, CardWallet wallet) {
+        saveSnapshot(context, wallet.getActive());
+        getPrefs(context).edit().putInt(ACTIVE_CARD_PREF_KEY, wallet.getActiveIndex()).commit();
+    }
+
+
+    /*
+     *  Called before the preferences are committed, so a service created in between already
+     *  starts with the new card.
+     */
+    public static void saveSnapshot(Context context, CardWallet.Card activeCard) {
+        DecryptedCardCache cache = getActiveCard(context);
+        try {
+            if (activeCard != null) {
+                cache.put(activeCard.getResponses());
+                return;
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            MainActivity.sendLog(TAG, "Unable to write card snapshot: ", e.getMessage());
+        }
+        cache.clear();
+    }
+
+
+    /*
+     *  Written to a temporary file and renamed over the old one, so a crash leaves either the
+     *  old wallet or the new one
+     */
+    private static boolean writeWallet(Context context, String serialized) {
+        byte[] plaintext = serialized.getBytes(StandardCharsets.UTF_8);
+        try {
+            getStore(context).write(getWalletFile(context), plaintext, WALLET_PURPOSE);
+            return true;
+        } catch (IOException | GeneralSecurityException e) {
+            MainActivity.sendLog(TAG, "Unable to save the stored cards: ", e.getMessage());
+            return false;
+        } finally {
+            Arrays.fill(plaintext, (byte) 0);
+        }
+    }
+
+    private static String readWallet(Context context, File file) {
+        byte[] plaintext = null;
+        try {
+            plaintext = getStore(context).read(file, WALLET_PURPOSE);
+            return plaintext != null ? new String(plaintext, StandardCharsets.UTF_8) : null;
+        } catch (IOException | GeneralSecurityException e) {
+            MainActivity.sendLog(TAG, "Unable to decrypt the stored cards: ", e.getMessage());
+            return null;
+        } finally {
+            if (plaintext != null) {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+    }
+
+    /*
+     *  A wallet sealed into the preferences by an older version
+     */
+    private static String openWallet(Context context, String sealed) {
+        byte[] plaintext = null;
+        try {
+            plaintext = getStore(context).open(Base64.decode(sealed, Base64.NO_WRAP), WALLET_PURPOSE);
+            return new String(plaintext, StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            MainActivity.sendLog(TAG, "Unable to decrypt the stored cards: ", e.getMessage());
+            return null;
+        } finally {
+            if (plaintext != null) {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+    }
+}